@@ -0,0 +1,127 @@
+package com.github.forax.einherjar.maven;
+
+import com.github.forax.einherjar.api.ValueType;
+import com.github.forax.einherjar.core.EnhanceCache;
+import com.github.forax.einherjar.core.Facade;
+import com.github.forax.einherjar.core.FacadeListener;
+import com.github.forax.einherjar.core.ValueTypeChecker;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Enhances the jar of the project in the build VM and attaches the Einherjar as an artifact.
+ *
+ * The analysis of the classes is cached in a file, so only the classes that have changed
+ * since the previous build are analyzed and rewritten.
+ */
+@Mojo(name = "enhance", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
+public class EnhanceMojo extends AbstractMojo {
+  /**
+   * Qualified name of the annotation.
+   */
+  @Parameter(property = "einherjar.annotation")
+  String annotation = ValueType.class.getName();
+
+  /**
+   * Qualified names of the classes to enhance even if they are not annotated.
+   */
+  @Parameter(property = "einherjar.classes")
+  Set<String> classes = new HashSet<>();
+
+  /**
+   * Classfile versions of the generated value classes, one directory META-INF/versions/version by version.
+   */
+  @Parameter(property = "einherjar.versions", defaultValue = "23")
+  Set<Integer> versions = new HashSet<>(Collections.singleton(23));
+
+  /**
+   * The jar to enhance.
+   */
+  @Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}.jar", required = true)
+  File inputFile;
+
+  /**
+   * The generated Einherjar.
+   */
+  @Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}-einherjar.jar", required = true)
+  File outputFile;
+
+  /**
+   * The file that stores the analysis of the classes between builds.
+   */
+  @Parameter(defaultValue = "${project.build.directory}/einherjar/enhance.cache", required = true)
+  File cacheFile;
+
+  /**
+   * Classifier of the attached Einherjar.
+   */
+  @Parameter(property = "einherjar.classifier", defaultValue = "einherjar")
+  String classifier = "einherjar";
+
+  /**
+   * Attach the Einherjar to the project, so it is installed and deployed.
+   */
+  @Parameter(property = "einherjar.attach", defaultValue = "true")
+  boolean attach = true;
+
+  @Parameter(property = "einherjar.skip", defaultValue = "false")
+  boolean skip;
+
+  @Parameter(defaultValue = "${project}", readonly = true, required = true)
+  MavenProject project;
+
+  @Component
+  MavenProjectHelper projectHelper;
+
+  @Override
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (skip) {
+      getLog().info("einherjar is skipped");
+      return;
+    }
+    Path input = inputFile.toPath();
+    if (!Files.isRegularFile(input)) {
+      getLog().info("no jar to enhance, " + input + " does not exist");
+      return;
+    }
+
+    Path cachePath = cacheFile.toPath();
+    int[] issueCount = { 0 };
+    ValueTypeChecker.IssueReporter issueReporter = (issue, className, message) -> {
+      getLog().error(issue + ": class " + className.replace('/', '.') + ", " + message);
+      issueCount[0]++;
+    };
+    EnhanceCache cache;
+    try {
+      cache = EnhanceCache.load(cachePath);
+      Facade.enhance(annotation, classes, input, outputFile.toPath(), versions, issueReporter, FacadeListener.NONE, cache);
+      cache.save(cachePath);
+    } catch (IOException | IllegalArgumentException e) {
+      throw new MojoExecutionException("error while enhancing " + input, e);
+    }
+    if (issueCount[0] != 0) {
+      throw new MojoFailureException(issueCount[0] + " issues found, see the errors above");
+    }
+    getLog().info("enhanced " + input + " to " + outputFile + " (" +
+        cache.missCount() + " classes analyzed, " + cache.hitCount() + " classes unchanged)");
+
+    if (attach) {
+      projectHelper.attachArtifact(project, "jar", classifier, outputFile);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.github.forax.einherjar.maven;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EnhanceMojoTest {
+  @ValueType
+  static class GoodClassAnnotated {
+    private final int x, y;
+
+    GoodClassAnnotated(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  @ValueType
+  static class BadFieldNotFinalAnnotated {
+    private String text;
+  }
+
+  static class NotAnnotated {
+  }
+
+  private static String entryName(Class<?> clazz) {
+    return clazz.getName().replace('.', '/') + ".class";
+  }
+
+  private static void createJar(Path jar, Class<?>... classes) throws IOException {
+    try(var output = new JarOutputStream(Files.newOutputStream(jar))) {
+      for (var clazz : classes) {
+        output.putNextEntry(new JarEntry(entryName(clazz)));
+        try(var input = clazz.getResourceAsStream("/" + entryName(clazz))) {
+          input.transferTo(output);
+        }
+        output.closeEntry();
+      }
+    }
+  }
+
+  record Attachment(String type, String classifier, File file) { }
+
+  private static final class RecordingLog extends SystemStreamLog {
+    private final List<String> infos = new ArrayList<>();
+
+    @Override
+    public void info(CharSequence content) {
+      infos.add(content.toString());
+    }
+  }
+
+  private static EnhanceMojo mojo(Path directory, List<Attachment> attachments) {
+    var mojo = new EnhanceMojo();
+    mojo.inputFile = directory.resolve("test.jar").toFile();
+    mojo.outputFile = directory.resolve("test-einherjar.jar").toFile();
+    mojo.cacheFile = directory.resolve("einherjar").resolve("enhance.cache").toFile();
+    mojo.project = new MavenProject();
+    mojo.projectHelper = new MavenProjectHelper() {
+      @Override
+      public void attachArtifact(MavenProject project, String type, String classifier, File file) {
+        attachments.add(new Attachment(type, classifier, file));
+      }
+      @Override
+      public void attachArtifact(MavenProject project, File file, String classifier) {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public void attachArtifact(MavenProject project, String type, File file) {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public void addResource(MavenProject project, String directory, List<String> includes, List<String> excludes) {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public void addTestResource(MavenProject project, String directory, List<String> includes, List<String> excludes) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    return mojo;
+  }
+
+  @Test
+  public void enhanceIncrementally(@TempDir Path directory) throws Exception {
+    createJar(directory.resolve("test.jar"), GoodClassAnnotated.class, NotAnnotated.class);
+    var attachments = new ArrayList<Attachment>();
+    var log = new RecordingLog();
+
+    var mojo = mojo(directory, attachments);
+    mojo.setLog(log);
+    mojo.execute();
+    try(var jarFile = new JarFile(mojo.outputFile)) {
+      assertNotNull(jarFile.getEntry("META-INF/versions/23/" + entryName(GoodClassAnnotated.class)));
+    }
+
+    // only the changed class is analyzed
+    createJar(directory.resolve("test.jar"), GoodClassAnnotated.class, NotAnnotated.class, EnhanceMojoTest.class);
+    var mojo2 = mojo(directory, attachments);
+    mojo2.setLog(log);
+    mojo2.execute();
+
+    assertAll(
+        () -> assertEquals(List.of(
+            new Attachment("jar", "einherjar", mojo.outputFile),
+            new Attachment("jar", "einherjar", mojo.outputFile)), attachments),
+        () -> assertEquals("enhanced " + mojo.inputFile + " to " + mojo.outputFile + " (2 classes analyzed, 0 classes unchanged)", log.infos.get(0)),
+        () -> assertEquals("enhanced " + mojo.inputFile + " to " + mojo.outputFile + " (1 classes analyzed, 2 classes unchanged)", log.infos.get(1))
+    );
+  }
+
+  @Test
+  public void enhanceWithIssues(@TempDir Path directory) throws IOException {
+    createJar(directory.resolve("test.jar"), GoodClassAnnotated.class, BadFieldNotFinalAnnotated.class);
+    var attachments = new ArrayList<Attachment>();
+    var mojo = mojo(directory, attachments);
+    assertAll(
+        () -> assertThrows(MojoFailureException.class, mojo::execute),
+        () -> assertEquals(List.of(), attachments)
+    );
+  }
+
+  @Test
+  public void noJar(@TempDir Path directory) throws Exception {
+    var attachments = new ArrayList<Attachment>();
+    var mojo = mojo(directory, attachments);
+    mojo.execute();
+    assertEquals(List.of(), attachments);
+  }
+}
@@ -0,0 +1,50 @@
+package com.github.forax.einherjar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Classfiles of the module java.base used as input of the benchmarks.
+ */
+public final class JdkClasses {
+  private JdkClasses() {
+    throw new AssertionError();
+  }
+
+  // java.lang.Object has no super class and is not a realistic input
+  private static boolean isIncluded(Path path) {
+    var pathname = path.toString();
+    return pathname.endsWith(".class") && !pathname.endsWith("/module-info.class") && !pathname.endsWith("/java/lang/Object.class");
+  }
+
+  /**
+   * Returns the first classes (in lexicographic order) of the module java.base, by internal name.
+   */
+  public static Map<String, byte[]> classes(int count) {
+    FileSystem fileSystem = FileSystems.getFileSystem(URI.create("jrt:/"));
+    var classes = new LinkedHashMap<String, byte[]>();
+    try(var stream = Files.walk(fileSystem.getPath("/modules/java.base"))) {
+      for(var path : stream
+          .filter(JdkClasses::isIncluded)
+          .sorted()
+          .limit(count)
+          .toList()) {
+        var pathname = path.subpath(2, path.getNameCount()).toString();
+        classes.put(pathname.substring(0, pathname.length() - ".class".length()), Files.readAllBytes(path));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (classes.size() != count) {
+      throw new IllegalStateException("only " + classes.size() + " classes found");
+    }
+    return classes;
+  }
+}
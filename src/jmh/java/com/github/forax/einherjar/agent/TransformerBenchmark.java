@@ -0,0 +1,45 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.JdkClasses;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the agent transformer in classes/s, on the classes of java.base.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformerBenchmark {
+  private static final int CLASS_COUNT = 1_000;
+
+  private byte[][] classfiles;
+
+  @Setup
+  public void setup() {
+    classfiles = JdkClasses.classes(CLASS_COUNT).values().toArray(byte[][]::new);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CLASS_COUNT)
+  public void rewrite(Blackhole blackhole) {
+    for(var classfile : classfiles) {
+      blackhole.consume(Agent.rewrite(classfile));
+    }
+  }
+}
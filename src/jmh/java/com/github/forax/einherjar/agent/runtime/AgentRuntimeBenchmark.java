@@ -0,0 +1,91 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the runtime checks called by the instrumented code,
+ * on identity classes and on value classes with 1, 4 or 8 fields.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AgentRuntimeBenchmark {
+  private static final String SITE = "AgentRuntimeBenchmark";
+
+  @ValueType
+  record Value1(int a) { }
+  @ValueType
+  record Value4(int a, long b, double c, Object d) { }
+  @ValueType
+  record Value8(int a, long b, double c, Object d, int e, long f, double g, Object h) { }
+
+  @Param({"identity", "1", "4", "8"})
+  public String kind;
+
+  private Object o1, o2;
+
+  private static Object create(String kind, String text) {
+    return switch (kind) {
+      case "identity" -> new Object();
+      case "1" -> new Value1(42);
+      case "4" -> new Value4(42, 42L, 42.0, text);
+      case "8" -> new Value8(42, 42L, 42.0, text, 7, 7L, 7.0, text);
+      default -> throw new IllegalArgumentException(kind);
+    };
+  }
+
+  @Setup
+  public void setup() {
+    var text = "text";
+    o1 = create(kind, text);
+    o2 = create(kind, text);  // substitutable with o1 but not the same reference
+  }
+
+  @Benchmark
+  public boolean acmp() {
+    return AgentRuntime.acmp(o1, o2, SITE);
+  }
+
+  @Benchmark
+  public boolean acmpSameReference() {
+    return AgentRuntime.acmp(o1, o1, SITE);
+  }
+
+  @Benchmark
+  public int identityHashCode() {
+    return AgentRuntime.identityHashCode(o1, SITE);
+  }
+
+  @Benchmark
+  public void monitorenter() {
+    if (kind.equals("identity")) {
+      AgentRuntime.monitorenter(o1, SITE);
+    }
+  }
+
+  @Benchmark
+  public boolean baselineAcmp() {
+    return o1 == o2;
+  }
+
+  @Benchmark
+  public int baselineIdentityHashCode() {
+    return System.identityHashCode(o1);
+  }
+}
@@ -0,0 +1,72 @@
+package com.github.forax.einherjar.core;
+
+import com.github.forax.einherjar.SyntheticJar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of {@link Facade#find}, {@link Facade#check} and {@link Facade#enhance}
+ * on a synthetic jar of 100 to 100_000 classes, about half of them annotated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FacadeBenchmark {
+  private static final String ANNOTATION_NAME = "com.github.forax.einherjar.api.ValueType";
+
+  @Param({"100", "10000", "100000"})
+  public int classCount;
+
+  private Path directory;
+  private Path jar;
+  private Path enhancedJar;
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("--einherjar--benchmark--");
+    jar = SyntheticJar.generate(directory.resolve("synthetic.jar"), classCount, 42);
+    enhancedJar = directory.resolve("enhanced.jar");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(enhancedJar);
+    Files.deleteIfExists(jar);
+    Files.deleteIfExists(directory);
+  }
+
+  @Benchmark
+  public void find(Blackhole blackhole) throws IOException {
+    Facade.find(jar, blackhole::consume);
+  }
+
+  @Benchmark
+  public void check(Blackhole blackhole) throws IOException {
+    Facade.check(ANNOTATION_NAME, Set.of(), jar, (issue, className, message) -> blackhole.consume(issue));
+  }
+
+  @Benchmark
+  public void enhance(Blackhole blackhole) throws IOException {
+    Facade.enhance(ANNOTATION_NAME, Set.of(), jar, enhancedJar, 23, (issue, className, message) -> blackhole.consume(issue));
+  }
+}
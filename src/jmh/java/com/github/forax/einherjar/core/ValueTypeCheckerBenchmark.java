@@ -0,0 +1,79 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V21;
+
+/**
+ * Cost of the checker on a class with one constructor that initializes 1 to 4096 fields.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValueTypeCheckerBenchmark {
+  @Param({"1", "16", "256", "4096"})
+  public int fieldCount;
+
+  private byte[] classfile;
+
+  private static byte[] generate(int fieldCount) {
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(V21, ACC_PUBLIC | ACC_SUPER | ACC_FINAL, "Generated", null, "java/lang/Object", null);
+    for (var i = 0; i < fieldCount; i++) {
+      writer.visitField(ACC_PRIVATE | ACC_FINAL, "f" + i, "I", null, null).visitEnd();
+    }
+    var mv = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    for (var i = 0; i < fieldCount; i++) {
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitLdcInsn(i);
+      mv.visitFieldInsn(PUTFIELD, "Generated", "f" + i, "I");
+    }
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  @Setup
+  public void setup() {
+    classfile = generate(fieldCount);
+  }
+
+  @Benchmark
+  public boolean check() {
+    var issueChecker = new Object() { boolean hasIssue; };
+    var reader = new ClassReader(classfile);
+    reader.accept(new ValueTypeChecker((issue, className, message) -> issueChecker.hasIssue = true, null),
+        ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return issueChecker.hasIssue;
+  }
+}
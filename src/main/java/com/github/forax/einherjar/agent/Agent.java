@@ -1,10 +1,16 @@
 package com.github.forax.einherjar.agent;
 
+import com.github.forax.einherjar.agent.runtime.AgentControl;
 import com.github.forax.einherjar.agent.runtime.AgentRuntime;
-import com.github.forax.einherjar.api.ValueType;
+import com.github.forax.einherjar.core.ClassMatcher;
+import com.github.forax.einherjar.core.ValueTypeChecker;
+import com.github.forax.einherjar.core.ValueTypeRewriter;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -13,13 +19,57 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 
 public class Agent {
-  static final String AGENT_RUNTIME_NAME = AgentRuntime.class.getName().replace('.', '/');
+  // do not use AgentRuntime.class here, the runtime classes should only be loaded
+  // once the bootstrap jar file is appended to the bootstrap class loader search
+  static final String AGENT_RUNTIME_NAME = "com/github/forax/einherjar/agent/runtime/AgentRuntime";
+  static final String AGENT_RUNTIME_PACKAGE = "com/github/forax/einherjar/agent/runtime/";
+  private static final String JDK_REFLECT_PACKAGE = "jdk/internal/reflect/";
+  private static final String DEFAULT_ANNOTATION_NAME = "com.github.forax.einherjar.api.ValueType";
+
+  // classes that must be visible from any class loader
+  static final String[] RUNTIME_CLASS_NAMES = {
+      AGENT_RUNTIME_NAME,
+      AGENT_RUNTIME_NAME + "$ValueTypeCache",
+      AGENT_RUNTIME_NAME + "$SiteSampler",
+      AGENT_RUNTIME_PACKAGE + "AgentControl",
+      AGENT_RUNTIME_PACKAGE + "AgentControlMBean",
+      AGENT_RUNTIME_PACKAGE + "AgentMetrics",
+      AGENT_RUNTIME_PACKAGE + "AgentAllocations",
+      AGENT_RUNTIME_PACKAGE + "AgentAllocations$ByCountComparator",
+      AGENT_RUNTIME_PACKAGE + "AgentAllocations$Report",
+      AGENT_RUNTIME_PACKAGE + "ViolationEvent",
+      AGENT_RUNTIME_PACKAGE + "ViolationEvent$1",
+      AGENT_RUNTIME_PACKAGE + "ViolationReporter",
+      AGENT_RUNTIME_PACKAGE + "ViolationReporter$ThreadBuffer",
+      AGENT_RUNTIME_PACKAGE + "ViolationReporter$ThreadBuffers",
+      AGENT_RUNTIME_PACKAGE + "ViolationReporter$Drainer",
+      AGENT_RUNTIME_PACKAGE + "ViolationReporter$ByCountComparator",
+      AGENT_RUNTIME_PACKAGE + "Substitutability",
+      AGENT_RUNTIME_PACKAGE + "Substitutability$EqualsCache",
+      AGENT_RUNTIME_PACKAGE + "Substitutability$HashCache",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap$Entry",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap$TableIterator",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap$KeySet",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap$Values",
+      AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap$EntrySet",
+      "com/github/forax/einherjar/api/ValueType"
+  };
 
   private static void copy(InputStream input, OutputStream output) throws IOException {
     byte[] buffer = new byte[8_192];
@@ -29,32 +79,187 @@ public class Agent {
     }
   }
 
-  private static void addEntryToBootstrapJarFile(JarOutputStream jarOutputStream, String entryClassName) throws IOException {
-    try(InputStream input = AgentRuntime.class.getResourceAsStream("/" + entryClassName + ".class")) {
+  static byte[] readAllBytes(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    copy(input, output);
+    return output.toByteArray();
+  }
+
+  static byte[] classBytes(String className) throws IOException {
+    try(InputStream input = Agent.class.getResourceAsStream("/" + className + ".class")) {
       if (input == null) {
-        throw new AssertionError("can not find " + entryClassName + " bytecode");
+        throw new AssertionError("can not find " + className + " bytecode");
+      }
+      return readAllBytes(input);
+    }
+  }
+
+  private static void addEntryToBootstrapJarFile(JarOutputStream jarOutputStream, String entryClassName) throws IOException {
+    jarOutputStream.putNextEntry(new JarEntry(entryClassName + ".class"));
+    jarOutputStream.write(classBytes(entryClassName));
+    jarOutputStream.closeEntry();
+  }
+
+  private static void writeBootstrapJarFile(OutputStream output) throws IOException {
+    try(JarOutputStream jarOutputStream = new JarOutputStream(output)) {
+      for(String runtimeClassName : RUNTIME_CLASS_NAMES) {
+        addEntryToBootstrapJarFile(jarOutputStream, runtimeClassName);
       }
-      jarOutputStream.putNextEntry(new JarEntry(entryClassName + ".class"));
-      copy(input, jarOutputStream);
-      jarOutputStream.closeEntry();
     }
   }
 
   private static Path createBootstrapJarFile() throws IOException {
     Path bootstrapJarFile = Files.createTempFile("--agent-runtime-jar--", "");
-    try(OutputStream output = Files.newOutputStream(bootstrapJarFile);
-        JarOutputStream jarOutputStream = new JarOutputStream(output)) {
-      addEntryToBootstrapJarFile(jarOutputStream, AGENT_RUNTIME_NAME);
-      addEntryToBootstrapJarFile(jarOutputStream, AgentRuntime.Cache.class.getName().replace('.', '/'));
-      addEntryToBootstrapJarFile(jarOutputStream, ValueType.class.getName().replace('.', '/'));
+    try(OutputStream output = Files.newOutputStream(bootstrapJarFile)) {
+      writeBootstrapJarFile(output);
     }
     return bootstrapJarFile;
   }
 
+  // the classes that produce the transformed classes, with their nested classes
+  private static final Class<?>[] TRANSFORMING_CLASSES = {
+      Agent.class, ValueTypeInstrRewriter.class, ClassEnhancer.class, AnnotatedClasses.class,
+      ValueTypeChecker.class, ValueTypeRewriter.class, ClassMatcher.class,
+      ClassReader.class, ClassWriter.class  // the version of ASM
+  };
+
+  /**
+   * Returns a hash of the bytecode of the agent, the enhancer, ASM and the runtime,
+   * if the code of one of them change, the hash change.
+   */
+  private static String agentVersion() throws IOException {
+    ArrayDeque<String> pendingNames = new ArrayDeque<>();
+    for (Class<?> transformingClass : TRANSFORMING_CLASSES) {
+      pendingNames.add(transformingClass.getName().replace('.', '/'));
+    }
+    pendingNames.addAll(Arrays.asList(RUNTIME_CLASS_NAMES));
+    HashSet<String> visitedNames = new HashSet<>();
+    ArrayList<byte[]> parts = new ArrayList<>();
+    while (!pendingNames.isEmpty()) {
+      String className = pendingNames.poll();
+      if (!visitedNames.add(className)) {
+        continue;
+      }
+      byte[] content = classBytes(className);
+      parts.add(content);
+      new ClassReader(content).accept(new ClassVisitor(Opcodes.ASM9) {
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+          if (name.startsWith(className + '$')) {
+            pendingNames.add(name);
+          }
+        }
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+    return TransformCache.hash(parts.toArray(new byte[0][]));
+  }
+
+  static byte[] rewrite(byte[] classfileBuffer) {
+    return rewrite(classfileBuffer, null);
+  }
+
+  static byte[] rewrite(byte[] classfileBuffer, Predicate<? super String> allocationMatcher) {
+    return rewrite(classfileBuffer, allocationMatcher, true);
+  }
+
+  static byte[] rewrite(byte[] classfileBuffer, Predicate<? super String> allocationMatcher, boolean redirectIdentityHashMap) {
+    ClassReader reader = new ClassReader(classfileBuffer);
+    ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+    ValueTypeInstrRewriter valueTypeInstrRewriter = new ValueTypeInstrRewriter(writer, allocationMatcher, redirectIdentityHashMap);
+    reader.accept(valueTypeInstrRewriter, 0);
+
+    if (valueTypeInstrRewriter.isTransformed()) {
+      //if (className.equals("org/opentest4j/AssertionFailedError")) {  // DEBUG
+      //  CheckClassAdapter.verify(new ClassReader(writer.toByteArray()), true, new PrintWriter(System.err));
+      //}
+
+      return writer.toByteArray();
+    }
+    return null;
+  }
+
+  // enhances the class if needed, then rewrites the identity operations,
+  // a class being retransformed is not enhanced, a retransformation can not change its modifiers or its version
+  static byte[] enhanceAndRewrite(byte[] classfileBuffer, Class<?> classBeingRedefined, Predicate<? super String> allocationMatcher, boolean redirectIdentityHashMap, ClassEnhancer enhancer) {
+    byte[] enhanced = enhancer == null || classBeingRedefined != null ? null : enhancer.enhance(classfileBuffer);
+    byte[] transformed = rewrite(enhanced == null ? classfileBuffer : enhanced, allocationMatcher, redirectIdentityHashMap);
+    return transformed == null ? enhanced : transformed;
+  }
+
+  // the annotated classes are enhanced to value classes when they are loaded
+  private static ClassEnhancer createEnhancer(AgentOptions options) {
+    if (!Boolean.parseBoolean(options.get("enhance", "false"))) {
+      return null;
+    }
+    int valhallaVersion = ClassEnhancer.valhallaVersion();
+    if (valhallaVersion == -1) {
+      System.err.println("einherjar: enhance is ignored, the VM does not support value classes or --enable-preview is not set");
+      return null;
+    }
+    return new ClassEnhancer(options.get("annotation", DEFAULT_ANNOTATION_NAME), valhallaVersion, new ClassEnhancer.FailureReporter() {
+      @Override
+      public void report(String className, ValueTypeChecker.Issue issue, String message) {
+        System.err.println("einherjar: " + className.replace('/', '.') + " is not enhanced, " + issue + " " + message);
+      }
+    });
+  }
+
+  private static boolean installed;
+  private static final ThreadLocal<Boolean> TRANSFORMING = new ThreadLocal<>();
+
+  /**
+   * Entry point when the agent is specified on the command line with {@code -javaagent}.
+   */
   public static void premain(String agentArgs, Instrumentation instrumentation) throws IOException {
-    Path bootstrapJarFile = createBootstrapJarFile();
+    install(agentArgs, instrumentation, false);
+  }
+
+  /**
+   * Entry point when the agent is loaded into a running VM using the Attach API,
+   * the classes already loaded are re-transformed.
+   * If the agent is already installed, only the runtime options (checking, metrics, sample, report, jmx) are applied.
+   */
+  public static void agentmain(String agentArgs, Instrumentation instrumentation) throws IOException {
+    install(agentArgs, instrumentation, true);
+  }
+
+  private static synchronized void install(String agentArgs, Instrumentation instrumentation, boolean retransform) throws IOException {
+    AgentOptions options = AgentOptions.parse(agentArgs);
+    if (installed) {
+      configureRuntime(options);
+      return;
+    }
+
+    ClassEnhancer enhancer = createEnhancer(options);
+
+    String cacheDirectory = options.get("cache", null);
+    // the enhanced classes depend on the version of the VM
+    String transformationConfig = options.transformationConfig() + (enhancer == null ? "" : ";java=" + System.getProperty("java.specification.version"));
+    TransformCache cache = cacheDirectory == null ?
+        null :
+        TransformCache.open(Paths.get(cacheDirectory), agentVersion(), transformationConfig);
+
+    Path bootstrapJarFile = cache == null ?
+        createBootstrapJarFile() :
+        cache.bootstrapJarFile(Agent::writeBootstrapJarFile);
     instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(bootstrapJarFile.toFile()));
+    configureRuntime(options);
+    installed = true;
+
+    // the allocations of the annotated classes are counted
+    AnnotatedClasses allocationClasses = Boolean.parseBoolean(options.get("allocations", "false")) ?
+        new AnnotatedClasses(options.get("annotation", DEFAULT_ANNOTATION_NAME)) :
+        null;
 
+    // load the classes used by the transformer before installing it to avoid class circularity errors
+    byte[] warmupClass = classBytes(ValueTypeInstrRewriter.class.getName().replace('.', '/'));
+    enhanceAndRewrite(warmupClass, null, allocationClasses == null ? null : allocationClasses.matcher(Agent.class.getClassLoader()), true, enhancer);
+    if (cache != null) {
+      cache.lookup(cache.key(warmupClass, true));
+    }
+
+    boolean canRetransform = retransform && instrumentation.isRetransformClassesSupported();
+    ClassLoader platformClassLoader = ClassLoader.getSystemClassLoader().getParent();
     instrumentation.addTransformer(new ClassFileTransformer() {
       public byte[] transform(ClassLoader loader,
                   String className,
@@ -63,32 +268,123 @@ public class Agent {
                   byte[] classfileBuffer)
           throws IllegalClassFormatException {
 
+        if (TRANSFORMING.get() != null) {
+          return null;  // a class loaded by the transformer itself
+        }
+        TRANSFORMING.set(Boolean.TRUE);
         try {
-          if (className.equals(AGENT_RUNTIME_NAME)) {
+          if (className != null && className.startsWith(AGENT_RUNTIME_PACKAGE)) {
             //System.err.println("bailout " + className);
             return null;
           }
+          if (loader == null && className != null && className.startsWith("jdk/jfr/")) {
+            // JFR instruments the constructors of the exceptions to call its own classes
+            return null;
+          }
+          if (loader == null && canRetransform) {
+            // when attached, the JDK is already running, transforming one of its classes
+            // requires its module to read the unnamed modules which may need a class not yet loaded
+            return null;
+          }
 
-          ClassReader reader = new ClassReader(classfileBuffer);
-          ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
-          ValueTypeInstrRewriter valueTypeInstrRewriter = new ValueTypeInstrRewriter(writer);
-          reader.accept(valueTypeInstrRewriter, 0);
-
-          if (valueTypeInstrRewriter.isTransformed()) {
-            //System.err.println("transform " + className);
-
-            //if (className.equals("org/opentest4j/AssertionFailedError")) {  // DEBUG
-            //  CheckClassAdapter.verify(new ClassReader(writer.toByteArray()), true, new PrintWriter(System.err));
-            //}
+          Predicate<String> allocationMatcher = allocationClasses == null ? null : allocationClasses.matcher(loader);
+          // the JDK classes keep their IdentityHashMap, the agent runtime relies on them,
+          // this includes the serialization constructors generated by the JDK in their own class loader,
+          // they allocate the deserialized IdentityHashMap without calling its constructor
+          boolean redirectIdentityHashMap = loader != null && loader != platformClassLoader &&
+              (className == null || !className.startsWith(JDK_REFLECT_PACKAGE));
+          // the allocation sites depend on the annotations of the other classes, so they are not cached,
+          // a class retransformed without being enhanced must not be cached as the enhanced class
+          if (cache == null || allocationMatcher != null || (enhancer != null && classBeingRedefined != null)) {
+            return enhanceAndRewrite(classfileBuffer, classBeingRedefined, allocationMatcher, redirectIdentityHashMap, enhancer);
+          }
 
-            return writer.toByteArray();
+          String key = cache.key(classfileBuffer, redirectIdentityHashMap);
+          TransformCache.Entry entry = cache.lookup(key);
+          if (entry == TransformCache.Entry.UNCHANGED_ENTRY) {
+            return null;
+          }
+          if (entry != TransformCache.Entry.MISS) {
+            return entry.transformed;
           }
-          return null;
+          byte[] transformed = enhanceAndRewrite(classfileBuffer, classBeingRedefined, allocationMatcher, redirectIdentityHashMap, enhancer);
+          cache.store(key, transformed);
+          return transformed;
         } catch (Throwable t) {
           t.printStackTrace(System.err);
           throw t;
+        } finally {
+          TRANSFORMING.remove();
         }
       }
-    }, false);
+    }, canRetransform);
+
+    if (canRetransform) {
+      retransformLoadedClasses(instrumentation);
+    }
+  }
+
+  // called once the bootstrap jar is appended so the runtime classes are loaded by the bootstrap class loader
+  private static void configureRuntime(AgentOptions options) throws IOException {
+    AgentRuntime.setCheckingEnabled(Boolean.parseBoolean(options.get("checking", "true")));
+    AgentRuntime.setMetricsEnabled(Boolean.parseBoolean(options.get("metrics", "false")));
+    AgentRuntime.setSamplingRate(Integer.parseInt(options.get("sample", "1")));
+    String reportFile = options.get("report", null);
+    if (reportFile != null) {
+      AgentRuntime.reportViolationsTo(reportFile);
+    }
+    if (Boolean.parseBoolean(options.get("allocations", "false"))) {
+      AgentRuntime.reportAllocationsAtExit();
+    }
+    if (Boolean.parseBoolean(options.get("jmx", "false"))) {
+      AgentControl.register();
+    }
+  }
+
+  private static final int RETRANSFORM_BATCH_SIZE = 1_024;
+
+  private static boolean isRetransformable(Instrumentation instrumentation, ClassLoader platformClassLoader, Class<?> type) {
+    if (type.isArray() || type.isPrimitive() || !instrumentation.isModifiableClass(type)) {
+      return false;
+    }
+    // like with premain, the JDK classes already loaded are not transformed,
+    // the agent runtime relies on them
+    ClassLoader loader = type.getClassLoader();
+    if (loader == null || loader == platformClassLoader) {
+      return false;
+    }
+    // do not retransform the agent itself and ASM
+    return !sameCodeSource(type, Agent.class) && !sameCodeSource(type, ClassReader.class);
+  }
+
+  private static boolean sameCodeSource(Class<?> type1, Class<?> type2) {
+    CodeSource codeSource1 = type1.getProtectionDomain().getCodeSource();
+    CodeSource codeSource2 = type2.getProtectionDomain().getCodeSource();
+    return codeSource1 != null && codeSource2 != null && Objects.equals(codeSource1.getLocation(), codeSource2.getLocation());
+  }
+
+  private static void retransformLoadedClasses(Instrumentation instrumentation) {
+    ClassLoader platformClassLoader = ClassLoader.getSystemClassLoader().getParent();
+    ArrayList<Class<?>> classes = new ArrayList<>();
+    for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+      if (isRetransformable(instrumentation, platformClassLoader, type)) {
+        classes.add(type);
+      }
+    }
+    for (int i = 0; i < classes.size(); i += RETRANSFORM_BATCH_SIZE) {
+      List<Class<?>> batch = classes.subList(i, Math.min(classes.size(), i + RETRANSFORM_BATCH_SIZE));
+      try {
+        instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+      } catch (Throwable t) {
+        // one class of the batch can not be retransformed, try one by one
+        for (Class<?> type : batch) {
+          try {
+            instrumentation.retransformClasses(type);
+          } catch (Throwable t2) {
+            System.err.println("einherjar: can not retransform " + type.getName() + " " + t2);
+          }
+        }
+      }
+    }
   }
 }
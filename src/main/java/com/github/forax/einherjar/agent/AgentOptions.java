@@ -0,0 +1,66 @@
+package com.github.forax.einherjar.agent;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Options of the agent, specified as a comma separated list of key=value,
+ * by example {@code -javaagent:einherjar.jar=cache=/tmp/einherjar-cache}.
+ */
+final class AgentOptions {
+  private static final Set<String> KNOWN_OPTIONS = unmodifiableSet(new HashSet<>(Arrays.asList(
+      "allocations", "annotation", "cache", "checking", "enhance", "jmx", "metrics", "report", "sample"
+  )));
+
+  // options that do not change the way the classes are transformed
+  private static final Set<String> NON_TRANSFORMING_OPTIONS = unmodifiableSet(new HashSet<>(Arrays.asList(
+      "cache", "checking", "jmx", "metrics", "report", "sample"
+  )));
+
+  private final TreeMap<String, String> optionMap;
+
+  private AgentOptions(TreeMap<String, String> optionMap) {
+    this.optionMap = optionMap;
+  }
+
+  static AgentOptions parse(String agentArgs) {
+    TreeMap<String, String> optionMap = new TreeMap<>();
+    if (agentArgs != null && !agentArgs.isEmpty()) {
+      for (String part : agentArgs.split(",")) {
+        int index = part.indexOf('=');
+        String key = index == -1 ? part : part.substring(0, index);
+        String value = index == -1 ? "true" : part.substring(index + 1);
+        if (!KNOWN_OPTIONS.contains(key)) {
+          throw new IllegalArgumentException("unknown agent option " + key);
+        }
+        if (optionMap.putIfAbsent(key, value) != null) {
+          throw new IllegalArgumentException("agent option " + key + " defined twice");
+        }
+      }
+    }
+    return new AgentOptions(optionMap);
+  }
+
+  String get(String key, String defaultValue) {
+    return optionMap.getOrDefault(key, defaultValue);
+  }
+
+  /**
+   * Returns a canonical string of all the options that have an influence on the transformation.
+   */
+  String transformationConfig() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, String> entry : optionMap.entrySet()) {
+      if (NON_TRANSFORMING_OPTIONS.contains(entry.getKey())) {
+        continue;
+      }
+      builder.append(entry.getKey()).append('=').append(entry.getValue()).append(',');
+    }
+    return builder.toString();
+  }
+}
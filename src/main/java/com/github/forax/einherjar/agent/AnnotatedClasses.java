@@ -0,0 +1,84 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.core.ClassMatcher;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Finds the classes annotated with the value type annotation by reading their classfile,
+ * so the classes do not have to be loaded.
+ */
+final class AnnotatedClasses {
+  private final String annotationDescriptor;
+  private final WeakHashMap<ClassLoader, HashMap<String, Boolean>> cacheMap = new WeakHashMap<>();  // guarded by this
+
+  AnnotatedClasses(String annotationName) {
+    this.annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
+  }
+
+  private boolean readIsAnnotated(ClassLoader loader, String internalName) {
+    try(InputStream input = loader.getResourceAsStream(internalName + ".class")) {
+      if (input == null) {
+        return false;
+      }
+      ClassMatcher classMatcher = new ClassMatcher(new Predicate<String>() {
+        @Override
+        public boolean test(String name) {
+          return false;
+        }
+      }, new Predicate<String>() {
+        @Override
+        public boolean test(String descriptor) {
+          return descriptor.equals(annotationDescriptor);
+        }
+      });
+      new ClassReader(input).accept(classMatcher, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      return classMatcher.isMatching();
+    } catch (IOException | IllegalArgumentException e) {
+      return false;  // not a readable classfile
+    }
+  }
+
+  boolean isAnnotated(ClassLoader loader, String internalName) {
+    if (loader == null || internalName.startsWith("[")) {
+      return false;  // the classes of the JDK are not annotated
+    }
+    synchronized (this) {
+      HashMap<String, Boolean> cache = cacheMap.get(loader);
+      if (cache != null) {
+        Boolean annotated = cache.get(internalName);
+        if (annotated != null) {
+          return annotated;
+        }
+      }
+    }
+    boolean annotated = readIsAnnotated(loader, internalName);
+    synchronized (this) {
+      HashMap<String, Boolean> cache = cacheMap.get(loader);
+      if (cache == null) {
+        cache = new HashMap<>();
+        cacheMap.put(loader, cache);
+      }
+      cache.put(internalName, annotated);
+    }
+    return annotated;
+  }
+
+  /**
+   * Returns a predicate that tests if a class visible from the class loader is annotated.
+   */
+  Predicate<String> matcher(ClassLoader loader) {
+    return new Predicate<String>() {
+      @Override
+      public boolean test(String internalName) {
+        return isAnnotated(loader, internalName);
+      }
+    };
+  }
+}
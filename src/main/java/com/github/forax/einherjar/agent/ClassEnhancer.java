@@ -0,0 +1,92 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.core.ClassMatcher;
+import com.github.forax.einherjar.core.ValueTypeChecker;
+import com.github.forax.einherjar.core.ValueTypeRewriter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Predicate;
+
+/**
+ * Enhances the annotated classes to value classes when they are loaded,
+ * like {@link com.github.forax.einherjar.core.Facade#enhance} does for a jar.
+ */
+final class ClassEnhancer {
+  /**
+   * Reports the classes that can not be enhanced.
+   */
+  interface FailureReporter {
+    void report(String className, ValueTypeChecker.Issue issue, String message);
+  }
+
+  private final String annotationDescriptor;
+  private final int version;
+  private final FailureReporter failureReporter;
+
+  ClassEnhancer(String annotationName, int version, FailureReporter failureReporter) {
+    this.annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
+    this.version = version;
+    this.failureReporter = failureReporter;
+  }
+
+  /**
+   * Returns the version of the running VM if it supports value classes
+   * and the preview features are enabled, -1 otherwise.
+   */
+  static int valhallaVersion() {
+    try {
+      // only exists on a VM that supports value classes
+      Class.forName("java.lang.IdentityException", false, null);
+    } catch (ClassNotFoundException e) {
+      return -1;
+    }
+    if (!ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) {
+      return -1;
+    }
+    String specificationVersion = System.getProperty("java.specification.version");
+    return Integer.parseInt(specificationVersion);
+  }
+
+  /**
+   * Returns the enhanced classfile or null if the class is not annotated or can not be enhanced.
+   */
+  byte[] enhance(byte[] classfileBuffer) {
+    ClassReader reader = new ClassReader(classfileBuffer);
+    ClassMatcher classMatcher = new ClassMatcher(new Predicate<String>() {
+      @Override
+      public boolean test(String name) {
+        return false;
+      }
+    }, new Predicate<String>() {
+      @Override
+      public boolean test(String descriptor) {
+        return descriptor.equals(annotationDescriptor);
+      }
+    });
+    reader.accept(classMatcher, ClassReader.SKIP_CODE);
+    if (!classMatcher.isMatching()) {
+      return null;
+    }
+
+    class IssueChecker implements ValueTypeChecker.IssueReporter {
+      boolean hasIssue;
+
+      @Override
+      public void report(ValueTypeChecker.Issue issue, String className, String message) {
+        failureReporter.report(className, issue, message);
+        hasIssue = true;
+      }
+    }
+    IssueChecker issueChecker = new IssueChecker();
+    ClassWriter writer = new ClassWriter(reader, 0);
+    ValueTypeRewriter rewriter = new ValueTypeRewriter(writer, version);
+    reader.accept(new ValueTypeChecker(issueChecker, rewriter), 0);
+    if (issueChecker.hasIssue) {
+      return null;
+    }
+    return writer.toByteArray();
+  }
+}
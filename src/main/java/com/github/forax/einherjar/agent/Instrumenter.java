@@ -0,0 +1,166 @@
+package com.github.forax.einherjar.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import static com.github.forax.einherjar.agent.Agent.AGENT_RUNTIME_PACKAGE;
+import static com.github.forax.einherjar.agent.Agent.RUNTIME_CLASS_NAMES;
+
+/**
+ * Applies ahead of time the rewriting done by the agent at load time,
+ * the generated jar contains the agent runtime so it can run without the agent.
+ */
+public final class Instrumenter {
+  private Instrumenter() {
+    throw new AssertionError();
+  }
+
+  // number of entries read in memory before being rewritten in parallel
+  private static final int BATCH_SIZE = 1_024;
+
+  private static boolean isSignatureFile(String entryName) {
+    if (!entryName.startsWith("META-INF/") || entryName.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    return entryName.endsWith(".SF") || entryName.endsWith(".RSA") || entryName.endsWith(".DSA") || entryName.endsWith(".EC");
+  }
+
+  private static boolean isInstrumentable(String entryName) {
+    return entryName.endsWith(".class") &&
+        !entryName.endsWith("module-info.class") &&
+        !entryName.startsWith(AGENT_RUNTIME_PACKAGE);
+  }
+
+  private static final class Resource {
+    private final JarEntry entry;
+    private byte[] content;
+
+    private Resource(JarEntry entry, byte[] content) {
+      this.entry = entry;
+      this.content = content;
+    }
+  }
+
+  private static void writeBatch(List<Resource> batch, JarOutputStream jarOutput) throws IOException {
+    batch.parallelStream().forEach(resource -> {
+      String entryName = resource.entry.getName();
+      if (!isInstrumentable(entryName)) {
+        return;
+      }
+      byte[] transformed;
+      try {
+        transformed = Agent.rewrite(resource.content);
+      } catch (RuntimeException e) {
+        throw new IllegalStateException("error while instrumenting " + entryName, e);
+      }
+      if (transformed != null) {
+        resource.content = transformed;
+      }
+    });
+    for (Resource resource : batch) {
+      JarEntry entry = new JarEntry(resource.entry.getName());
+      entry.setTime(resource.entry.getTime());
+      jarOutput.putNextEntry(entry);
+      jarOutput.write(resource.content);
+      jarOutput.closeEntry();
+    }
+    batch.clear();
+  }
+
+  /**
+   * Instruments all the classes of the jar file {@code path} and writes the result into {@code toPath}.
+   * The signature files are removed and the classes of the agent runtime are added.
+   * The jar is written in a temporary file renamed to {@code toPath}, so a failure does not leave a truncated jar.
+   */
+  public static void instrument(Path path, Path toPath) throws IOException {
+    Objects.requireNonNull(path);
+    Objects.requireNonNull(toPath);
+
+    Path temporary = Files.createTempFile(toPath.toAbsolutePath().getParent(), toPath.getFileName().toString(), ".tmp");
+    try {
+      instrument(path, temporary, toPath);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private static void instrument(Path path, Path temporary, Path toPath) throws IOException {
+    HashSet<String> entryNames = new HashSet<>();
+    try(JarFile jarFile = new JarFile(path.toFile());
+        OutputStream output = Files.newOutputStream(temporary);
+        JarOutputStream jarOutput = new JarOutputStream(output)) {
+      ArrayList<Resource> batch = new ArrayList<>();
+      for (JarEntry entry : Collections.list(jarFile.entries())) {
+        String entryName = entry.getName();
+        if (entry.isDirectory() || isSignatureFile(entryName)) {
+          continue;  // skip
+        }
+        entryNames.add(entryName);
+        byte[] content;
+        try(InputStream input = jarFile.getInputStream(entry)) {
+          content = Agent.readAllBytes(input);
+        }
+        batch.add(new Resource(entry, content));
+        if (batch.size() == BATCH_SIZE) {
+          writeBatch(batch, jarOutput);
+        }
+      }
+      writeBatch(batch, jarOutput);
+
+      // add the agent runtime
+      for (String runtimeClassName : RUNTIME_CLASS_NAMES) {
+        String entryName = runtimeClassName + ".class";
+        if (entryNames.contains(entryName)) {
+          continue;  // already present
+        }
+        jarOutput.putNextEntry(new JarEntry(entryName));
+        jarOutput.write(Agent.classBytes(runtimeClassName));
+        jarOutput.closeEntry();
+      }
+    }
+    moveAtomically(temporary, toPath);
+  }
+
+  private static void moveAtomically(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Instruments several jar files in parallel, {@code toPathMapper} returns the path of each instrumented jar file.
+   */
+  public static void instrumentAll(List<Path> paths, Function<? super Path, ? extends Path> toPathMapper) throws IOException {
+    Objects.requireNonNull(paths);
+    Objects.requireNonNull(toPathMapper);
+
+    try {
+      paths.parallelStream().forEach(path -> {
+        try {
+          instrument(path, toPathMapper.apply(path));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.github.forax.einherjar.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk cache of the transformed classes.
+ *
+ * The key of an entry is a hash of the agent version, the agent configuration,
+ * the kind of class loader and the bytes of the original classfile, the value is the transformed classfile
+ * or a marker indicating that the class does not need to be transformed.
+ *
+ * Entries are written asynchronously by a daemon thread, using a temporary file
+ * and an atomic move so several VMs can share the same cache directory.
+ */
+final class TransformCache {
+  private static final byte UNCHANGED = 0;
+  private static final byte TRANSFORMED = 1;
+  private static final byte[] UNCHANGED_CONTENT = { UNCHANGED };
+
+  private final Path directory;
+  private final String agentVersion;
+  private final byte[] fingerprint;
+  private final ThreadPoolExecutor writer;
+
+  private TransformCache(Path directory, String agentVersion, byte[] fingerprint) {
+    this.directory = directory;
+    this.agentVersion = agentVersion;
+    this.fingerprint = fingerprint;
+    // a single writer thread, if the writer can not keep up, the entries are dropped
+    this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(16_384),
+        runnable -> {
+          Thread thread = new Thread(runnable, "einherjar-cache-writer");
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.DiscardPolicy());
+    // start the thread now, so the executor classes are not loaded by a call to store()
+    this.writer.prestartAllCoreThreads();
+  }
+
+  static TransformCache open(Path directory, String agentVersion, String config) throws IOException {
+    Files.createDirectories(directory);
+    byte[] fingerprint = (agentVersion + '/' + config).getBytes(StandardCharsets.UTF_8);
+    return new TransformCache(directory, agentVersion, fingerprint);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  static String hash(byte[]... parts) {
+    MessageDigest digest = sha256();
+    for (byte[] part : parts) {
+      digest.update(part);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static final byte[] KEEP_IDENTITY_HASH_MAP = { 0 };
+  private static final byte[] REDIRECT_IDENTITY_HASH_MAP = { 1 };
+
+  // the IdentityHashMap are only redirected for the classes of the application class loaders
+  String key(byte[] classfileBuffer, boolean redirectIdentityHashMap) {
+    return hash(fingerprint, redirectIdentityHashMap ? REDIRECT_IDENTITY_HASH_MAP : KEEP_IDENTITY_HASH_MAP, classfileBuffer);
+  }
+
+  private Path entryPath(String key) {
+    return directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+
+  /**
+   * Result of a lookup in the cache.
+   */
+  static final class Entry {
+    static final Entry MISS = new Entry(null);
+    static final Entry UNCHANGED_ENTRY = new Entry(null);
+
+    final byte[] transformed;
+
+    private Entry(byte[] transformed) {
+      this.transformed = transformed;
+    }
+  }
+
+  Entry lookup(String key) {
+    Path entryPath = entryPath(key);
+    // a miss should not create an exception, JFR may be tracing the creation of exceptions
+    // and the class being transformed may be the JFR tracer itself
+    if (!entryPath.toFile().isFile()) {
+      return Entry.MISS;
+    }
+    byte[] content;
+    try {
+      content = Files.readAllBytes(entryPath);
+    } catch (IOException e) {
+      return Entry.MISS;  // treat an unreadable entry as a miss
+    }
+    if (content.length == 1 && content[0] == UNCHANGED) {
+      return Entry.UNCHANGED_ENTRY;
+    }
+    if (content.length > 1 && content[0] == TRANSFORMED) {
+      return new Entry(Arrays.copyOfRange(content, 1, content.length));
+    }
+    return Entry.MISS;  // corrupted entry, it will be overwritten
+  }
+
+  /**
+   * Asynchronously stores the transformed classfile, {@code null} means unchanged.
+   */
+  void store(String key, byte[] transformed) {
+    // do not use a lambda here, this code is called while a class is loading
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (transformed == null) {
+            writeAtomically(entryPath(key), UNCHANGED_CONTENT);
+          } else {
+            byte[] content = new byte[transformed.length + 1];
+            content[0] = TRANSFORMED;
+            System.arraycopy(transformed, 0, content, 1, transformed.length);
+            writeAtomically(entryPath(key), content);
+          }
+        } catch (IOException e) {
+          // the cache is best effort
+        }
+      }
+    });
+  }
+
+  private static void writeAtomically(Path path, byte[] content) throws IOException {
+    Path parent = path.getParent();
+    Files.createDirectories(parent);
+    Path tmp = Files.createTempFile(parent, "--entry--", ".tmp");
+    try {
+      Files.write(tmp, content);
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  interface JarWriter {
+    void write(OutputStream output) throws IOException;
+  }
+
+  /**
+   * Returns the path of the bootstrap jar file of the agent runtime,
+   * the jar file is created only if it does not exist yet.
+   */
+  Path bootstrapJarFile(JarWriter jarWriter) throws IOException {
+    Path jarFile = directory.resolve("agent-runtime-" + agentVersion.substring(0, 16) + ".jar");
+    if (Files.exists(jarFile)) {
+      return jarFile;
+    }
+    Path tmp = Files.createTempFile(directory, "--agent-runtime-jar--", ".tmp");
+    try {
+      try (OutputStream output = Files.newOutputStream(tmp)) {
+        jarWriter.write(output);
+      }
+      try {
+        Files.move(tmp, jarFile, StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        // created concurrently by another VM
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    return jarFile;
+  }
+}
@@ -11,6 +11,7 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandleInfo;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.util.function.Predicate;
 
 import static com.github.forax.einherjar.agent.Agent.AGENT_RUNTIME_NAME;
 import static java.lang.invoke.MethodType.methodType;
@@ -24,12 +25,14 @@ import static org.objectweb.asm.Opcodes.IF_ACMPNE;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.MONITORENTER;
+import static org.objectweb.asm.Opcodes.NEW;
 import static org.objectweb.asm.Opcodes.POP;
 import static org.objectweb.asm.Opcodes.V1_6;
 import static org.objectweb.asm.Opcodes.V1_7;
 
 class ValueTypeInstrRewriter extends ClassVisitor {
   private static final Handle BSM;
+  private static final Handle ALLOCATION_BSM;
   static {
     MethodHandles.Lookup lookup = MethodHandles.lookup();
     MethodHandle mh;
@@ -39,19 +42,56 @@ class ValueTypeInstrRewriter extends ClassVisitor {
     } catch (NoSuchMethodException | IllegalAccessException e) {
       throw new AssertionError(e);
     }
+    BSM = asHandle(lookup, mh);
+    try {
+      mh = lookup.findStatic(AgentRuntime.class, "allocationBsm",
+          methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, String.class, String.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+    ALLOCATION_BSM = asHandle(lookup, mh);
+  }
+
+  private static Handle asHandle(MethodHandles.Lookup lookup, MethodHandle mh) {
     MethodHandleInfo mhInfo = lookup.revealDirect(mh);
-    BSM = new Handle(mhInfo.getReferenceKind(),
+    return new Handle(mhInfo.getReferenceKind(),
         mhInfo.getDeclaringClass().getName().replace('.', '/'),
         mhInfo.getName(),
         mhInfo.getMethodType().toMethodDescriptorString(),
         false);
   }
 
+  private static final String IDENTITY_HASH_MAP_NAME = "java/util/IdentityHashMap";
+  private static final String VALUE_IDENTITY_HASH_MAP_NAME = Agent.AGENT_RUNTIME_PACKAGE + "ValueIdentityHashMap";
+
+  private final Predicate<? super String> allocationMatcher;
+  private final boolean redirectIdentityHashMap;
+  private String className;
   private boolean doNotUseInvokedynamic;
+  private boolean canUseInvokedynamic;
   private boolean transformed;
 
   public ValueTypeInstrRewriter(ClassVisitor classVisitor) {
+    this(classVisitor, null);
+  }
+
+  /**
+   * Creates a rewriter that also counts the allocations of the classes accepted by the allocation matcher,
+   * the allocations are not counted if the allocation matcher is null.
+   */
+  public ValueTypeInstrRewriter(ClassVisitor classVisitor, Predicate<? super String> allocationMatcher) {
+    this(classVisitor, allocationMatcher, true);
+  }
+
+  /**
+   * Creates a rewriter that also redirects the allocations of {@link java.util.IdentityHashMap}
+   * to a map that compares the instances of the value classes by their fields
+   * if redirectIdentityHashMap is true.
+   */
+  public ValueTypeInstrRewriter(ClassVisitor classVisitor, Predicate<? super String> allocationMatcher, boolean redirectIdentityHashMap) {
     super(ASM9, classVisitor);
+    this.allocationMatcher = allocationMatcher;
+    this.redirectIdentityHashMap = redirectIdentityHashMap;
   }
 
   public boolean isTransformed() {
@@ -61,34 +101,83 @@ class ValueTypeInstrRewriter extends ClassVisitor {
   @Override
   public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
     super.visit(version, access, name, signature, superName, interfaces);
-    this.doNotUseInvokedynamic = /*version < V1_7 */ true;
+    this.className = name.replace('/', '.');
+    // the classes of the application use invokedynamic so each call site has its own sampler,
+    // the classes of the JDK (that do not redirect IdentityHashMap) use invokestatic because
+    // linking an invokedynamic may run the JDK code being instrumented
+    this.doNotUseInvokedynamic = !redirectIdentityHashMap || (version & 0xFFFF) < V1_7;
+    this.canUseInvokedynamic = (version & 0xFFFF) >= V1_7;
   }
 
   @Override
   public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
     MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
     return new MethodVisitor(ASM9, mv) {
+      private int line = -1;
+      private int pendingIdentityHashMaps;  // number of redirected NEW not yet initialized
+
+      // the call site is passed as a constant string to the runtime, so the metrics
+      // and the violation reports can be grouped by call site
+      private String site() {
+        return className + '.' + name + (line == -1 ? "" : ":" + line);
+      }
+
+      private void visitSite() {
+        mv.visitLdcInsn(site());
+      }
+
+      @Override
+      public void visitLineNumber(int line, Label start) {
+        this.line = line;
+        super.visitLineNumber(line, start);
+      }
+
       @Override
       public void visitInsn(int opcode) {
         if (opcode == MONITORENTER) {
           mv.visitInsn(DUP);
+          visitSite();
           if (doNotUseInvokedynamic) {
-            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "monitorenter", "(Ljava/lang/Object;)V", false);
+            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "monitorenter", "(Ljava/lang/Object;Ljava/lang/String;)V", false);
           } else {
-            mv.visitInvokeDynamicInsn("monitorenter", "(Ljava/lang/Object;)V", BSM);
+            mv.visitInvokeDynamicInsn("monitorenter", "(Ljava/lang/Object;Ljava/lang/String;)V", BSM);
           }
           transformed = true;
         }
         super.visitInsn(opcode);
       }
 
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+        if (opcode == NEW && redirectIdentityHashMap && type.equals(IDENTITY_HASH_MAP_NAME)) {
+          pendingIdentityHashMaps++;
+          super.visitTypeInsn(opcode, VALUE_IDENTITY_HASH_MAP_NAME);
+          transformed = true;
+          return;
+        }
+        super.visitTypeInsn(opcode, type);
+        if (opcode == NEW && allocationMatcher != null && allocationMatcher.test(type)) {
+          // each allocation site is linked to its own counter
+          String site = site();
+          if (canUseInvokedynamic) {
+            mv.visitInvokeDynamicInsn("allocation", "()V", ALLOCATION_BSM, site, type.replace('/', '.'));
+          } else {
+            mv.visitLdcInsn(site);
+            mv.visitLdcInsn(type.replace('/', '.'));
+            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "allocation", "(Ljava/lang/String;Ljava/lang/String;)V", false);
+          }
+          transformed = true;
+        }
+      }
+
       @Override
       public void visitJumpInsn(int opcode, Label label) {
         if (opcode == IF_ACMPEQ || opcode == IF_ACMPNE) {
+          visitSite();
           if (doNotUseInvokedynamic) {
-            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "acmp", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "acmp", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)Z", false);
           } else {
-            mv.visitInvokeDynamicInsn( "acmp", "(Ljava/lang/Object;Ljava/lang/Object;)Z", BSM);
+            mv.visitInvokeDynamicInsn( "acmp", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;)Z", BSM);
           }
           mv.visitJumpInsn(opcode == IF_ACMPEQ ? IFNE : IFEQ, label);
           transformed = true;
@@ -100,15 +189,22 @@ class ValueTypeInstrRewriter extends ClassVisitor {
       @Override
       public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
         if (opcode == INVOKESTATIC && owner.equals("java/lang/System") && name.equals("identityHashCode") && descriptor.equals("(Ljava/lang/Object;)I")) {
+          visitSite();
           if (doNotUseInvokedynamic) {
-            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "identityHashCode", "(Ljava/lang/Object;)I", false);
+            mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "identityHashCode", "(Ljava/lang/Object;Ljava/lang/String;)I", false);
           } else {
-            mv.visitInvokeDynamicInsn( "identityHashCode", "(Ljava/lang/Object;)I", BSM);
+            mv.visitInvokeDynamicInsn( "identityHashCode", "(Ljava/lang/Object;Ljava/lang/String;)I", BSM);
           }
           transformed = true;
           return;
         }
         if (opcode == INVOKESPECIAL && name.equals("<init>")) {
+          // only the constructor calls of the redirected allocations, not the super constructor calls
+          if (owner.equals(IDENTITY_HASH_MAP_NAME) && pendingIdentityHashMaps > 0) {
+            pendingIdentityHashMaps--;
+            super.visitMethodInsn(opcode, VALUE_IDENTITY_HASH_MAP_NAME, name, descriptor, isInterface);
+            return;
+          }
           switch (owner) {
             case "java/lang/ref/PhantomReference":
             case "java/lang/ref/SoftReference":
@@ -124,10 +220,11 @@ class ValueTypeInstrRewriter extends ClassVisitor {
                 default:
                   throw new AssertionError("invalid descriptor " + descriptor);
               }
+              visitSite();
               if (doNotUseInvokedynamic) {
-                mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "identityCheck", "(Ljava/lang/Object;)V", false);
+                mv.visitMethodInsn(INVOKESTATIC, AGENT_RUNTIME_NAME, "identityCheck", "(Ljava/lang/Object;Ljava/lang/String;)V", false);
               } else {
-                mv.visitInvokeDynamicInsn( "identityCheck", "(Ljava/lang/Object;)V", BSM);
+                mv.visitInvokeDynamicInsn( "identityCheck", "(Ljava/lang/Object;Ljava/lang/String;)V", BSM);
               }
               transformed = true;
               break;
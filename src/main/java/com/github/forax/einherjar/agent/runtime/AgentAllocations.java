@@ -0,0 +1,102 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the allocations of the value classes, by allocation site.
+ */
+final class AgentAllocations {
+  private static final int REPORT_SIZE = 50;
+
+  private static final ConcurrentHashMap<String, LongAdder> COUNTS = new ConcurrentHashMap<String, LongAdder>();
+  private static boolean reportAtExit;  // guarded by AgentAllocations.class
+
+  private AgentAllocations() {
+    throw new AssertionError();
+  }
+
+  static LongAdder counter(String site, String className) {
+    String key = className + ' ' + site;
+    LongAdder counter = COUNTS.get(key);
+    if (counter == null) {
+      LongAdder newCounter = new LongAdder();
+      counter = COUNTS.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  static final class ByCountComparator implements Comparator<Map.Entry<String, Long>> {
+    @Override
+    public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+      int compare = Long.compare(e2.getValue(), e1.getValue());
+      return compare != 0 ? compare : e1.getKey().compareTo(e2.getKey());
+    }
+  }
+
+  /**
+   * Returns the allocation counts, the most allocating sites first.
+   */
+  static Map<String, Long> rankedCounts() {
+    ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+    for (Map.Entry<String, LongAdder> entry : COUNTS.entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue().sum()));
+    }
+    Collections.sort(entries, new ByCountComparator());
+    LinkedHashMap<String, Long> map = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, Long> entry : entries) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    return map;
+  }
+
+  // the counters are not removed, they are referenced by the linked allocation sites
+  static void reset() {
+    for (LongAdder counter : COUNTS.values()) {
+      counter.reset();
+    }
+  }
+
+  static void report(PrintStream out) {
+    Map<String, Long> counts = rankedCounts();
+    out.println("einherjar: allocations of value classes (" + counts.size() + " site(s))");
+    int i = 0;
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      if (i++ == REPORT_SIZE) {
+        out.println("  ...");
+        break;
+      }
+      out.println("  " + entry.getValue() + ' ' + entry.getKey());
+    }
+  }
+
+  // no lambda or anonymous class, the class is loaded by the bootstrap class loader
+  static final class Report extends Thread {
+    Report() {
+      super("einherjar-allocation-report");
+    }
+
+    @Override
+    public void run() {
+      report(System.err);
+    }
+  }
+
+  static synchronized void reportAtExit() {
+    if (reportAtExit) {
+      return;
+    }
+    reportAtExit = true;
+    Runtime.getRuntime().addShutdownHook(new Report());
+  }
+}
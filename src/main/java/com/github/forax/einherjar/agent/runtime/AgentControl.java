@@ -0,0 +1,94 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Exposes the agent runtime as a platform MBean named {@code com.github.forax.einherjar:type=Agent}.
+ */
+public final class AgentControl implements AgentControlMBean {
+  public static final String OBJECT_NAME = "com.github.forax.einherjar:type=Agent";
+
+  @Override
+  public boolean isCheckingEnabled() {
+    return AgentRuntime.isCheckingEnabled();
+  }
+
+  @Override
+  public void setCheckingEnabled(boolean enabled) {
+    AgentRuntime.setCheckingEnabled(enabled);
+  }
+
+  @Override
+  public boolean isReportOnly() {
+    return AgentRuntime.isReportOnly();
+  }
+
+  @Override
+  public int getSamplingRate() {
+    return AgentRuntime.getSamplingRate();
+  }
+
+  @Override
+  public void setSamplingRate(int rate) {
+    AgentRuntime.setSamplingRate(rate);
+  }
+
+  @Override
+  public boolean isMetricsEnabled() {
+    return AgentRuntime.isMetricsEnabled();
+  }
+
+  @Override
+  public void setMetricsEnabled(boolean enabled) {
+    AgentRuntime.setMetricsEnabled(enabled);
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    return AgentRuntime.operationCounts();
+  }
+
+  @Override
+  public Map<String, Long> getSiteCounts() {
+    return AgentRuntime.siteCounts();
+  }
+
+  @Override
+  public Map<String, Long> getValueClassCounts() {
+    return AgentRuntime.valueClassCounts();
+  }
+
+  @Override
+  public void resetMetrics() {
+    AgentRuntime.resetMetrics();
+  }
+
+  @Override
+  public Map<String, Long> getAllocationCounts() {
+    return AgentRuntime.allocationCounts();
+  }
+
+  @Override
+  public void resetAllocationCounts() {
+    AgentRuntime.resetAllocationCounts();
+  }
+
+  /**
+   * Registers the MBean in the platform MBean server if it is not already registered.
+   */
+  public static void register() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.registerMBean(new AgentControl(), new ObjectName(OBJECT_NAME));
+    } catch (InstanceAlreadyExistsException e) {
+      // already registered
+    } catch (JMException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.util.Map;
+
+/**
+ * JMX interface to control the agent runtime.
+ *
+ * @see AgentControl
+ */
+public interface AgentControlMBean {
+  boolean isCheckingEnabled();
+  void setCheckingEnabled(boolean enabled);
+
+  boolean isReportOnly();
+
+  int getSamplingRate();
+  void setSamplingRate(int rate);
+
+  boolean isMetricsEnabled();
+  void setMetricsEnabled(boolean enabled);
+  Map<String, Long> getOperationCounts();
+  Map<String, Long> getSiteCounts();
+  Map<String, Long> getValueClassCounts();
+  void resetMetrics();
+
+  Map<String, Long> getAllocationCounts();
+  void resetAllocationCounts();
+}
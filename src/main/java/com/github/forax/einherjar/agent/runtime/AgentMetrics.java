@@ -0,0 +1,109 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the instrumented operations.
+ *
+ * The number of calls of each operation is recorded using a striped counter,
+ * the call sites and the value classes are only recorded when a value type is met.
+ */
+final class AgentMetrics {
+  static final int ACMP = 0;
+  static final int MONITORENTER = 1;
+  static final int IDENTITY_HASHCODE = 2;
+  static final int IDENTITY_CHECK = 3;
+  private static final String[] OPERATION_NAMES = { "acmp", "monitorenter", "identityHashCode", "identityCheck" };
+
+  private static final LongAdder[] CALL_COUNTS = newCounters();
+  private static final LongAdder[] VALUE_COUNTS = newCounters();
+  private static final ConcurrentHashMap<String, LongAdder>[] SITE_COUNTS = newCounterMaps();
+  private static final ConcurrentHashMap<String, LongAdder>[] VALUE_CLASS_COUNTS = newCounterMaps();
+
+  private AgentMetrics() {
+    throw new AssertionError();
+  }
+
+  private static LongAdder[] newCounters() {
+    LongAdder[] counters = new LongAdder[OPERATION_NAMES.length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ConcurrentHashMap<String, LongAdder>[] newCounterMaps() {
+    ConcurrentHashMap<String, LongAdder>[] maps = (ConcurrentHashMap<String, LongAdder>[]) new ConcurrentHashMap<?, ?>[OPERATION_NAMES.length];
+    for (int i = 0; i < maps.length; i++) {
+      maps[i] = new ConcurrentHashMap<String, LongAdder>();
+    }
+    return maps;
+  }
+
+  static String operationName(int operation) {
+    return OPERATION_NAMES[operation];
+  }
+
+  // no computeIfAbsent here, a lambda is not a good idea in a class loaded by the bootstrap class loader
+  private static void increment(ConcurrentHashMap<String, LongAdder> map, String key) {
+    LongAdder counter = map.get(key);
+    if (counter == null) {
+      LongAdder newCounter = new LongAdder();
+      counter = map.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.increment();
+  }
+
+  static void call(int operation) {
+    CALL_COUNTS[operation].increment();
+  }
+
+  static void valueMet(int operation, String site, Class<?> valueClass) {
+    VALUE_COUNTS[operation].increment();
+    increment(SITE_COUNTS[operation], site);
+    increment(VALUE_CLASS_COUNTS[operation], valueClass.getName());
+  }
+
+  static Map<String, Long> operationCounts() {
+    TreeMap<String, Long> map = new TreeMap<String, Long>();
+    for (int i = 0; i < OPERATION_NAMES.length; i++) {
+      map.put(OPERATION_NAMES[i], CALL_COUNTS[i].sum());
+      map.put(OPERATION_NAMES[i] + ".value", VALUE_COUNTS[i].sum());
+    }
+    return map;
+  }
+
+  private static Map<String, Long> snapshot(ConcurrentHashMap<String, LongAdder>[] maps) {
+    TreeMap<String, Long> map = new TreeMap<String, Long>();
+    for (int i = 0; i < maps.length; i++) {
+      for (Map.Entry<String, LongAdder> entry : maps[i].entrySet()) {
+        map.put(OPERATION_NAMES[i] + ' ' + entry.getKey(), entry.getValue().sum());
+      }
+    }
+    return map;
+  }
+
+  static Map<String, Long> siteCounts() {
+    return snapshot(SITE_COUNTS);
+  }
+
+  static Map<String, Long> valueClassCounts() {
+    return snapshot(VALUE_CLASS_COUNTS);
+  }
+
+  static void reset() {
+    for (int i = 0; i < OPERATION_NAMES.length; i++) {
+      CALL_COUNTS[i].reset();
+      VALUE_COUNTS[i].reset();
+      SITE_COUNTS[i].clear();
+      VALUE_CLASS_COUNTS[i].clear();
+    }
+  }
+}
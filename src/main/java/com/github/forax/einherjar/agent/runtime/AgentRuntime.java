@@ -2,177 +2,541 @@ package com.github.forax.einherjar.agent.runtime;
 
 import com.github.forax.einherjar.api.ValueType;
 
+import java.io.IOException;
+import java.lang.annotation.Annotation;
 import java.lang.invoke.CallSite;
 import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
-import java.util.ArrayList;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.lang.invoke.MethodType.methodType;
 
 public class AgentRuntime {
-  public static final class Cache extends ClassValue<Field[]> {
+  public static final class ValueTypeCache extends ClassValue<Boolean> {
+    private static final String VALUE_TYPE_NAME = ValueType.class.getName();
+
     @Override
-    protected Field[] computeValue(Class<?> type) {
-      ArrayList<Field> fields = new ArrayList<Field>();
-      for(Class<?> t = type; t != Object.class; t = t.getSuperclass()) {
-        for(Field field : t.getDeclaredFields()) {
-          field.setAccessible(true);
-          fields.add(field);
+    protected Boolean computeValue(Class<?> type) {
+      // the JDK classes are not annotated, do not parse their annotations because
+      // the annotation parsing may call instrumented JDK code recursively
+      if (type.getClassLoader() == null) {
+        return false;
+      }
+      // compare the annotation by name, if the agent is attached dynamically,
+      // the annotation may have been loaded by another class loader
+      for(Annotation annotation : type.getDeclaredAnnotations()) {
+        if (annotation.annotationType().getName().equals(VALUE_TYPE_NAME)) {
+          return true;
         }
       }
-      return fields.toArray(new Field[0]);
+      return false;
+    }
+  }
+
+  private static final ClassValue<Boolean> VALUE_TYPE_CACHE = new ValueTypeCache();
+
+  static boolean isValueType(Class<?> type) {
+    return VALUE_TYPE_CACHE.get(type);
+  }
+
+  /**
+   * The execution counter of a call site, local to each thread so there is no contention,
+   * one execution out of {@code samplingRate} is sampled.
+   */
+  static final class SiteSampler extends ThreadLocal<int[]> {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+
+    boolean sample(int samplingRate) {
+      int[] count = get();
+      if (++count[0] < samplingRate) {
+        return false;
+      }
+      count[0] = 0;
+      return true;
     }
   }
 
-  private static final ClassValue<Field[]> FIELDS_CACHE = new Cache();
+  // the checking can be turned on and off at runtime, each operation is a mutable callsite
+  // which target is either the checking implementation or the plain identity implementation,
+  // changing the target de-optimizes the code that has inlined the previous target,
+  // the first parameter is the sampler of the call site, only used if the sampling is enabled
+  private static final MutableCallSite ACMP_SITE = new MutableCallSite(methodType(boolean.class, SiteSampler.class, Object.class, Object.class, String.class));
+  private static final MutableCallSite MONITORENTER_SITE = new MutableCallSite(methodType(void.class, SiteSampler.class, Object.class, String.class));
+  private static final MutableCallSite IDENTITY_HASHCODE_SITE = new MutableCallSite(methodType(int.class, SiteSampler.class, Object.class, String.class));
+  private static final MutableCallSite IDENTITY_CHECK_SITE = new MutableCallSite(methodType(void.class, SiteSampler.class, Object.class, String.class));
+
+  // indexed by the operations of AgentMetrics
+  private static final MutableCallSite[] SITES = { ACMP_SITE, MONITORENTER_SITE, IDENTITY_HASHCODE_SITE, IDENTITY_CHECK_SITE };
+  private static final MethodHandle[] CHECKED_TARGETS, METERED_TARGETS, PLAIN_TARGETS;
 
   private static final MethodHandle ACMP, MONITORENTER, IDENTITY_HASHCODE, IDENTITY_CHECK;
+  private static final MethodHandle SAMPLE;
   static {
     MethodHandles.Lookup lookup = MethodHandles.lookup();
     try {
-      ACMP = lookup.findStatic(AgentRuntime.class, "acmp", methodType(boolean.class, Object.class, Object.class));
-      MONITORENTER = lookup.findStatic(AgentRuntime.class, "monitorenter", methodType(void.class, Object.class));
-      IDENTITY_HASHCODE = lookup.findStatic(AgentRuntime.class, "identityHashCode", methodType(int.class, Object.class));
-      IDENTITY_CHECK = lookup.findStatic(AgentRuntime.class, "identityCheck", methodType(void.class, Object.class));
+      CHECKED_TARGETS = new MethodHandle[] {
+          lookup.findStatic(AgentRuntime.class, "checkedAcmp", operationType(ACMP_SITE)),
+          lookup.findStatic(AgentRuntime.class, "checkedMonitorenter", operationType(MONITORENTER_SITE)),
+          lookup.findStatic(AgentRuntime.class, "checkedIdentityHashCode", operationType(IDENTITY_HASHCODE_SITE)),
+          lookup.findStatic(AgentRuntime.class, "checkedIdentityCheck", operationType(IDENTITY_CHECK_SITE))
+      };
+      METERED_TARGETS = new MethodHandle[] {
+          lookup.findStatic(AgentRuntime.class, "meteredAcmp", operationType(ACMP_SITE)),
+          lookup.findStatic(AgentRuntime.class, "meteredMonitorenter", operationType(MONITORENTER_SITE)),
+          lookup.findStatic(AgentRuntime.class, "meteredIdentityHashCode", operationType(IDENTITY_HASHCODE_SITE)),
+          lookup.findStatic(AgentRuntime.class, "meteredIdentityCheck", operationType(IDENTITY_CHECK_SITE))
+      };
+      PLAIN_TARGETS = new MethodHandle[] {
+          lookup.findStatic(AgentRuntime.class, "plainAcmp", operationType(ACMP_SITE)),
+          lookup.findStatic(AgentRuntime.class, "plainMonitorenter", operationType(MONITORENTER_SITE)),
+          MethodHandles.dropArguments(
+              lookup.findStatic(System.class, "identityHashCode", methodType(int.class, Object.class)), 1, String.class),
+          lookup.findStatic(AgentRuntime.class, "plainIdentityCheck", operationType(IDENTITY_CHECK_SITE))
+      };
+      SAMPLE = lookup.findVirtual(SiteSampler.class, "sample", methodType(boolean.class, int.class));
     } catch (NoSuchMethodException | IllegalAccessException e) {
       throw new RuntimeException(e);
     }
+    ACMP = invoker(ACMP_SITE);
+    MONITORENTER = invoker(MONITORENTER_SITE);
+    IDENTITY_HASHCODE = invoker(IDENTITY_HASHCODE_SITE);
+    IDENTITY_CHECK = invoker(IDENTITY_CHECK_SITE);
+    setTargets(true, false, 1);
   }
 
-  private static boolean equalsPrimitive(Object vt1, Object vt2, Field field, Class<?> fieldType) throws IllegalAccessException {
-    switch (fieldType.getName()) {
-      case "boolean":
-        return field.getBoolean(vt1) == field.getBoolean(vt2);
-      case "byte":
-        return field.getByte(vt1) == field.getByte(vt2);
-      case "char":
-        return field.getChar(vt1) == field.getChar(vt2);
-      case "short":
-        return field.getShort(vt1) == field.getShort(vt2);
-      case "int":
-        return field.getInt(vt1) == field.getInt(vt2);
-      case "long":
-        return field.getLong(vt1) == field.getLong(vt2);
-      case "float":
-        return Float.floatToRawIntBits(field.getFloat(vt1)) == Float.floatToRawIntBits(field.getFloat(vt2));
-      case "double":
-        return Double.doubleToRawLongBits(field.getDouble(vt1)) == Double.doubleToRawLongBits(field.getDouble(vt2));
-      default:
-        throw new AssertionError();
+  // the type of the operation, without the sampler
+  private static MethodType operationType(MutableCallSite site) {
+    return site.type().dropParameterTypes(0, 1);
+  }
+
+  // a call site linked with its own sampler
+  private static MethodHandle invoker(MutableCallSite site) {
+    return MethodHandles.insertArguments(site.dynamicInvoker(), 0, new SiteSampler());
+  }
+
+  // set by ViolationEvent, no event is created if no recording is running,
+  // declared before VIOLATION_EVENT_EMIT and without initializer, it may be set by the static init
+  private static volatile boolean violationEventRecording;
+
+  // JFR may not be available, by example on old Java 8 releases
+  private static final MethodHandle VIOLATION_EVENT_EMIT = violationEventEmit();
+
+  private static MethodHandle violationEventEmit() {
+    try {
+      Class.forName("jdk.jfr.Event", false, null);
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    try {
+      Class<?> eventClass = Class.forName(AgentRuntime.class.getPackage().getName() + ".ViolationEvent", true, AgentRuntime.class.getClassLoader());
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      lookup.findStatic(eventClass, "register", methodType(void.class)).invokeExact();
+      return lookup.findStatic(eventClass, "emit", methodType(void.class, String.class, String.class, Class.class));
+    } catch (Throwable e) {
+      throw new AssertionError(e);
     }
   }
 
-  private static boolean equalsValue(Object vt1, Object vt2) throws IllegalAccessException {
-    Field[] fields = FIELDS_CACHE.get(vt1.getClass());
-    for(Field field : fields) {
-      Class<?> fieldType = field.getType();
-      boolean matches = fieldType.isPrimitive() ?
-          equalsPrimitive(vt1, vt2, field, fieldType) :
-          acmp(field.get(vt1), field.get(vt2));
-      if (!matches) {
-        return false;
+  static void setViolationEventRecording(boolean recording) {
+    violationEventRecording = recording;
+  }
+
+  private static volatile boolean checkingEnabled = true;
+  private static volatile boolean metricsEnabled;
+  private static volatile int samplingRate = 1;
+
+  private static void setTargets(boolean checkingEnabled, boolean metricsEnabled, int samplingRate) {
+    for (int i = 0; i < SITES.length; i++) {
+      MethodHandle plainTarget = MethodHandles.dropArguments(PLAIN_TARGETS[i], 0, SiteSampler.class);
+      MethodHandle target;
+      if (!checkingEnabled) {
+        target = plainTarget;
+      } else {
+        target = MethodHandles.dropArguments(metricsEnabled ? METERED_TARGETS[i] : CHECKED_TARGETS[i], 0, SiteSampler.class);
+        if (samplingRate != 1) {
+          target = MethodHandles.guardWithTest(MethodHandles.insertArguments(SAMPLE, 1, samplingRate), target, plainTarget);
+        }
       }
+      SITES[i].setTarget(target);
     }
-    return true;
   }
 
-  public static boolean acmp(Object o1, Object o2) throws IllegalAccessException {
+  private static void updateTargets(boolean checkingEnabled, boolean metricsEnabled, int samplingRate) {
+    setTargets(checkingEnabled, metricsEnabled, samplingRate);
+    MutableCallSite.syncAll(SITES);
+    AgentRuntime.checkingEnabled = checkingEnabled;
+    AgentRuntime.metricsEnabled = metricsEnabled;
+    AgentRuntime.samplingRate = samplingRate;
+  }
+
+  /**
+   * Returns true if the instrumented operations check the value types.
+   */
+  public static boolean isCheckingEnabled() {
+    return checkingEnabled;
+  }
+
+  /**
+   * Turns on or off the checks, when turned off the instrumented operations
+   * use the plain identity semantics.
+   */
+  public static synchronized void setCheckingEnabled(boolean enabled) {
+    if (checkingEnabled == enabled) {
+      return;
+    }
+    updateTargets(enabled, metricsEnabled, samplingRate);
+  }
+
+  /**
+   * Returns true if the instrumented operations are counted.
+   */
+  public static boolean isMetricsEnabled() {
+    return metricsEnabled;
+  }
+
+  /**
+   * Turns on or off the counting of the instrumented operations,
+   * the operations are only counted when the checks are enabled.
+   */
+  public static synchronized void setMetricsEnabled(boolean enabled) {
+    if (metricsEnabled == enabled) {
+      return;
+    }
+    updateTargets(checkingEnabled, enabled, samplingRate);
+  }
+
+  /**
+   * Returns the sampling rate, 1 means that all the executions are checked.
+   */
+  public static int getSamplingRate() {
+    return samplingRate;
+  }
+
+  /**
+   * Sets the sampling rate, only one execution out of {@code rate} of each call site
+   * is checked (and counted), the other executions use the plain identity semantics.
+   * Each call site counts its executions by thread, so the sampled executions are the same from one run to another,
+   * the classes of the JDK and the classes that can not use invokedynamic share one counter by operation.
+   */
+  public static synchronized void setSamplingRate(int rate) {
+    if (rate < 1) {
+      throw new IllegalArgumentException("the sampling rate should be positive " + rate);
+    }
+    if (samplingRate == rate) {
+      return;
+    }
+    updateTargets(checkingEnabled, metricsEnabled, rate);
+  }
+
+  /**
+   * Returns the number of calls of each operation and the number of calls where a value type was met.
+   */
+  public static Map<String, Long> operationCounts() {
+    return AgentMetrics.operationCounts();
+  }
+
+  /**
+   * Returns for each operation and each call site, the number of times a value type was met.
+   */
+  public static Map<String, Long> siteCounts() {
+    return AgentMetrics.siteCounts();
+  }
+
+  /**
+   * Returns for each operation and each value class, the number of times a value type was met.
+   */
+  public static Map<String, Long> valueClassCounts() {
+    return AgentMetrics.valueClassCounts();
+  }
+
+  /**
+   * Resets all the metrics.
+   */
+  public static void resetMetrics() {
+    AgentMetrics.reset();
+  }
+
+  private static volatile ViolationReporter reporter;
+
+  /**
+   * Switches to the report-only mode, the violations are written in the report file
+   * instead of being thrown as exceptions.
+   */
+  public static synchronized void reportViolationsTo(String file) throws IOException {
+    Path path = Paths.get(file);
+    ViolationReporter reporter = AgentRuntime.reporter;
+    if (reporter != null) {
+      if (!reporter.file().equals(path)) {
+        throw new IllegalStateException("violations are already reported to " + reporter.file());
+      }
+      return;
+    }
+    AgentRuntime.reporter = ViolationReporter.start(path);
+  }
+
+  /**
+   * Returns true if the violations are reported instead of being thrown.
+   */
+  public static boolean isReportOnly() {
+    return reporter != null;
+  }
+
+  // returns true if the violation is only reported
+  private static boolean violation(int operation, String site, Class<?> valueClass) {
+    if (violationEventRecording) {
+      try {
+        VIOLATION_EVENT_EMIT.invokeExact(AgentMetrics.operationName(operation), site, valueClass);
+      } catch (Throwable t) {
+        throw rethrow(t);
+      }
+    }
+    ViolationReporter reporter = AgentRuntime.reporter;
+    if (reporter != null) {
+      reporter.report(operation, site, valueClass);
+      return true;
+    }
+    return false;
+  }
+
+  private static RuntimeException rethrow(Throwable t) {
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new UndeclaredThrowableException(t);
+  }
+
+  private static boolean equalsValue(Object vt1, Object vt2) {
+    return Substitutability.equalsValue(vt1, vt2);
+  }
+
+  public static boolean acmp(Object o1, Object o2, String site) {
+    try {
+      return (boolean) ACMP.invokeExact(o1, o2, site);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static boolean plainAcmp(Object o1, Object o2, String site) {
+    return o1 == o2;
+  }
+
+  private static boolean checkedAcmp(Object o1, Object o2, String site) {
+    return checkedAcmp(o1, o2);
+  }
+
+  private static boolean meteredAcmp(Object o1, Object o2, String site) {
+    AgentMetrics.call(AgentMetrics.ACMP);
+    if (o1 != o2 && o1 != null && o2 != null && o1.getClass() == o2.getClass() && isValueType(o1.getClass())) {
+      AgentMetrics.valueMet(AgentMetrics.ACMP, site, o1.getClass());
+      return equalsValue(o1, o2);
+    }
+    return o1 == o2;
+  }
+
+  // also used by Substitutability
+  static boolean checkedAcmp(Object o1, Object o2) {
     if (o1 == o2) {
       return true;
     }
     if (o1 == null || o2 == null) {
       return false;
     }
-    if (o1.getClass() == o2.getClass() && o1.getClass().isAnnotationPresent(ValueType.class)) {
+    if (o1.getClass() == o2.getClass() && isValueType(o1.getClass())) {
       return equalsValue(o1, o2);
     }
     return false;
   }
 
-  public static void monitorenter(Object lock) {
+  public static void monitorenter(Object lock, String site) {
+    try {
+      MONITORENTER.invokeExact(lock, site);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static void plainMonitorenter(Object lock, String site) {
+    // do nothing
+  }
+
+  private static void checkedMonitorenter(Object lock, String site) {
     if (lock == null) {
       return;  // the NPE will be raised by the real monitor enter
     }
-    if (lock.getClass().isAnnotationPresent(ValueType.class)) {
-      throw new IllegalMonitorStateException("Cannot create a monitor on a @ValueType");
-    }
-  }
-
-  private static int hashPrimitive(Object vt, Field field, Class<?> fieldType) throws IllegalAccessException {
-    switch (fieldType.getName()) {
-      case "boolean":
-        return field.getBoolean(vt) ? 1 : 0;
-      case "byte":
-        return field.getByte(vt) ;
-      case "char":
-        return field.getChar(vt) ;
-      case "short":
-        return field.getShort(vt);
-      case "int":
-        return field.getInt(vt);
-      case "long":
-        return Long.hashCode(field.getLong(vt));
-      case "float":
-        return Float.hashCode(field.getFloat(vt));
-      case "double":
-        return Double.hashCode(field.getDouble(vt));
-      default:
-        throw new AssertionError();
+    if (isValueType(lock.getClass())) {
+      monitorenterViolation(lock, site);
+    }
+  }
+
+  private static void meteredMonitorenter(Object lock, String site) {
+    AgentMetrics.call(AgentMetrics.MONITORENTER);
+    if (lock == null) {
+      return;  // the NPE will be raised by the real monitor enter
+    }
+    if (isValueType(lock.getClass())) {
+      AgentMetrics.valueMet(AgentMetrics.MONITORENTER, site, lock.getClass());
+      monitorenterViolation(lock, site);
+    }
+  }
+
+  private static void monitorenterViolation(Object lock, String site) {
+    if (violation(AgentMetrics.MONITORENTER, site, lock.getClass())) {
+      return;
+    }
+    throw new IllegalMonitorStateException("Cannot create a monitor on a @ValueType");
+  }
+
+  private static int valueIdentityHashCode(Object vt) {
+    return Substitutability.valueHashCode(vt);
+  }
+
+  public static int identityHashCode(Object o, String site) {
+    try {
+      return (int) IDENTITY_HASHCODE.invokeExact(o, site);
+    } catch (Throwable t) {
+      throw rethrow(t);
     }
   }
 
-  private static int valueIdentityHashCode(Object vt) throws IllegalAccessException {
-    Field[] fields = FIELDS_CACHE.get(vt.getClass());
-    int hash = 1;
-    for(Field field : fields) {
-      Class<?> fieldType = field.getType();
-      int value = fieldType.isPrimitive() ?
-          hashPrimitive(vt, field, fieldType) :
-          identityHashCode(field.get(vt));
-      hash = 31 * hash + value;
+  private static int checkedIdentityHashCode(Object o, String site) {
+    return checkedIdentityHashCode(o);
+  }
+
+  private static int meteredIdentityHashCode(Object o, String site) {
+    AgentMetrics.call(AgentMetrics.IDENTITY_HASHCODE);
+    if (o != null && isValueType(o.getClass())) {
+      AgentMetrics.valueMet(AgentMetrics.IDENTITY_HASHCODE, site, o.getClass());
+      return valueIdentityHashCode(o);
     }
-    return hash;
+    return System.identityHashCode(o);
   }
 
-  public static int identityHashCode(Object o) throws IllegalAccessException {
+  // also used by Substitutability
+  static int checkedIdentityHashCode(Object o) {
     if (o == null) {
       return 0;
     }
-    if (o.getClass().isAnnotationPresent(ValueType.class)) {
+    if (isValueType(o.getClass())) {
       return valueIdentityHashCode(o);
     }
     return System.identityHashCode(o);
   }
 
-  public static void identityCheck(Object o) {
+  public static void identityCheck(Object o, String site) {
+    try {
+      IDENTITY_CHECK.invokeExact(o, site);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static void plainIdentityCheck(Object o, String site) {
+    // do nothing
+  }
+
+  private static void checkedIdentityCheck(Object o, String site) {
     if (o == null) {
       return;
     }
-    if (o.getClass().isAnnotationPresent(ValueType.class)) {
-      throw new RuntimeException("Cannot create a reference on a @ValueType");
+    if (isValueType(o.getClass())) {
+      identityCheckViolation(o, site);
+    }
+  }
+
+  private static void meteredIdentityCheck(Object o, String site) {
+    AgentMetrics.call(AgentMetrics.IDENTITY_CHECK);
+    if (o == null) {
+      return;
+    }
+    if (isValueType(o.getClass())) {
+      AgentMetrics.valueMet(AgentMetrics.IDENTITY_CHECK, site, o.getClass());
+      identityCheckViolation(o, site);
+    }
+  }
+
+  private static void identityCheckViolation(Object o, String site) {
+    if (violation(AgentMetrics.IDENTITY_CHECK, site, o.getClass())) {
+      return;
+    }
+    throw new RuntimeException("Cannot create a reference on a @ValueType");
+  }
+
+  private static final MethodHandle LONG_ADDER_INCREMENT;
+  static {
+    try {
+      LONG_ADDER_INCREMENT = MethodHandles.lookup().findVirtual(LongAdder.class, "increment", methodType(void.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
     }
   }
 
-  private static MethodHandle target(String name) {
+  /**
+   * Counts an allocation of a value class, used by the classes that can not use invokedynamic.
+   */
+  public static void allocation(String site, String className) {
+    AgentAllocations.counter(site, className).increment();
+  }
+
+  /**
+   * Bootstrap method of an allocation site of a value class, the site is linked to its own counter.
+   */
+  public static CallSite allocationBsm(MethodHandles.Lookup lookup, String name, MethodType methodType, String site, String className) {
+    return new ConstantCallSite(LONG_ADDER_INCREMENT.bindTo(AgentAllocations.counter(site, className)));
+  }
+
+  /**
+   * Returns the number of allocations of each value class by allocation site, the most allocating sites first.
+   */
+  public static Map<String, Long> allocationCounts() {
+    return AgentAllocations.rankedCounts();
+  }
+
+  /**
+   * Resets the allocation counts.
+   */
+  public static void resetAllocationCounts() {
+    AgentAllocations.reset();
+  }
+
+  /**
+   * Prints the most allocating sites when the VM exits.
+   */
+  public static void reportAllocationsAtExit() {
+    AgentAllocations.reportAtExit();
+  }
+
+  private static MutableCallSite site(String name) {
     switch (name) {
       case "acmp":
-        return ACMP;
+        return ACMP_SITE;
       case "monitorenter":
-        return MONITORENTER;
+        return MONITORENTER_SITE;
       case "identityHashCode":
-        return IDENTITY_HASHCODE;
+        return IDENTITY_HASHCODE_SITE;
       case "identityCheck":
-        return IDENTITY_CHECK;
+        return IDENTITY_CHECK_SITE;
       default:
         throw new LinkageError("unknown target " + name);
     }
   }
 
   public static CallSite bsm(MethodHandles.Lookup lookup, String name, MethodType methodType) {
-    // dumb implementation, can be faster if needed using an inlining cache
-    return new ConstantCallSite(target(name));
+    // all invokedynamic of the same operation share the same mutable callsite, so they can be turned off together,
+    // each one has its own sampler
+    return new ConstantCallSite(invoker(site(name)));
   }
 }
@@ -0,0 +1,186 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compiles, for each value class, a method handle that tests if two instances are substitutable
+ * and a method handle that computes the hash code of an instance, using the values of the fields.
+ */
+final class Substitutability {
+  private static final MethodHandle EQ_Z, EQ_I, EQ_J, EQ_F, EQ_D, EQ_L, FALSE;
+  private static final MethodHandle HASH_Z, HASH_J, HASH_F, HASH_D, HASH_L, MIX;
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      EQ_Z = lookup.findStatic(Substitutability.class, "eq", methodType(boolean.class, boolean.class, boolean.class));
+      EQ_I = lookup.findStatic(Substitutability.class, "eq", methodType(boolean.class, int.class, int.class));
+      EQ_J = lookup.findStatic(Substitutability.class, "eq", methodType(boolean.class, long.class, long.class));
+      EQ_F = lookup.findStatic(Substitutability.class, "eq", methodType(boolean.class, float.class, float.class));
+      EQ_D = lookup.findStatic(Substitutability.class, "eq", methodType(boolean.class, double.class, double.class));
+      EQ_L = lookup.findStatic(AgentRuntime.class, "checkedAcmp", methodType(boolean.class, Object.class, Object.class));
+      HASH_Z = lookup.findStatic(Substitutability.class, "hash", methodType(int.class, boolean.class));
+      HASH_J = lookup.findStatic(Long.class, "hashCode", methodType(int.class, long.class));
+      HASH_F = lookup.findStatic(Float.class, "hashCode", methodType(int.class, float.class));
+      HASH_D = lookup.findStatic(Double.class, "hashCode", methodType(int.class, double.class));
+      HASH_L = lookup.findStatic(AgentRuntime.class, "checkedIdentityHashCode", methodType(int.class, Object.class));
+      MIX = lookup.findStatic(Substitutability.class, "mix", methodType(int.class, int.class, int.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+    FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Object.class, Object.class);
+  }
+
+  private Substitutability() {
+    throw new AssertionError();
+  }
+
+  private static boolean eq(boolean v1, boolean v2) {
+    return v1 == v2;
+  }
+  private static boolean eq(int v1, int v2) {
+    return v1 == v2;
+  }
+  private static boolean eq(long v1, long v2) {
+    return v1 == v2;
+  }
+  private static boolean eq(float v1, float v2) {
+    return Float.floatToRawIntBits(v1) == Float.floatToRawIntBits(v2);
+  }
+  private static boolean eq(double v1, double v2) {
+    return Double.doubleToRawLongBits(v1) == Double.doubleToRawLongBits(v2);
+  }
+
+  private static int hash(boolean v) {
+    return v ? 1 : 0;
+  }
+
+  private static int mix(int hash, int value) {
+    return 31 * hash + value;
+  }
+
+  private static MethodHandle equalsFor(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return EQ_L.asType(methodType(boolean.class, type, type));
+    }
+    switch (type.getName()) {
+      case "boolean":
+        return EQ_Z;
+      case "long":
+        return EQ_J;
+      case "float":
+        return EQ_F;
+      case "double":
+        return EQ_D;
+      default:  // byte, char, short, int
+        return EQ_I.asType(methodType(boolean.class, type, type));
+    }
+  }
+
+  private static MethodHandle hashFor(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return HASH_L.asType(methodType(int.class, type));
+    }
+    switch (type.getName()) {
+      case "boolean":
+        return HASH_Z;
+      case "long":
+        return HASH_J;
+      case "float":
+        return HASH_F;
+      case "double":
+        return HASH_D;
+      default:  // byte, char, short, int
+        return MethodHandles.identity(int.class).asType(methodType(int.class, type));
+    }
+  }
+
+  private static MethodHandle[] getters(Class<?> type) {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    ArrayList<MethodHandle> getters = new ArrayList<MethodHandle>();
+    for(Class<?> t = type; t != Object.class; t = t.getSuperclass()) {
+      for(Field field : t.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers())) {
+          continue;
+        }
+        field.setAccessible(true);
+        try {
+          getters.add(lookup.unreflectGetter(field).asType(methodType(field.getType(), Object.class)));
+        } catch (IllegalAccessException e) {
+          throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+        }
+      }
+    }
+    return getters.toArray(new MethodHandle[0]);
+  }
+
+  // (Object, Object)boolean, the fields are compared in the declaration order
+  private static MethodHandle equalsHandle(MethodHandle[] getters) {
+    MethodHandle target = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, Object.class, Object.class);
+    for (int i = getters.length; --i >= 0;) {
+      MethodHandle getter = getters[i];
+      MethodHandle test = MethodHandles.filterArguments(equalsFor(getter.type().returnType()), 0, getter, getter);
+      target = MethodHandles.guardWithTest(test, target, FALSE);
+    }
+    return target;
+  }
+
+  // (Object)int
+  private static MethodHandle hashHandle(MethodHandle[] getters) {
+    MethodHandle target = MethodHandles.dropArguments(MethodHandles.constant(int.class, 1), 0, Object.class);
+    for (MethodHandle getter : getters) {
+      MethodHandle fieldHash = MethodHandles.filterReturnValue(getter, hashFor(getter.type().returnType()));
+      MethodHandle mix = MethodHandles.filterArguments(MIX, 0, target, fieldHash);
+      target = MethodHandles.permuteArguments(mix, methodType(int.class, Object.class), 0, 0);
+    }
+    return target;
+  }
+
+  static final class EqualsCache extends ClassValue<MethodHandle> {
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      return equalsHandle(getters(type));
+    }
+  }
+
+  static final class HashCache extends ClassValue<MethodHandle> {
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      return hashHandle(getters(type));
+    }
+  }
+
+  private static final ClassValue<MethodHandle> EQUALS_CACHE = new EqualsCache();
+  private static final ClassValue<MethodHandle> HASH_CACHE = new HashCache();
+
+  /**
+   * Returns true if the fields of the two instances of the same value class are substitutable.
+   */
+  static boolean equalsValue(Object vt1, Object vt2) {
+    try {
+      return (boolean) EQUALS_CACHE.get(vt1.getClass()).invokeExact(vt1, vt2);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  /**
+   * Returns the hash code of the fields of an instance of a value class.
+   */
+  static int valueHashCode(Object vt) {
+    try {
+      return (int) HASH_CACHE.get(vt.getClass()).invokeExact(vt);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+}
@@ -0,0 +1,633 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Replacement of {@link IdentityHashMap} used by the instrumented code,
+ * two keys (or two values) are the same if they are the same reference
+ * or if they are substitutable instances of the same value class.
+ *
+ * Like {@link IdentityHashMap}, the keys and the values are stored in the same array
+ * and the collisions are resolved using linear probing. The keys that are not instances of a value class
+ * are hashed and compared using the identity, the instances of a value class are hashed and compared
+ * using their fields.
+ *
+ * The storage of the super class is not used. A map created while the checks are turned off
+ * ({@link AgentRuntime#isCheckingEnabled()}) uses the plain identity semantics for its whole life,
+ * so its entries are not hashed again when the checks are turned on or off.
+ * The map is serialized as an {@link IdentityHashMap}.
+ */
+public class ValueIdentityHashMap<K, V> extends IdentityHashMap<K, V> {
+  private static final long serialVersionUID = 1;
+
+  private static final Object NULL_KEY = new Object();
+  private static final int DEFAULT_EXPECTED_MAX_SIZE = 21;
+  private static final int MINIMUM_CAPACITY = 4;
+  private static final int MAXIMUM_CAPACITY = 1 << 29;
+
+  private transient Object[] table;  // key, value, key, value, etc
+  private transient int entryCount;
+  private transient int modificationCount;
+  private final transient boolean valueSemantics = AgentRuntime.isCheckingEnabled();
+
+  public ValueIdentityHashMap() {
+    this(DEFAULT_EXPECTED_MAX_SIZE);
+  }
+
+  public ValueIdentityHashMap(int expectedMaxSize) {
+    super(0);
+    if (expectedMaxSize < 0) {
+      throw new IllegalArgumentException("expectedMaxSize is negative: " + expectedMaxSize);
+    }
+    table = new Object[2 * capacity(expectedMaxSize)];
+  }
+
+  public ValueIdentityHashMap(Map<? extends K, ? extends V> map) {
+    this((int) ((1 + map.size()) * 1.1));
+    putAll(map);
+  }
+
+  // the table is at most 2/3 full
+  private static int capacity(int expectedMaxSize) {
+    if (expectedMaxSize > MAXIMUM_CAPACITY / 3) {
+      return MAXIMUM_CAPACITY;
+    }
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity < expectedMaxSize + (expectedMaxSize >> 1)) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private static Object maskNull(Object key) {
+    return key == null ? NULL_KEY : key;
+  }
+
+  private static Object unmaskNull(Object key) {
+    return key == NULL_KEY ? null : key;
+  }
+
+  private boolean isValueKey(Object key) {
+    return valueSemantics && AgentRuntime.isValueType(key.getClass());
+  }
+
+  private static int hash(Object key, boolean valueKey, int length) {
+    int hash = valueKey ? Substitutability.valueHashCode(key) : System.identityHashCode(key);
+    // multiply by -127, and left-shift to use least bit as part of hash, see IdentityHashMap
+    return ((hash << 1) - (hash << 8)) & (length - 1);
+  }
+
+  private static int nextKeyIndex(int index, int length) {
+    return index + 2 < length ? index + 2 : 0;
+  }
+
+  // the identity is the fast path, the fields are only compared for the instances of a value class
+  private static boolean matches(Object item, Object key, boolean valueKey) {
+    return item == key || (valueKey && item.getClass() == key.getClass() && Substitutability.equalsValue(item, key));
+  }
+
+  private boolean sameValue(Object value1, Object value2) {
+    return valueSemantics ? AgentRuntime.checkedAcmp(value1, value2) : value1 == value2;
+  }
+
+  private int identityHashCode(Object o) {
+    return valueSemantics ? AgentRuntime.checkedIdentityHashCode(o) : System.identityHashCode(o);
+  }
+
+  // returns the index of the masked key or -1
+  private int indexOf(Object key) {
+    boolean valueKey = isValueKey(key);
+    Object[] table = this.table;
+    int length = table.length;
+    int index = hash(key, valueKey, length);
+    for (;;) {
+      Object item = table[index];
+      if (item == null) {
+        return -1;
+      }
+      if (matches(item, key, valueKey)) {
+        return index;
+      }
+      index = nextKeyIndex(index, length);
+    }
+  }
+
+  @Override
+  public int size() {
+    return entryCount;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return entryCount == 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    int index = indexOf(maskNull(key));
+    return index == -1 ? null : (V) table[index + 1];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(maskNull(key)) != -1;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    Object[] table = this.table;
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != null && sameValue(table[i + 1], value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(K key, V value) {
+    Object maskedKey = maskNull(key);
+    boolean valueKey = isValueKey(maskedKey);
+    for (;;) {
+      Object[] table = this.table;
+      int length = table.length;
+      int index = hash(maskedKey, valueKey, length);
+      for (Object item; (item = table[index]) != null; index = nextKeyIndex(index, length)) {
+        if (matches(item, maskedKey, valueKey)) {
+          V oldValue = (V) table[index + 1];
+          table[index + 1] = value;
+          return oldValue;
+        }
+      }
+
+      int newEntryCount = entryCount + 1;
+      if (newEntryCount + (newEntryCount << 1) > length && resize(length)) {
+        continue;  // the table has changed, find the index again
+      }
+      modificationCount++;
+      table[index] = maskedKey;
+      table[index + 1] = value;
+      entryCount = newEntryCount;
+      return null;
+    }
+  }
+
+  // returns true if the table has been resized
+  private boolean resize(int newCapacity) {
+    Object[] oldTable = table;
+    int oldLength = oldTable.length;
+    if (oldLength == 2 * MAXIMUM_CAPACITY) {
+      if (entryCount == MAXIMUM_CAPACITY - 1) {
+        throw new IllegalStateException("capacity exhausted");
+      }
+      return false;
+    }
+    int newLength = newCapacity * 2;
+    if (oldLength >= newLength) {
+      return false;
+    }
+    Object[] newTable = new Object[newLength];
+    for (int i = 0; i < oldLength; i += 2) {
+      Object key = oldTable[i];
+      if (key != null) {
+        int index = hash(key, isValueKey(key), newLength);
+        while (newTable[index] != null) {
+          index = nextKeyIndex(index, newLength);
+        }
+        newTable[index] = key;
+        newTable[index + 1] = oldTable[i + 1];
+      }
+    }
+    table = newTable;
+    return true;
+  }
+
+  @Override
+  public void putAll(Map<? extends K, ? extends V> map) {
+    int size = map.size();
+    if (size == 0) {
+      return;
+    }
+    if (size > entryCount) {
+      resize(capacity(size));
+    }
+    for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object key) {
+    int index = indexOf(maskNull(key));
+    if (index == -1) {
+      return null;
+    }
+    V oldValue = (V) table[index + 1];
+    removeAt(index);
+    return oldValue;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    int index = indexOf(maskNull(key));
+    if (index == -1 || !sameValue(table[index + 1], value)) {
+      return false;
+    }
+    removeAt(index);
+    return true;
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    int index = indexOf(maskNull(key));
+    if (index == -1 || !sameValue(table[index + 1], oldValue)) {
+      return false;
+    }
+    table[index + 1] = newValue;
+    return true;
+  }
+
+  private void removeAt(int index) {
+    modificationCount++;
+    entryCount--;
+    table[index] = null;
+    table[index + 1] = null;
+    closeDeletion(index);
+  }
+
+  // re-inserts the entries after the deleted one, see IdentityHashMap
+  private void closeDeletion(int deleted) {
+    Object[] table = this.table;
+    int length = table.length;
+    Object item;
+    for (int i = nextKeyIndex(deleted, length); (item = table[i]) != null; i = nextKeyIndex(i, length)) {
+      int r = hash(item, isValueKey(item), length);
+      if ((i < r && (r <= deleted || deleted <= i)) || (r <= deleted && deleted <= i)) {
+        table[deleted] = item;
+        table[deleted + 1] = table[i + 1];
+        table[i] = null;
+        table[i + 1] = null;
+        deleted = i;
+      }
+    }
+  }
+
+  @Override
+  public void clear() {
+    modificationCount++;
+    Arrays.fill(table, null);
+    entryCount = 0;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof Map)) {
+      return false;
+    }
+    Map<?, ?> map = (Map<?, ?>) o;
+    if (map.size() != entryCount) {
+      return false;
+    }
+    Object[] table = this.table;
+    for (int i = 0; i < table.length; i += 2) {
+      Object key = table[i];
+      if (key != null) {
+        Object unmaskedKey = unmaskNull(key);
+        if (!map.containsKey(unmaskedKey) || !sameValue(table[i + 1], map.get(unmaskedKey))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = 0;
+    Object[] table = this.table;
+    for (int i = 0; i < table.length; i += 2) {
+      Object key = table[i];
+      if (key != null) {
+        hashCode += identityHashCode(unmaskNull(key)) ^ identityHashCode(table[i + 1]);
+      }
+    }
+    return hashCode;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object clone() {
+    ValueIdentityHashMap<K, V> map = (ValueIdentityHashMap<K, V>) super.clone();
+    map.table = table.clone();
+    return map;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    Objects.requireNonNull(action);
+    int expectedModificationCount = modificationCount;
+    Object[] table = this.table;
+    for (int i = 0; i < table.length; i += 2) {
+      Object key = table[i];
+      if (key != null) {
+        action.accept((K) unmaskNull(key), (V) table[i + 1]);
+      }
+      if (modificationCount != expectedModificationCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+    Objects.requireNonNull(function);
+    int expectedModificationCount = modificationCount;
+    Object[] table = this.table;
+    for (int i = 0; i < table.length; i += 2) {
+      Object key = table[i];
+      if (key != null) {
+        table[i + 1] = function.apply((K) unmaskNull(key), (V) table[i + 1]);
+      }
+      if (modificationCount != expectedModificationCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return new KeySet<K>(this);
+  }
+
+  @Override
+  public Collection<V> values() {
+    return new Values<V>(this);
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet<K, V>(this);
+  }
+
+  // the map is serialized as an IdentityHashMap, so all its entries are written
+  private Object writeReplace() {
+    return new IdentityHashMap<K, V>(this);
+  }
+
+  // the state is in transient fields, a stream containing a ValueIdentityHashMap was not written by writeReplace
+  private void readObject(ObjectInputStream input) throws InvalidObjectException {
+    throw new InvalidObjectException("serialized as an IdentityHashMap");
+  }
+
+  // no lambda or anonymous class, the classes are loaded by the bootstrap class loader
+
+  static final class Entry<K, V> implements Map.Entry<K, V> {
+    private final ValueIdentityHashMap<K, V> map;
+    private final K key;
+    private V value;
+
+    Entry(ValueIdentityHashMap<K, V> map, K key, V value) {
+      this.map = map;
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public K getKey() {
+      return key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    @Override
+    public V setValue(V value) {
+      // like IdentityHashMap, a removed entry is not put back
+      int index = map.indexOf(maskNull(key));
+      if (index == -1) {
+        throw new IllegalStateException("entry removed");
+      }
+      V oldValue = this.value;
+      this.value = value;
+      map.table[index + 1] = value;
+      return oldValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+      return map.sameValue(key, entry.getKey()) && map.sameValue(value, entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return map.identityHashCode(key) ^ map.identityHashCode(value);
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  static final class TableIterator<T> implements Iterator<T> {
+    static final int KEYS = 0, VALUES = 1, ENTRIES = 2;
+
+    private final ValueIdentityHashMap<?, ?> map;
+    private final int kind;
+    private Object[] traversal;
+    private int index;
+    private int lastIndex = -1;
+    private int expectedModificationCount;
+
+    TableIterator(ValueIdentityHashMap<?, ?> map, int kind) {
+      this.map = map;
+      this.kind = kind;
+      this.traversal = map.table;
+      this.expectedModificationCount = map.modificationCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+      Object[] traversal = this.traversal;
+      for (; index < traversal.length; index += 2) {
+        if (traversal[index] != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public T next() {
+      if (map.modificationCount != expectedModificationCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastIndex = index;
+      index += 2;
+      Object key = unmaskNull(traversal[lastIndex]);
+      Object value = traversal[lastIndex + 1];
+      switch (kind) {
+        case KEYS:
+          return (T) key;
+        case VALUES:
+          return (T) value;
+        default:
+          return (T) new Entry(map, key, value);
+      }
+    }
+
+    @Override
+    public void remove() {
+      if (lastIndex == -1) {
+        throw new IllegalStateException();
+      }
+      if (map.modificationCount != expectedModificationCount) {
+        throw new ConcurrentModificationException();
+      }
+      // the removal may move the entries of the table, so the traversal continues on a copy
+      if (traversal == map.table) {
+        traversal = traversal.clone();
+      }
+      map.remove(unmaskNull(traversal[lastIndex]));
+      expectedModificationCount = map.modificationCount;
+      lastIndex = -1;
+    }
+  }
+
+  static final class KeySet<K> extends AbstractSet<K> {
+    private final ValueIdentityHashMap<K, ?> map;
+
+    KeySet(ValueIdentityHashMap<K, ?> map) {
+      this.map = map;
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      return new TableIterator<K>(map, TableIterator.KEYS);
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return map.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      int size = map.size();
+      map.remove(o);
+      return map.size() != size;
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+  }
+
+  static final class Values<V> extends AbstractCollection<V> {
+    private final ValueIdentityHashMap<?, V> map;
+
+    Values(ValueIdentityHashMap<?, V> map) {
+      this.map = map;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      return new TableIterator<V>(map, TableIterator.VALUES);
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return map.containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+  }
+
+  static final class EntrySet<K, V> extends AbstractSet<Map.Entry<K, V>> {
+    private final ValueIdentityHashMap<K, V> map;
+
+    EntrySet(ValueIdentityHashMap<K, V> map) {
+      this.map = map;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new TableIterator<Map.Entry<K, V>>(map, TableIterator.ENTRIES);
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+      int index = map.indexOf(maskNull(entry.getKey()));
+      return index != -1 && map.sameValue(map.table[index + 1], entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+      return map.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+  }
+}
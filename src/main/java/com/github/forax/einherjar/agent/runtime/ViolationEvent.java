@@ -0,0 +1,66 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event emitted when a value type is used as a monitor or as the referent of a reference.
+ *
+ * This class is only loaded if JFR is available, the agent runtime calls {@link #register} and {@link #emit}
+ * using method handles, {@link #emit} is only called while a recording is running.
+ */
+@Name("com.github.forax.einherjar.Violation")
+@Label("Value Type Violation")
+@Category("Einherjar")
+@Description("Identity operation on a value type")
+@StackTrace(true)
+final class ViolationEvent extends Event {
+  @Label("Operation")
+  String operation;
+
+  @Label("Call Site")
+  String site;
+
+  @Label("Value Class")
+  Class<?> valueClass;
+
+  // tells the agent runtime when a recording is running, without initializing JFR
+  static void register() {
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recordingStateChanged(Recording recording) {
+        updateRecording();
+      }
+    });
+    if (FlightRecorder.isInitialized()) {
+      updateRecording();  // started with -XX:StartFlightRecording
+    }
+  }
+
+  private static synchronized void updateRecording() {
+    boolean running = false;
+    for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+      running |= recording.getState() == RecordingState.RUNNING;
+    }
+    AgentRuntime.setViolationEventRecording(running);
+  }
+
+  static void emit(String operation, String site, Class<?> valueClass) {
+    ViolationEvent event = new ViolationEvent();
+    if (!event.isEnabled()) {
+      return;
+    }
+    event.operation = operation;
+    event.site = site;
+    event.valueClass = valueClass;
+    event.commit();
+  }
+}
@@ -0,0 +1,217 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the violations instead of throwing an exception.
+ *
+ * Each thread stores its violations in its own bounded buffer, so recording a violation only stores
+ * the operation, the call site and the value class in pre-allocated arrays and publishes the new tail,
+ * there is no allocation and no contended write. If the buffer of a thread is full,
+ * the violation is only counted as dropped.
+ * A daemon thread drains the buffers, de-duplicates the violations by operation, call site and value class
+ * and writes each new violation to the report file.
+ * A summary with the number of occurrences of each violation is written when the VM shutdown.
+ */
+final class ViolationReporter {
+  private static final int CAPACITY = 1_024;  // by thread, must be a power of 2
+  private static final long DRAIN_PERIOD_MILLIS = 100;
+
+  // the violations of one thread, written by the thread and read by the drainer
+  static final class ThreadBuffer {
+    private final Thread owner;
+    private final int[] operations = new int[CAPACITY];
+    private final String[] sites = new String[CAPACITY];
+    private final Class<?>[] valueClasses = new Class<?>[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();  // written by the owner
+    private final AtomicLong head = new AtomicLong();  // written by the drainer
+    private final AtomicLong dropped = new AtomicLong();  // written by the owner
+
+    ThreadBuffer(Thread owner) {
+      this.owner = owner;
+    }
+
+    void add(int operation, String site, Class<?> valueClass) {
+      long index = tail.get();
+      if (index - head.get() == CAPACITY) {
+        dropped.lazySet(dropped.get() + 1);
+        return;
+      }
+      int slot = (int) index & (CAPACITY - 1);
+      operations[slot] = operation;
+      sites[slot] = site;
+      valueClasses[slot] = valueClass;
+      tail.lazySet(index + 1);  // publish the slot
+    }
+  }
+
+  // no lambda or anonymous class, the class is loaded by the bootstrap class loader
+  static final class ThreadBuffers extends ThreadLocal<ThreadBuffer> {
+    private final CopyOnWriteArrayList<ThreadBuffer> buffers = new CopyOnWriteArrayList<ThreadBuffer>();
+
+    @Override
+    protected ThreadBuffer initialValue() {
+      ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+      buffers.add(buffer);
+      return buffer;
+    }
+  }
+
+  // no lambda or anonymous class, the class is loaded by the bootstrap class loader
+  static final class Drainer extends Thread {
+    private final ViolationReporter reporter;
+    private final boolean atShutdown;
+
+    Drainer(ViolationReporter reporter, boolean atShutdown) {
+      super(atShutdown ? "einherjar-violation-summary" : "einherjar-violation-reporter");
+      this.reporter = reporter;
+      this.atShutdown = atShutdown;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (atShutdown) {
+          reporter.close();
+          return;
+        }
+        while (reporter.drain()) {
+          Thread.sleep(DRAIN_PERIOD_MILLIS);
+        }
+      } catch (InterruptedException e) {
+        // stop draining
+      } catch (IOException e) {
+        System.err.println("einherjar: can not write the violation report " + e);
+      }
+    }
+  }
+
+  private final ThreadBuffers threadBuffers = new ThreadBuffers();
+
+  private final Path file;
+  private final BufferedWriter writer;  // guarded by this
+  private final HashMap<String, long[]> violationCounts = new HashMap<String, long[]>();  // guarded by this
+  private long droppedCount;  // guarded by this
+  private boolean closed;  // guarded by this
+
+  private ViolationReporter(Path file, BufferedWriter writer) {
+    this.file = file;
+    this.writer = writer;
+  }
+
+  static ViolationReporter start(Path file) throws IOException {
+    ViolationReporter reporter = new ViolationReporter(file, Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+    Drainer drainer = new Drainer(reporter, false);
+    drainer.setDaemon(true);
+    drainer.start();
+    Runtime.getRuntime().addShutdownHook(new Drainer(reporter, true));
+    return reporter;
+  }
+
+  Path file() {
+    return file;
+  }
+
+  /**
+   * Records a violation in the buffer of the current thread, this method does not allocate
+   * once the buffer of the thread exists.
+   */
+  void report(int operation, String site, Class<?> valueClass) {
+    threadBuffers.get().add(operation, site, valueClass);
+  }
+
+  private static String key(int operation, String site, Class<?> valueClass) {
+    return AgentMetrics.operationName(operation) + ' ' + site + ' ' + valueClass.getName();
+  }
+
+  /**
+   * Drains the buffers of the threads and writes the new violations,
+   * the buffer of a dead thread is removed once drained.
+   * Returns false if the reporter is closed.
+   */
+  synchronized boolean drain() throws IOException {
+    if (closed) {
+      return false;
+    }
+    boolean written = false;
+    for (ThreadBuffer buffer : threadBuffers.buffers) {
+      boolean alive = buffer.owner.isAlive();  // read before the tail, so no violation is added after
+      long head = buffer.head.get();
+      long end = buffer.tail.get();  // all the slots before the tail are published
+      for (; head < end; head++) {
+        int slot = (int) head & (CAPACITY - 1);
+        String key = key(buffer.operations[slot], buffer.sites[slot], buffer.valueClasses[slot]);
+        buffer.sites[slot] = null;
+        buffer.valueClasses[slot] = null;
+        long[] count = violationCounts.get(key);
+        if (count == null) {
+          violationCounts.put(key, new long[] { 1 });
+          writer.write(key);
+          writer.newLine();
+          written = true;
+          continue;
+        }
+        count[0]++;
+      }
+      buffer.head.lazySet(end);
+      if (!alive) {
+        droppedCount += buffer.dropped.get();
+        threadBuffers.buffers.remove(buffer);
+      }
+    }
+    if (written) {
+      writer.flush();
+    }
+    return true;
+  }
+
+  synchronized void close() throws IOException {
+    if (!drain()) {
+      return;
+    }
+    closed = true;
+    try {
+      ArrayList<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(violationCounts.entrySet());
+      Collections.sort(entries, new ByCountComparator());
+      long total = 0;
+      for (Map.Entry<String, long[]> entry : entries) {
+        total += entry.getValue()[0];
+      }
+      writer.write("# summary: " + entries.size() + " distinct violation(s), " + total + " occurrence(s)");
+      writer.newLine();
+      long dropped = droppedCount;
+      for (ThreadBuffer buffer : threadBuffers.buffers) {
+        dropped += buffer.dropped.get();
+      }
+      if (dropped != 0) {
+        writer.write("# " + dropped + " violation(s) dropped, a thread buffer was full");
+        writer.newLine();
+      }
+      for (Map.Entry<String, long[]> entry : entries) {
+        writer.write("# " + entry.getValue()[0] + ' ' + entry.getKey());
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  static final class ByCountComparator implements Comparator<Map.Entry<String, long[]>> {
+    @Override
+    public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+      int compare = Long.compare(e2.getValue()[0], e1.getValue()[0]);
+      return compare != 0 ? compare : e1.getKey().compareTo(e2.getKey());
+    }
+  }
+}
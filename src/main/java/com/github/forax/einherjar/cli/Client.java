@@ -0,0 +1,163 @@
+package com.github.forax.einherjar.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Thin client of the {@link Daemon}, forwards the arguments and the working directory,
+ * copies the output of the action on stdout/stderr and exits with the exit code of the action.
+ *
+ * This class only depends on the JDK so starting the client is fast.
+ *
+ * The daemon file contains the port and a secret token, a request is
+ * {@code token, command, working directory, argument count, arguments...}
+ * (the strings as a length followed by their UTF-8 bytes),
+ * the response is a sequence of frames {@code kind, length, bytes...} ended by
+ * {@code EXIT, exit code}.
+ */
+public final class Client {
+  static final String COMMAND_RUN = "run";
+  static final String COMMAND_STOP = "stop";
+
+  static final int FRAME_EXIT = 0;
+  static final int FRAME_OUT = 1;
+  static final int FRAME_ERR = 2;
+
+  static final int MAX_TOKEN_LENGTH = 1024;
+  static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+  private Client() {
+    throw new AssertionError();
+  }
+
+  static Path defaultDaemonFile() {
+    return Paths.get(System.getProperty("java.io.tmpdir"), "einherjar-daemon-" + System.getProperty("user.name"));
+  }
+
+  static final class DaemonAddress {
+    final int port;
+    final String token;
+
+    DaemonAddress(int port, String token) {
+      this.port = port;
+      this.token = token;
+    }
+
+    static DaemonAddress read(Path daemonFile) throws IOException {
+      String content = new String(Files.readAllBytes(daemonFile), StandardCharsets.UTF_8).trim();
+      String[] parts = content.split(" ");
+      if (parts.length != 2) {
+        throw new IOException("invalid daemon file " + daemonFile);
+      }
+      try {
+        return new DaemonAddress(Integer.parseInt(parts[0]), parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("invalid daemon file " + daemonFile, e);
+      }
+    }
+
+    void write(Path daemonFile) throws IOException {
+      Files.write(daemonFile, (port + " " + token + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Sends a command to the daemon.
+   * @return the exit code of the action
+   */
+  static int send(Path daemonFile, String command, String[] args, Path workingDirectory, OutputStream out, OutputStream err) throws IOException {
+    DaemonAddress address;
+    try {
+      address = DaemonAddress.read(daemonFile);
+    } catch (NoSuchFileException e) {
+      throw new IOException("no daemon is running, daemon file " + daemonFile + " not found", e);
+    }
+    try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), address.port)) {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      writeString(output, address.token);
+      writeString(output, command);
+      writeString(output, workingDirectory.toAbsolutePath().toString());
+      output.writeInt(args.length);
+      for (String arg : args) {
+        writeString(output, arg);
+      }
+      output.flush();
+
+      DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      byte[] buffer = new byte[8192];
+      for(;;) {
+        int kind;
+        try {
+          kind = input.readUnsignedByte();
+        } catch (EOFException e) {
+          throw new IOException("connection closed by the daemon", e);
+        }
+        if (kind == FRAME_EXIT) {
+          return input.readInt();
+        }
+        OutputStream stream = kind == FRAME_OUT ? out : err;
+        int length = input.readInt();
+        while (length > 0) {
+          int read = input.read(buffer, 0, Math.min(length, buffer.length));
+          if (read == -1) {
+            throw new IOException("connection closed by the daemon");
+          }
+          stream.write(buffer, 0, read);
+          length -= read;
+        }
+        stream.flush();
+      }
+    }
+  }
+
+  // unlike writeUTF(), not limited to 65535 bytes
+  static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  static String readString(DataInputStream input, int maxLength) throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path daemonFile = defaultDaemonFile();
+    int index = 0;
+    if (args.length >= 2 && args[0].equals("--daemon-file")) {
+      daemonFile = Paths.get(args[1]);
+      index = 2;
+    }
+    String[] arguments = Arrays.copyOfRange(args, index, args.length);
+    boolean stop = arguments.length == 1 && arguments[0].equals("--stop");
+    int exitCode;
+    try {
+      exitCode = send(daemonFile, stop ? COMMAND_STOP : COMMAND_RUN, stop ? new String[0] : arguments, Paths.get(""), System.out, System.err);
+    } catch (IOException e) {
+      System.err.println("client: " + e.getMessage());
+      exitCode = 1;
+    }
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+}
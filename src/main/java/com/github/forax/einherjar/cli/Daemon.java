@@ -0,0 +1,299 @@
+package com.github.forax.einherjar.cli;
+
+import com.github.forax.einherjar.core.Facade;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-lived process that runs the actions of {@link Main} sent by a {@link Client},
+ * so the JVM startup, the class loading and the JIT compilation of the analysis
+ * are paid once and not for each invocation.
+ *
+ * The daemon only listens on the loopback interface and a request is only accepted
+ * if it contains the secret token written in the daemon file (only readable by its owner).
+ * The requests are executed concurrently.
+ */
+final class Daemon implements Closeable {
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+  // the standard input of the client is not forwarded
+  private static final InputStream NO_INPUT = new InputStream() {
+    @Override
+    public int read() throws IOException {
+      throw new IOException("the standard input is not available in daemon mode");
+    }
+  };
+
+  private final ServerSocket serverSocket;
+  private final Path daemonFile;
+  private final String token;
+  private final int handshakeTimeoutMillis;
+  private final ExecutorService executor;
+  private final Thread acceptThread;
+
+  private Daemon(ServerSocket serverSocket, Path daemonFile, String token, int handshakeTimeoutMillis) {
+    this.serverSocket = serverSocket;
+    this.daemonFile = daemonFile;
+    this.token = token;
+    this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+      Thread thread = new Thread(runnable, "einherjar-daemon-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.acceptThread = new Thread(this::acceptLoop, "einherjar-daemon");
+  }
+
+  /**
+   * Starts a daemon listening on the port (0 means any free port) of the loopback interface,
+   * the port and the token are written in the daemon file.
+   */
+  static Daemon start(int port, Path daemonFile) throws IOException {
+    return start(port, daemonFile, HANDSHAKE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Starts a daemon, a client has {@code handshakeTimeoutMillis} to send its request.
+   */
+  static Daemon start(int port, Path daemonFile, int handshakeTimeoutMillis) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    try {
+      Daemon daemon = new Daemon(serverSocket, daemonFile, newToken(), handshakeTimeoutMillis);
+      createOwnerOnlyFile(daemonFile);
+      new Client.DaemonAddress(serverSocket.getLocalPort(), daemon.token).write(daemonFile);
+      daemon.acceptThread.start();
+      return daemon;
+    } catch (IOException | RuntimeException e) {
+      serverSocket.close();
+      throw e;
+    }
+  }
+
+  private static String newToken() {
+    byte[] bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder builder = new StringBuilder();
+    for (byte b : bytes) {
+      builder.append(String.format("%02x", b & 0xFF));
+    }
+    return builder.toString();
+  }
+
+  private static void createOwnerOnlyFile(Path file) throws IOException {
+    Files.deleteIfExists(file);
+    try {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system
+      Files.createFile(file);
+    }
+  }
+
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Waits until the daemon is closed.
+   */
+  void awaitTermination() throws InterruptedException {
+    acceptThread.join();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (serverSocket.isClosed()) {
+      return;
+    }
+    serverSocket.close();
+    executor.shutdown();
+    // do not delete the file of another daemon
+    try {
+      if (Client.DaemonAddress.read(daemonFile).token.equals(token)) {
+        Files.delete(daemonFile);
+      }
+    } catch (IOException e) {
+      // already deleted or overwritten
+    }
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        // the server socket is closed
+        continue;
+      }
+      executor.execute(() -> handle(socket));
+    }
+  }
+
+  private static final class FrameOutputStream extends OutputStream {
+    private final DataOutputStream output;
+    private final int kind;
+
+    FrameOutputStream(DataOutputStream output, int kind) {
+      this.output = output;
+      this.kind = kind;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      output.writeByte(kind);
+      output.writeInt(length);
+      output.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      output.flush();
+    }
+  }
+
+  private void handle(Socket socket) {
+    try(Socket s = socket) {
+      // a client that does not send its request must not pin a worker thread
+      s.setSoTimeout(handshakeTimeoutMillis);
+      DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      byte[] requestToken = Client.readString(input, Client.MAX_TOKEN_LENGTH).getBytes(StandardCharsets.UTF_8);
+      if (!MessageDigest.isEqual(requestToken, token.getBytes(StandardCharsets.UTF_8))) {
+        return;  // not a client of this daemon
+      }
+      String command = Client.readString(input, Client.MAX_STRING_LENGTH);
+      Path workingDirectory = Paths.get(Client.readString(input, Client.MAX_STRING_LENGTH));
+      int argCount = input.readInt();
+      if (argCount < 0 || argCount > Client.MAX_STRING_LENGTH) {
+        throw new IOException("invalid argument count " + argCount);
+      }
+      String[] args = new String[argCount];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = Client.readString(input, Client.MAX_STRING_LENGTH);
+      }
+      s.setSoTimeout(0);
+
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      int exitCode;
+      switch (command) {
+        case Client.COMMAND_RUN:
+          exitCode = run(args, workingDirectory, output);
+          break;
+        case Client.COMMAND_STOP:
+          exitCode = 0;
+          close();
+          break;
+        default:
+          PrintStream err = new PrintStream(new FrameOutputStream(output, Client.FRAME_ERR), true, "UTF-8");
+          err.println("daemon: unknown command " + command);
+          exitCode = 1;
+      }
+      output.writeByte(Client.FRAME_EXIT);
+      output.writeInt(exitCode);
+      output.flush();
+    } catch (IOException e) {
+      // the client has disconnected
+    }
+  }
+
+  private static int run(String[] args, Path workingDirectory, DataOutputStream output) throws IOException {
+    PrintStream out = new PrintStream(new FrameOutputStream(output, Client.FRAME_OUT), true, "UTF-8");
+    PrintStream err = new PrintStream(new FrameOutputStream(output, Client.FRAME_ERR), true, "UTF-8");
+    int exitCode;
+    try {
+      exitCode = Main.run(args, workingDirectory, NO_INPUT, out, err);
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace(err);
+      exitCode = 1;
+    }
+    out.flush();
+    err.flush();
+    return exitCode;
+  }
+
+  // run the analysis on the classes of einherjar itself, so the JIT compiles it before the first request
+  private static void warmUp() throws IOException {
+    CodeSource codeSource = Daemon.class.getProtectionDomain().getCodeSource();
+    if (codeSource == null) {
+      return;
+    }
+    Path jarFile;
+    try {
+      jarFile = Paths.get(codeSource.getLocation().toURI());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return;
+    }
+    if (!Files.isRegularFile(jarFile)) {
+      return;
+    }
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      Facade.find(jarFile, className -> { /* empty */ });
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 0;
+    Path daemonFile = Client.defaultDaemonFile();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--port":
+            port = Integer.parseInt(args[++i]);
+            break;
+          case "--daemon-file":
+            daemonFile = Paths.get(args[++i]);
+            break;
+          default:
+            throw new IllegalArgumentException("unknown option " + args[i]);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      System.err.println("daemon: invalid option value " + e.getMessage());
+      System.exit(1);
+      return;
+    } catch (IllegalArgumentException e) {
+      System.err.println("daemon: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    Daemon daemon = start(port, daemonFile);
+    System.err.println("daemon listening on port " + daemon.port() + ", daemon file " + daemonFile);
+    warmUp();
+    try {
+      daemon.awaitTermination();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      daemon.close();
+    }
+  }
+}
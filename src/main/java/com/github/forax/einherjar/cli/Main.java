@@ -1,35 +1,125 @@
 package com.github.forax.einherjar.cli;
 
+import com.github.forax.einherjar.agent.Instrumenter;
 import com.github.forax.einherjar.api.ValueType;
+import com.github.forax.einherjar.core.EnhanceLayout;
 import com.github.forax.einherjar.core.Facade;
+import com.github.forax.einherjar.core.FacadeListener;
+import com.github.forax.einherjar.core.FacadeStats;
 import com.github.forax.einherjar.core.ValueTypeChecker;
 
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.unmodifiableList;
 import static java.util.Collections.unmodifiableSet;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 public class Main {
   enum Action {
-    CHECK, FIND, ENHANCE;
+    CHECK, FIND, ENHANCE, INSTRUMENT;
 
     static Action parse(String actionName) {
       switch (actionName) {
         case "check": return Action.CHECK;
         case "find": return Action.FIND;
         case "enhance": return Action.ENHANCE;
+        case "instrument": return Action.INSTRUMENT;
         default: throw new IllegalArgumentException("unknown action " + actionName);
       }
     }
+
+    boolean acceptSeveralJarFiles() {
+      return this == INSTRUMENT;
+    }
+
+    boolean supportStats() {
+      return this != INSTRUMENT;
+    }
+
+    boolean supportStandardStreams() {
+      return this == ENHANCE;
+    }
+  }
+
+  // "-" means stdin for the jar file and stdout for the output
+  static final Path STANDARD_STREAM = Paths.get("-");
+
+  // "jrt:/" means the runtime image of the VM
+  static final String RUNTIME_IMAGE = "jrt:/";
+
+  private static Path resolve(Path workingDirectory, String path) {
+    if (path.equals(RUNTIME_IMAGE)) {
+      try {
+        return Paths.get(URI.create(RUNTIME_IMAGE));
+      } catch (FileSystemNotFoundException | ProviderNotFoundException e) {
+        throw new IllegalArgumentException(RUNTIME_IMAGE + " is not supported by this VM");
+      }
+    }
+    if (path.equals("-")) {
+      return STANDARD_STREAM;
+    }
+    Path resolved = workingDirectory.resolve(path);
+    if (Files.isRegularFile(resolved.resolve(RUNTIME_IMAGE_MODULES))) {
+      // the root of another runtime image, opened with its own jrt filesystem
+      try {
+        return FileSystems.newFileSystem(URI.create(RUNTIME_IMAGE), Collections.singletonMap("java.home", resolved.toString())).getPath("/");
+      } catch (IOException | ProviderNotFoundException e) {
+        throw new IllegalArgumentException("can not open the runtime image " + resolved, e);
+      }
+    }
+    return resolved;
+  }
+
+  private static final String RUNTIME_IMAGE_MODULES = "lib/modules";
+
+  // the runtime image, a jmod file or a directory of jmod files
+  private static boolean isModules(Path path) {
+    if (path.getFileSystem().provider().getScheme().equals("jrt") || path.toString().endsWith(".jmod")) {
+      return true;
+    }
+    if (!Files.isDirectory(path)) {
+      return false;
+    }
+    try(Stream<Path> stream = Files.list(path)) {
+      return stream.anyMatch(file -> file.toString().endsWith(".jmod"));
+    } catch (IOException e) {
+      return false;
+    }
   }
 
   static class Option<T> {
@@ -37,7 +127,17 @@ public class Main {
       public static final Kind<String> ANNOTATION_NAME = new Kind<>();
       public static final Kind<Set<String>> CLASS_SET = new Kind<>();
       public static final Kind<Path> OUTPUT = new Kind<>();
-      public static final Kind<Integer> VERSION = new Kind<>();
+      public static final Kind<Set<Integer>> VERSION_SET = new Kind<>();
+      public static final Kind<Boolean> STATS = new Kind<>();
+      public static final Kind<Path> STATS_JSON = new Kind<>();
+      public static final Kind<Path> CLASS_LOAD_LIST = new Kind<>();
+      public static final Kind<Boolean> STORE_HOT_CLASSES = new Kind<>();
+      public static final Kind<Path> CDS_CLASSLIST = new Kind<>();
+      public static final Kind<Set<EnhanceLayout.StrippedAttribute>> STRIPPED_ATTRIBUTE_SET = new Kind<>();
+      public static final Kind<EnhanceLayout.CompressionPolicy> COMPRESSION_POLICY = new Kind<>();
+      public static final Kind<List<Path>> CLASSPATH = new Kind<>();
+      public static final Kind<Boolean> IDENTITY_USAGES = new Kind<>();
+      public static final Kind<Set<String>> MODULE_SET = new Kind<>();
 
       private Kind() {
       }
@@ -56,7 +156,26 @@ public class Main {
       return unmodifiableSet(new HashSet<>(Arrays.asList(parts)));
     }
 
-    static Option<?> parseOption(String option, Iterator<String> optionValue) {
+    private static Set<EnhanceLayout.StrippedAttribute> splitAsStrippedAttributeSet(String attributelist) {
+      String[] parts = attributelist.split(" *, *");
+      return unmodifiableSet(Arrays.stream(parts).map(EnhanceLayout.StrippedAttribute::of).collect(toSet()));
+    }
+
+    private static Set<Integer> splitAsVersionSet(String versionlist) {
+      String[] parts = versionlist.split(" *, *");
+      TreeSet<Integer> versionSet = Arrays.stream(parts).map(Integer::valueOf).collect(toCollection(TreeSet::new));
+      return unmodifiableSet(versionSet);
+    }
+
+    private static List<Path> splitAsClasspath(String classpath, Path workingDirectory) {
+      if (classpath.isEmpty()) {
+        return emptyList();  // only the classes of the jar
+      }
+      String[] parts = classpath.split(Pattern.quote(File.pathSeparator));
+      return unmodifiableList(Arrays.stream(parts).map(workingDirectory::resolve).collect(toList()));
+    }
+
+    static Option<?> parseOption(String option, Iterator<String> optionValue, Path workingDirectory) {
       try {
         switch (option) {
           case "--annotation":
@@ -64,9 +183,29 @@ public class Main {
           case "--classes":
             return new Option<>(Kind.CLASS_SET, splitAsClassSet(optionValue.next()));
           case "--output":
-            return new Option<>(Kind.OUTPUT, Paths.get(optionValue.next()));
+            return new Option<>(Kind.OUTPUT, resolve(workingDirectory, optionValue.next()));
           case "--version":
-            return new Option<>(Kind.VERSION, Integer.parseInt(optionValue.next()));
+            return new Option<>(Kind.VERSION_SET, splitAsVersionSet(optionValue.next()));
+          case "--stats":
+            return new Option<>(Kind.STATS, true);
+          case "--stats-json":
+            return new Option<>(Kind.STATS_JSON, workingDirectory.resolve(optionValue.next()));
+          case "--class-load-list":
+            return new Option<>(Kind.CLASS_LOAD_LIST, workingDirectory.resolve(optionValue.next()));
+          case "--store-hot-classes":
+            return new Option<>(Kind.STORE_HOT_CLASSES, true);
+          case "--cds-classlist":
+            return new Option<>(Kind.CDS_CLASSLIST, workingDirectory.resolve(optionValue.next()));
+          case "--strip-attributes":
+            return new Option<>(Kind.STRIPPED_ATTRIBUTE_SET, splitAsStrippedAttributeSet(optionValue.next()));
+          case "--compression-level":
+            return new Option<>(Kind.COMPRESSION_POLICY, EnhanceLayout.CompressionPolicy.parse(optionValue.next()));
+          case "--classpath":
+            return new Option<>(Kind.CLASSPATH, splitAsClasspath(optionValue.next(), workingDirectory));
+          case "--identity-usages":
+            return new Option<>(Kind.IDENTITY_USAGES, true);
+          case "--modules":
+            return new Option<>(Kind.MODULE_SET, splitAsClassSet(optionValue.next()));
           default:
             throw new IllegalArgumentException("unknown option " + option);
         }
@@ -78,30 +217,54 @@ public class Main {
 
   private static String help() {
     return
-      "java -jar target/einherjar.jar action [--option optionValue] jarfile\n" +
+      "java -jar target/einherjar.jar action [--option optionValue] jarfile [jarfile...]\n" +
       "  execute the action on the jarfile\n" +
       "\n" +
       "  action:\n" +
       "    check:   check if the annotated classes can be value types\n" +
-      "    find:    find all classes that can be value types\n" +
+      "    find:    find all classes that can be value types (the jarfile can also be jrt:/, a jmod file or a directory of jmod files)\n" +
       "    enhance: rewrite annotated classes to be value types using a multi-release jar\n" +
+      "    instrument: rewrite all classes of the jarfiles like the agent does, so they run without the agent\n" +
       "\n" +
       "  option:\n" +
       "    --annotation name: set the qualified name of the annotation\n" +
       "    --classes nameset: a comma separated set of qualified class names\n" +
-      "    --output path: path of the enhanced jar\n" +
-      "    --version version: classfile version of the generated value class";
+      "    --output path: path of the enhanced/instrumented jar (a directory if several jarfiles are instrumented)\n" +
+      "                   for enhance, - as jarfile or as output path means stdin or stdout\n" +
+      "    --version versionset: a comma separated set of classfile versions of the generated value classes\n" +
+      "    --stats: print the time spent in each phase, the bytes read and written and the slowest classes (not for instrument)\n" +
+      "    --stats-json path: write the same statistics as JSON in a file (not for instrument)\n" +
+      "    --class-load-list path: for enhance, write first the classes of a class-load list (-Xlog:class+load or CDS classlist)\n" +
+      "    --store-hot-classes: for enhance, store the classes of the class-load list uncompressed\n" +
+      "    --cds-classlist path: for enhance, write an AppCDS class list with the loaded classes and the value classes\n" +
+      "    --strip-attributes nameset: for enhance, a comma separated set of attributes removed from the value classes\n" +
+      "                                (LocalVariableTable, LineNumberTable, SourceDebugExtension)\n" +
+      "    --compression-level levels: for enhance, a comma separated list of pattern=level or level (e.g. META-INF/versions/*=9,6)\n" +
+      "    --classpath paths: for check and enhance, the jars and directories used to check the abstract super classes\n" +
+      "                       of the value classes, \"\" to only use the classes of the jar\n" +
+      "    --identity-usages: for find, check and enhance, scan the jar for synchronized, ==, System.identityHashCode\n" +
+      "                       and references on the value classes, find excludes them, check and enhance report them\n" +
+      "    --modules nameset: for find on jrt:/, a jmod file or a directory of jmod files, a comma separated set of module names\n" +
+      "\n" +
+      "java -jar target/einherjar.jar daemon [--port port] [--daemon-file path]\n" +
+      "  start a warm daemon listening on the loopback interface that runs check, find and enhance\n" +
+      "\n" +
+      "java -jar target/einherjar.jar client [--daemon-file path] action [--option optionValue] jarfile\n" +
+      "java -jar target/einherjar.jar client [--daemon-file path] --stop\n" +
+      "  ask the daemon to execute the action (or to stop), the output and the exit code are the ones of the action";
   }
 
   static final class CmdLine {
     final Action action;
     final Map<Option.Kind<?>, Object> optionMap;
     final Path jarFile;
+    final List<Path> jarFiles;
 
-    CmdLine(Action action, Map<Option.Kind<?>, Object> optionMap, Path jarFile) {
+    CmdLine(Action action, Map<Option.Kind<?>, Object> optionMap, List<Path> jarFiles) {
       this.action = action;
       this.optionMap = optionMap;
-      this.jarFile = jarFile;
+      this.jarFile = jarFiles.get(0);
+      this.jarFiles = jarFiles;
     }
 
     @SuppressWarnings("unchecked")
@@ -110,76 +273,244 @@ public class Main {
     }
 
     static CmdLine parse(String[] args) throws IllegalArgumentException {
+      return parse(args, Paths.get(""));
+    }
+
+    // the relative paths are resolved against the working directory (the one of the client for the daemon)
+    static CmdLine parse(String[] args, Path workingDirectory) throws IllegalArgumentException {
       if (args.length == 0) {
         throw new IllegalArgumentException("no action defined");
       }
       Action action = Action.parse(args[0]);
       HashMap<Option.Kind<?>, Object> optionMap = new HashMap<>();
-      Path jarFile = null;
+      ArrayList<Path> jarFiles = new ArrayList<>();
 
       Iterator<String> iterator = Arrays.asList(args).subList(1, args.length).iterator();
       while(iterator.hasNext()) {
         String optionName = iterator.next();
         if (!optionName.startsWith("--")) {
-          if (iterator.hasNext()) {
-            throw new IllegalArgumentException("options should start with '--' " + optionName);
-          }
-          jarFile = Paths.get(optionName);
-          break;
+          jarFiles.add(resolve(workingDirectory, optionName));
+          continue;
+        }
+        if (!jarFiles.isEmpty()) {
+          throw new IllegalArgumentException("options should be defined before the jar files " + optionName);
         }
-        Option<?> option = Option.parseOption(optionName, iterator);
+        Option<?> option = Option.parseOption(optionName, iterator, workingDirectory);
         if (optionMap.putIfAbsent(option.kind, option.value) != null) {
           throw new IllegalArgumentException("option " + optionName + " defined twice");
         }
       }
 
-      if (jarFile == null) {
+      if (jarFiles.isEmpty()) {
         throw new IllegalArgumentException("no jar file defined");
       }
-      return new CmdLine(action, optionMap, jarFile);
+      if (jarFiles.size() != 1 && !action.acceptSeveralJarFiles()) {
+        throw new IllegalArgumentException("only one jar file can be defined");
+      }
+      if ((jarFiles.contains(STANDARD_STREAM) || STANDARD_STREAM.equals(optionMap.get(Option.Kind.OUTPUT))) && !action.supportStandardStreams()) {
+        throw new IllegalArgumentException("- is not supported by the action " + args[0]);
+      }
+      if ((optionMap.containsKey(Option.Kind.STATS) || optionMap.containsKey(Option.Kind.STATS_JSON)) && !action.supportStats()) {
+        throw new IllegalArgumentException("statistics are not supported by the action " + args[0]);
+      }
+      if (hasLayout(optionMap) && (action != Action.ENHANCE || jarFiles.contains(STANDARD_STREAM) || STANDARD_STREAM.equals(optionMap.get(Option.Kind.OUTPUT)))) {
+        throw new IllegalArgumentException("the layout options are only supported by the action enhance on files");
+      }
+      if (optionMap.containsKey(Option.Kind.CLASSPATH) && ((action != Action.CHECK && action != Action.ENHANCE) || jarFiles.contains(STANDARD_STREAM) || STANDARD_STREAM.equals(optionMap.get(Option.Kind.OUTPUT)))) {
+        throw new IllegalArgumentException("--classpath is only supported by the actions check and enhance on files");
+      }
+      boolean modules = isModules(jarFiles.get(0));
+      if (modules && action != Action.FIND) {
+        throw new IllegalArgumentException("jrt:/ and the jmod files are only supported by the action find");
+      }
+      if (optionMap.containsKey(Option.Kind.MODULE_SET) && !modules) {
+        throw new IllegalArgumentException("--modules is only supported on jrt:/ and the jmod files");
+      }
+      if (optionMap.containsKey(Option.Kind.IDENTITY_USAGES) && (modules || action == Action.INSTRUMENT || jarFiles.contains(STANDARD_STREAM) || STANDARD_STREAM.equals(optionMap.get(Option.Kind.OUTPUT)))) {
+        throw new IllegalArgumentException("--identity-usages is only supported by the actions find, check and enhance on jar files");
+      }
+      return new CmdLine(action, optionMap, unmodifiableList(jarFiles));
     }
   }
 
-  private static Path defaultEnhancedJarName(Path jarFile) {
+  private static boolean hasLayout(Map<Option.Kind<?>, Object> optionMap) {
+    return optionMap.containsKey(Option.Kind.CLASS_LOAD_LIST) ||
+        optionMap.containsKey(Option.Kind.STORE_HOT_CLASSES) ||
+        optionMap.containsKey(Option.Kind.CDS_CLASSLIST) ||
+        optionMap.containsKey(Option.Kind.STRIPPED_ATTRIBUTE_SET) ||
+        optionMap.containsKey(Option.Kind.COMPRESSION_POLICY);
+  }
+
+  private static String jarName(Path jarFile, String suffix) {
     String filename = jarFile.getFileName().toString();
     int extensionIndex = filename.lastIndexOf('.');
-    String enhancedFilename = extensionIndex == 1? filename : filename.substring(0, extensionIndex);
-    return jarFile.resolveSibling(enhancedFilename + "-enhanced.jar");
+    String basename = extensionIndex == -1? filename : filename.substring(0, extensionIndex);
+    return basename + suffix + ".jar";
+  }
+
+  private static Path defaultEnhancedJarName(Path jarFile) {
+    return jarFile.resolveSibling(jarName(jarFile, "-enhanced"));
+  }
+
+  private static Path instrumentedJarName(Path jarFile, Path outputDirectory) {
+    String instrumentedFilename = jarName(jarFile, "-instrumented");
+    return outputDirectory == null? jarFile.resolveSibling(instrumentedFilename): outputDirectory.resolve(instrumentedFilename);
   }
 
   public static void main(String[] args) throws IOException {
+    if (args.length != 0 && args[0].equals("daemon")) {
+      Daemon.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length != 0 && args[0].equals("client")) {
+      Client.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    int exitCode = run(args, Paths.get(""), System.in, System.out, System.err);
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  private static EnhanceLayout layout(CmdLine cmdLine) throws IOException {
+    if (!hasLayout(cmdLine.optionMap)) {
+      return null;
+    }
+    Path classLoadList = cmdLine.getOptionValue(Option.Kind.CLASS_LOAD_LIST, () -> null);
+    List<String> hotClassNames = classLoadList == null ? Collections.<String>emptyList() : EnhanceLayout.readClassLoadList(classLoadList);
+    boolean storeHotClasses = cmdLine.getOptionValue(Option.Kind.STORE_HOT_CLASSES, () -> false);
+    return new EnhanceLayout(hotClassNames, storeHotClasses, cmdLine.getOptionValue(Option.Kind.CDS_CLASSLIST, () -> null))
+        .withStrippedAttributes(cmdLine.getOptionValue(Option.Kind.STRIPPED_ATTRIBUTE_SET, Collections::emptySet))
+        .withCompressionPolicy(cmdLine.getOptionValue(Option.Kind.COMPRESSION_POLICY, () -> EnhanceLayout.CompressionPolicy.DEFAULT));
+  }
+
+  /**
+   * Runs an action, relative paths are resolved against the working directory,
+   * the messages are printed on out and err and "-" reads the jar from in or writes it on out.
+   * @return the exit code
+   */
+  static int run(String[] args, Path workingDirectory, InputStream in, PrintStream out, PrintStream err) throws IOException {
     CmdLine cmdLine;
     try {
-      cmdLine = CmdLine.parse(args);
+      cmdLine = CmdLine.parse(args, workingDirectory);
     } catch (IllegalArgumentException e) {
-      System.err.println("command line: " + e.getMessage() + "\n");
-      System.err.println(help());
-      System.exit(1);
-      return;
+      err.println("command line: " + e.getMessage() + "\n");
+      err.println(help());
+      return 1;
     }
 
     // compute default values
     String annotationName = cmdLine.getOptionValue(Option.Kind.ANNOTATION_NAME, ValueType.class::getName);
     Set<String> classSet = cmdLine.getOptionValue(Option.Kind.CLASS_SET, HashSet::new);
-    Path toPath = cmdLine.getOptionValue(Option.Kind.OUTPUT, () -> defaultEnhancedJarName(cmdLine.jarFile));
-    int version = cmdLine.getOptionValue(Option.Kind.VERSION, () -> 23);
+    Path toPath = cmdLine.getOptionValue(Option.Kind.OUTPUT, () -> cmdLine.action == Action.INSTRUMENT ?
+        instrumentedJarName(cmdLine.jarFile, null) :
+        cmdLine.jarFile.equals(STANDARD_STREAM) ? STANDARD_STREAM : defaultEnhancedJarName(cmdLine.jarFile));
+    Set<Integer> versionSet = cmdLine.getOptionValue(Option.Kind.VERSION_SET, () -> singleton(23));
+    List<Path> classpath = cmdLine.getOptionValue(Option.Kind.CLASSPATH, () -> null);
+    boolean identityUsages = cmdLine.getOptionValue(Option.Kind.IDENTITY_USAGES, () -> false);
 
+    boolean printStats = cmdLine.getOptionValue(Option.Kind.STATS, () -> false);
+    Path statsJsonPath = cmdLine.getOptionValue(Option.Kind.STATS_JSON, () -> null);
+    FacadeStats stats = printStats || statsJsonPath != null ? new FacadeStats() : null;
+    FacadeListener listener = stats == null ? FacadeListener.NONE : stats;
+
+    int[] issueCount = { 0 };
     ValueTypeChecker.IssueReporter issueReporter = (issue, className, message) -> {
-      System.err.println(issue + ": class " + className + ", " + message);
+      err.println(issue + ": class " + className + ", " + message);
+      issueCount[0]++;
     };
 
     switch (cmdLine.action) {
       case CHECK:
-        Facade.check(annotationName, classSet, cmdLine.jarFile, issueReporter);
-        return;
+        Facade.check(annotationName, classSet, cmdLine.jarFile, classpath, identityUsages, issueReporter, listener);
+        break;
       case FIND:
-        Facade.find(cmdLine.jarFile, className -> {
-          System.out.println("found potential value class " + className.replace('/', '.'));
-        });
-        return;
+        Consumer<String> potentialValueTypeConsumer = className -> {
+          out.println("found potential value class " + className.replace('/', '.'));
+        };
+        if (isModules(cmdLine.jarFile)) {
+          Set<String> moduleSet = cmdLine.getOptionValue(Option.Kind.MODULE_SET, () -> null);
+          Facade.findModules(cmdLine.jarFile, moduleSet == null ? moduleName -> true : moduleSet::contains, potentialValueTypeConsumer, listener);
+          break;
+        }
+        Facade.find(cmdLine.jarFile, potentialValueTypeConsumer, listener, identityUsages);
+        break;
       case ENHANCE:
-        Facade.enhance(annotationName, classSet, cmdLine.jarFile, toPath, version, issueReporter);
-        return;
+        if (!cmdLine.jarFile.equals(STANDARD_STREAM) && !toPath.equals(STANDARD_STREAM)) {
+          Facade.enhance(annotationName, classSet, cmdLine.jarFile, toPath, classpath, identityUsages, versionSet, issueReporter, listener, null, layout(cmdLine));
+          break;
+        }
+        // stream the jars, the statistics are printed on stderr so they do not mix with the jar,
+        // an output file is written in a temporary file atomically renamed if no issue is found
+        Path temporary = toPath.equals(STANDARD_STREAM) ?
+            null :
+            Files.createTempFile(toPath.toAbsolutePath().getParent(), toPath.getFileName().toString(), ".tmp");
+        try {
+          try(InputStream input = cmdLine.jarFile.equals(STANDARD_STREAM) ? nonClosing(in) : Files.newInputStream(cmdLine.jarFile);
+              OutputStream output = temporary == null ? nonClosing(out) : Files.newOutputStream(temporary)) {
+            Facade.enhance(annotationName, classSet, input, output, versionSet, issueReporter, listener);
+          }
+          if (temporary != null && issueCount[0] == 0) {
+            moveAtomically(temporary, toPath);
+          }
+        } finally {
+          if (temporary != null) {
+            Files.deleteIfExists(temporary);
+          }
+        }
+        break;
+      case INSTRUMENT:
+        if (cmdLine.jarFiles.size() == 1) {
+          Instrumenter.instrument(cmdLine.jarFile, toPath);
+          return 0;
+        }
+        Path outputDirectory = cmdLine.optionMap.containsKey(Option.Kind.OUTPUT) ? toPath : null;
+        if (outputDirectory != null) {
+          Files.createDirectories(outputDirectory);
+        }
+        Instrumenter.instrumentAll(cmdLine.jarFiles, jarFile -> instrumentedJarName(jarFile, outputDirectory));
+        return 0;
     }
+
+    // the statistics are printed on stderr, so they do not mix with the result of find
+    if (printStats) {
+      err.print(stats);
+    }
+    if (statsJsonPath != null) {
+      Files.write(statsJsonPath, stats.toJSON().getBytes(StandardCharsets.UTF_8));
+    }
+    // no enhanced jar is generated if there are issues
+    return cmdLine.action == Action.ENHANCE && issueCount[0] != 0 ? 1 : 0;
+  }
+
+  private static void moveAtomically(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static InputStream nonClosing(InputStream input) {
+    return new FilterInputStream(input) {
+      @Override
+      public void close() {
+        // do not close stdin
+      }
+    };
+  }
+
+  private static OutputStream nonClosing(OutputStream output) {
+    return new FilterOutputStream(output) {
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();  // do not close stdout
+      }
+    };
   }
 }
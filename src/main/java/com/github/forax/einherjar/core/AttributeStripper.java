@@ -0,0 +1,51 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.Set;
+
+import static com.github.forax.einherjar.core.EnhanceLayout.StrippedAttribute.LINE_NUMBER_TABLE;
+import static com.github.forax.einherjar.core.EnhanceLayout.StrippedAttribute.LOCAL_VARIABLE_TABLE;
+import static com.github.forax.einherjar.core.EnhanceLayout.StrippedAttribute.SOURCE_DEBUG_EXTENSION;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+// removes the debug attributes of a class, the code of the methods is visited,
+// so the methods are not copied as is by the ClassWriter
+final class AttributeStripper extends ClassVisitor {
+  private final Set<EnhanceLayout.StrippedAttribute> strippedAttributes;
+
+  AttributeStripper(ClassVisitor classVisitor, Set<EnhanceLayout.StrippedAttribute> strippedAttributes) {
+    super(ASM9, classVisitor);
+    this.strippedAttributes = strippedAttributes;
+  }
+
+  @Override
+  public void visitSource(String source, String debug) {
+    super.visitSource(source, strippedAttributes.contains(SOURCE_DEBUG_EXTENSION) ? null : debug);
+  }
+
+  @Override
+  public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+    MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+    if (methodVisitor == null) {
+      return null;
+    }
+    return new MethodVisitor(ASM9, methodVisitor) {
+      @Override
+      public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+        if (!strippedAttributes.contains(LOCAL_VARIABLE_TABLE)) {
+          super.visitLocalVariable(name, descriptor, signature, start, end, index);
+        }
+      }
+
+      @Override
+      public void visitLineNumber(int line, Label start) {
+        if (!strippedAttributes.contains(LINE_NUMBER_TABLE)) {
+          super.visitLineNumber(line, start);
+        }
+      }
+    };
+  }
+}
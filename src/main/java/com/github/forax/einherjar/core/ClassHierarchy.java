@@ -0,0 +1,305 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * An index of the super classes of the classes of a jar and of a classpath (jars and directories),
+ * used to know if a super class can be an abstract value class.
+ *
+ * The index is built in parallel and only stores, for each class, the index of its super class
+ * and a byte of flags. If a class is defined several times, the first definition wins like with a classpath.
+ * The first path is the jar to enhance, its classes are rewritten with the value classes that inherit from them.
+ */
+final class ClassHierarchy {
+  private static final int DEFINED = 1;
+  private static final int ROOT = 2;  // defined in the first path
+  private static final int ABSTRACT = 4;
+  private static final int INTERFACE = 8;
+  private static final int NON_FINAL_FIELD = 16;
+  private static final int SYNCHRONIZED_METHOD = 32;
+  private static final int VALUE = 64;  // already a value class in a versioned entry
+
+  private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+  private final HashMap<String, Integer> indexMap = new HashMap<>();
+  private final ArrayList<String> names = new ArrayList<>();
+  private int[] superIndexes = new int[64];
+  private byte[] flags = new byte[64];
+
+  private ClassHierarchy() {
+  }
+
+  // the information of a class read from one classfile
+  private static final class ClassSummary {
+    private final String name;
+    private final String superName;
+    private final int flags;
+
+    private ClassSummary(String name, String superName, int flags) {
+      this.name = name;
+      this.superName = superName;
+      this.flags = flags;
+    }
+  }
+
+  /**
+   * Indexes the classes of the jars and the directories, the first path is the jar to enhance.
+   */
+  static ClassHierarchy index(List<Path> paths) throws IOException {
+    List<List<ClassSummary>> summaries;
+    try {
+      summaries = paths.parallelStream()
+          .map(path -> {
+            try {
+              return Files.isDirectory(path) ? summarizeDirectory(path) : summarizeJar(path);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          })
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    ClassHierarchy hierarchy = new ClassHierarchy();
+    for (int i = 0; i < summaries.size(); i++) {
+      for (ClassSummary summary : summaries.get(i)) {
+        hierarchy.add(summary, i == 0);
+      }
+    }
+    return hierarchy;
+  }
+
+  private static List<ClassSummary> summarizeJar(Path path) throws IOException {
+    try(ZipFile zipFile = new ZipFile(path.toFile())) {
+      List<? extends ZipEntry> entries = Collections.list(zipFile.entries()).stream()
+          .filter(entry -> entry.getName().endsWith(".class") && !entry.getName().endsWith("module-info.class"))
+          .collect(Collectors.toList());
+      try {
+        return entries.parallelStream()
+            .map(entry -> {
+              try(InputStream input = zipFile.getInputStream(entry)) {
+                return summarize(entry.getName(), readAllBytes(input));
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            })
+            .collect(Collectors.toList());
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static List<ClassSummary> summarizeDirectory(Path directory) throws IOException {
+    List<Path> classFiles;
+    try(Stream<Path> stream = Files.walk(directory)) {
+      classFiles = stream.filter(file -> file.toString().endsWith(".class") && !file.endsWith("module-info.class"))
+          .collect(Collectors.toList());
+    }
+    try {
+      return classFiles.parallelStream()
+          .map(file -> {
+            try {
+              String entryName = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+              return summarize(entryName, Files.readAllBytes(file));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          })
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static byte[] readAllBytes(InputStream input) throws IOException {
+    byte[] buffer = new byte[8_192];
+    int size = 0;
+    int read;
+    while ((read = input.read(buffer, size, buffer.length - size)) != -1) {
+      size += read;
+      if (size == buffer.length) {
+        buffer = Arrays.copyOf(buffer, size << 1);
+      }
+    }
+    return Arrays.copyOf(buffer, size);
+  }
+
+  private static ClassSummary summarize(String entryName, byte[] content) {
+    int[] classFlags = { 0 };
+    String[] superName = { null };
+    ClassReader reader = new ClassReader(content);
+    reader.accept(new ClassVisitor(ASM9) {
+      @Override
+      public void visit(int version, int access, String name, String signature, String superClassName, String[] interfaces) {
+        superName[0] = superClassName;
+        if ((access & Opcodes.ACC_ABSTRACT) != 0) {
+          classFlags[0] |= ABSTRACT;
+        }
+        if ((access & Opcodes.ACC_INTERFACE) != 0) {
+          classFlags[0] |= INTERFACE;
+        }
+        // the rewritten classes have no ACC_IDENTITY (ACC_SUPER)
+        if (entryName.startsWith(VERSIONS_PREFIX) && (access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_SUPER)) == 0) {
+          classFlags[0] |= VALUE;
+        }
+      }
+
+      @Override
+      public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        if ((access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == 0) {
+          classFlags[0] |= NON_FINAL_FIELD;
+        }
+        return null;
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if ((access & (Opcodes.ACC_STATIC | Opcodes.ACC_SYNCHRONIZED)) == Opcodes.ACC_SYNCHRONIZED) {
+          classFlags[0] |= SYNCHRONIZED_METHOD;
+        }
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return new ClassSummary(reader.getClassName(), superName[0], classFlags[0]);
+  }
+
+  private int indexOf(String name) {
+    Integer index = indexMap.get(name);
+    if (index != null) {
+      return index;
+    }
+    int newIndex = names.size();
+    names.add(name);
+    indexMap.put(name, newIndex);
+    if (newIndex == flags.length) {
+      flags = Arrays.copyOf(flags, newIndex << 1);
+      superIndexes = Arrays.copyOf(superIndexes, newIndex << 1);
+    }
+    superIndexes[newIndex] = -1;
+    return newIndex;
+  }
+
+  private void add(ClassSummary summary, boolean root) {
+    int index = indexOf(summary.name);
+    if ((summary.flags & VALUE) != 0) {
+      flags[index] |= VALUE;  // a versioned entry only says that the class is a value class
+      return;
+    }
+    if ((flags[index] & DEFINED) != 0) {
+      return;  // the first definition wins
+    }
+    flags[index] |= (byte) (summary.flags | DEFINED | (root ? ROOT : 0));
+    superIndexes[index] = summary.superName == null ? -1 : indexOf(summary.superName);
+  }
+
+  /**
+   * Returns the number of classes defined by the paths.
+   */
+  int size() {
+    int count = 0;
+    for (int i = 0; i < names.size(); i++) {
+      if ((flags[i] & DEFINED) != 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  static boolean isValueSuperClass(String superName) {
+    if (superName == null) {
+      return false;
+    }
+    switch (superName) {
+      case "java/lang/Object":
+      case "java/lang/Number":
+      case "java/lang/Record":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns null if the super class and all its super classes can be abstract value classes,
+   * or a message that explains why.
+   */
+  String abstractValueClassIssue(String superName) {
+    String name = superName;
+    for (int depth = 0; depth <= names.size(); depth++) {
+      if (isValueSuperClass(name)) {
+        return null;
+      }
+      Integer index = indexMap.get(name);
+      int classFlags = index == null ? 0 : flags[index];
+      if ((classFlags & VALUE) != 0) {
+        return null;
+      }
+      if ((classFlags & DEFINED) == 0) {
+        return "super class " + name + " is unknown";
+      }
+      if ((classFlags & (ABSTRACT | INTERFACE)) != ABSTRACT) {
+        return "super class " + name + " is not abstract";
+      }
+      if ((classFlags & NON_FINAL_FIELD) != 0) {
+        return "super class " + name + " has a non final field";
+      }
+      if ((classFlags & SYNCHRONIZED_METHOD) != 0) {
+        return "super class " + name + " has a synchronized method";
+      }
+      if ((classFlags & ROOT) == 0) {
+        return "super class " + name + " is not in the jar and is not a value class";
+      }
+      int superIndex = superIndexes[index];
+      if (superIndex == -1) {
+        return "super class " + name + " has no super class";
+      }
+      name = names.get(superIndex);
+    }
+    return "super class " + superName + " has a cyclic hierarchy";
+  }
+
+  /**
+   * Returns the super classes of a class that are defined in the jar to enhance
+   * and are not already value classes, the direct super class first.
+   */
+  List<String> rootSuperClasses(String className) {
+    ArrayList<String> superClasses = new ArrayList<>();
+    Integer index = indexMap.get(className);
+    for (int depth = 0; index != null && depth <= names.size(); depth++) {
+      int superIndex = superIndexes[index];
+      if (superIndex == -1) {
+        break;
+      }
+      int superFlags = flags[superIndex];
+      if ((superFlags & (ROOT | VALUE)) != ROOT) {
+        break;
+      }
+      superClasses.add(names.get(superIndex));
+      index = superIndex;
+    }
+    return superClasses;
+  }
+}
@@ -0,0 +1,253 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A cache of the result of the analysis of the classes by
+ * {@link Facade#enhance(String, java.util.Set, Path, Path, java.util.Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache)},
+ * so only the classes that have changed since the previous call are analyzed and rewritten.
+ *
+ * A class is identified by the name of its entry and the SHA-256 of its content,
+ * the classes with issues are not cached so their issues are reported each time.
+ * The whole cache is invalidated if the annotation, the class set, the versions, the stripped attributes
+ * or the implementation of einherjar (the bytecode of the classes that check and rewrite) change.
+ *
+ * This class is not thread safe.
+ */
+public final class EnhanceCache {
+  private static final int MAGIC = 0xE1_4E_CA_C4;
+  private static final int FORMAT_VERSION = 2;
+
+  private static final class CachedClass {
+    private final byte[] digest;
+    private final byte[][] valueClasses;  // one by version, null if the class is not rewritten
+
+    private CachedClass(byte[] digest, byte[][] valueClasses) {
+      this.digest = digest;
+      this.valueClasses = valueClasses;
+    }
+  }
+
+  // the classes that decide the content of the cache, their nested classes are found from their InnerClasses attribute
+  private static final Class<?>[] IMPLEMENTATION_CLASSES = {
+      Facade.class, ValueTypeChecker.class, ValueTypeRewriter.class, ClassMatcher.class,
+      AttributeStripper.class, ClassHierarchy.class, EnhanceCache.class
+  };
+
+  private static final class ImplementationVersionHolder {
+    private static final String IMPLEMENTATION_VERSION = computeImplementationVersion();
+  }
+
+  private String configuration = "";
+  private HashMap<String, CachedClass> previousClasses = new HashMap<>();
+  private HashMap<String, CachedClass> classes = new HashMap<>();
+  private int hitCount;
+  private int missCount;
+
+  /**
+   * Creates an empty cache.
+   */
+  public EnhanceCache() {
+  }
+
+  /**
+   * Loads a cache saved by {@link #save(Path)}, returns an empty cache if the file
+   * does not exist or was saved by another version of einherjar.
+   */
+  public static EnhanceCache load(Path file) throws IOException {
+    EnhanceCache cache = new EnhanceCache();
+    try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+        return cache;
+      }
+      cache.configuration = input.readUTF();
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String entryName = input.readUTF();
+        byte[] digest = new byte[input.readUnsignedByte()];
+        input.readFully(digest);
+        int versionCount = input.readInt();
+        byte[][] valueClasses = null;
+        if (versionCount != -1) {
+          valueClasses = new byte[versionCount][];
+          for (int j = 0; j < versionCount; j++) {
+            valueClasses[j] = new byte[input.readInt()];
+            input.readFully(valueClasses[j]);
+          }
+        }
+        cache.classes.put(entryName, new CachedClass(digest, valueClasses));
+      }
+    } catch (NoSuchFileException e) {
+      // no cache yet
+    }
+    return cache;
+  }
+
+  /**
+   * Saves the classes seen by the last call to enhance in a file.
+   */
+  public void save(Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try {
+      try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeUTF(configuration);
+        output.writeInt(classes.size());
+        for (Map.Entry<String, CachedClass> entry : classes.entrySet()) {
+          CachedClass cachedClass = entry.getValue();
+          output.writeUTF(entry.getKey());
+          output.writeByte(cachedClass.digest.length);
+          output.write(cachedClass.digest);
+          if (cachedClass.valueClasses == null) {
+            output.writeInt(-1);
+          } else {
+            output.writeInt(cachedClass.valueClasses.length);
+            for (byte[] valueClass : cachedClass.valueClasses) {
+              output.writeInt(valueClass.length);
+              output.write(valueClass);
+            }
+          }
+        }
+      }
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Returns the number of classes found in the cache by the last call to enhance.
+   */
+  public int hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of classes analyzed by the last call to enhance.
+   */
+  public int missCount() {
+    return missCount;
+  }
+
+  // called at the start of enhance, only the classes seen during this call are kept
+  void start(String configuration) {
+    if (!configuration.equals(this.configuration)) {
+      classes.clear();
+    }
+    this.configuration = configuration;
+    previousClasses = classes;
+    classes = new HashMap<>();
+    hitCount = missCount = 0;
+  }
+
+  /**
+   * Returns a hash of the bytecode of the classes of einherjar that check and rewrite the classes.
+   */
+  static String implementationVersion() {
+    return ImplementationVersionHolder.IMPLEMENTATION_VERSION;
+  }
+
+  private static String computeImplementationVersion() {
+    MessageDigest digest = sha256();
+    ArrayDeque<String> pendingNames = new ArrayDeque<>();
+    HashSet<String> visitedNames = new HashSet<>();
+    for (Class<?> implementationClass : IMPLEMENTATION_CLASSES) {
+      pendingNames.add(implementationClass.getName().replace('.', '/'));
+    }
+    while (!pendingNames.isEmpty()) {
+      String className = pendingNames.poll();
+      if (!visitedNames.add(className)) {
+        continue;
+      }
+      byte[] content;
+      try(InputStream input = EnhanceCache.class.getResourceAsStream('/' + className + ".class")) {
+        if (input == null) {
+          throw new IllegalStateException("no classfile for " + className);
+        }
+        content = readAllBytes(input);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      digest.update(content);
+      new ClassReader(content).accept(new ClassVisitor(Opcodes.ASM9) {
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+          if (name.startsWith(className + '$')) {
+            pendingNames.add(name);
+          }
+        }
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+    StringBuilder builder = new StringBuilder();
+    for (byte b : digest.digest()) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  private static byte[] readAllBytes(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8_192];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);  // SHA-256 is required on all platforms
+    }
+  }
+
+  static byte[] digest(byte[] content) {
+    return sha256().digest(content);
+  }
+
+  static final byte[][] NOT_REWRITTEN = new byte[0][];
+
+  // returns the rewritten classes, NOT_REWRITTEN if the class is not a value class or null if the class is not in the cache
+  byte[][] lookup(String entryName, byte[] digest) {
+    CachedClass cachedClass = previousClasses.get(entryName);
+    if (cachedClass == null || !Arrays.equals(cachedClass.digest, digest)) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    classes.put(entryName, cachedClass);
+    return cachedClass.valueClasses == null ? NOT_REWRITTEN : cachedClass.valueClasses;
+  }
+
+  // valueClasses is null if the class is not rewritten
+  void record(String entryName, byte[] digest, byte[][] valueClasses) {
+    classes.put(entryName, new CachedClass(digest, valueClasses));
+  }
+}
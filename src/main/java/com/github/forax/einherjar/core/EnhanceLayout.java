@@ -0,0 +1,239 @@
+package com.github.forax.einherjar.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * The layout of the Einherjar generated by
+ * {@link Facade#enhance(String, java.util.Set, Path, Path, java.util.Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache, EnhanceLayout)}
+ * to speed up the startup of an application.
+ *
+ * The hot classes, the classes loaded at startup, are written first in the order of loading,
+ * each one followed by its value classes, so the VM reads the jar sequentially.
+ * The hot classes can also be stored uncompressed, so they are not inflated when loaded.
+ * If a classlist file is set, a class list usable to dump an AppCDS archive
+ * ({@code -XX:SharedClassListFile}) is written with the hot classes and the value classes of the Einherjar.
+ *
+ * To reduce the size of the Einherjar, some debug attributes can be stripped from the value classes
+ * (the original classes are left as is) and the compression level can be chosen for each entry.
+ */
+public final class EnhanceLayout {
+  /**
+   * The layout of a jar with no hot class.
+   */
+  public static final EnhanceLayout DEFAULT = new EnhanceLayout(Collections.<String>emptyList(), false, null);
+
+  /**
+   * The debug attributes that can be stripped from the value classes.
+   */
+  public enum StrippedAttribute {
+    /** the names of the local variables, also strips LocalVariableTypeTable */
+    LOCAL_VARIABLE_TABLE("LocalVariableTable"),
+    /** the line numbers of the stack traces */
+    LINE_NUMBER_TABLE("LineNumberTable"),
+    /** the source map of the languages compiled to Java (JSR 45) */
+    SOURCE_DEBUG_EXTENSION("SourceDebugExtension");
+
+    private final String attributeName;
+
+    StrippedAttribute(String attributeName) {
+      this.attributeName = attributeName;
+    }
+
+    /**
+     * Returns the name of the attribute in the classfile.
+     */
+    public String attributeName() {
+      return attributeName;
+    }
+
+    /**
+     * Returns the attribute from its name in the classfile.
+     */
+    public static StrippedAttribute of(String attributeName) {
+      for (StrippedAttribute attribute : values()) {
+        if (attribute.attributeName.equals(attributeName)) {
+          return attribute;
+        }
+      }
+      throw new IllegalArgumentException("unknown attribute " + attributeName);
+    }
+  }
+
+  /**
+   * Returns the compression level of each entry of the Einherjar.
+   */
+  @FunctionalInterface
+  public interface CompressionPolicy {
+    /**
+     * Compresses all the entries with the default level.
+     */
+    CompressionPolicy DEFAULT = entryName -> Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Returns the compression level between 0 and 9 of an entry or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    int level(String entryName);
+
+    /**
+     * Parses a comma separated list of {@code pattern=level} and {@code level},
+     * the first pattern that matches the name of an entry gives its level, a level alone is the level
+     * of the entries matched by no pattern, a {@code *} in a pattern matches any characters.
+     * For example, {@code META-INF/versions/*=9,*.png=0,6}.
+     */
+    static CompressionPolicy parse(String text) {
+      ArrayList<Pattern> patterns = new ArrayList<>();
+      ArrayList<Integer> levels = new ArrayList<>();
+      int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+      for (String part : text.split(" *, *")) {
+        int equalIndex = part.lastIndexOf('=');
+        int level = Integer.parseInt(part.substring(equalIndex + 1));
+        if (level < 0 || level > 9) {
+          throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        if (equalIndex == -1) {
+          defaultLevel = level;
+          continue;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String literal : part.substring(0, equalIndex).split("\\*", -1)) {
+          regex.append(regex.length() == 0 ? "" : ".*").append(Pattern.quote(literal));
+        }
+        patterns.add(Pattern.compile(regex.toString()));
+        levels.add(level);
+      }
+      int fallbackLevel = defaultLevel;
+      return entryName -> {
+        for (int i = 0; i < patterns.size(); i++) {
+          if (patterns.get(i).matcher(entryName).matches()) {
+            return levels.get(i);
+          }
+        }
+        return fallbackLevel;
+      };
+    }
+  }
+
+  private final List<String> hotClassNames;
+  private final boolean storeHotClasses;
+  private final Path classListFile;
+  private final Set<StrippedAttribute> strippedAttributes;
+  private final CompressionPolicy compressionPolicy;
+
+  /**
+   * Creates a layout.
+   *
+   * @param hotClassNames the internal names of the classes loaded at startup, in the order of loading
+   * @param storeHotClasses store the hot classes (and their value classes) uncompressed
+   * @param classListFile the AppCDS class list to write or null
+   */
+  public EnhanceLayout(List<String> hotClassNames, boolean storeHotClasses, Path classListFile) {
+    this(hotClassNames, storeHotClasses, classListFile, Collections.<StrippedAttribute>emptySet(), CompressionPolicy.DEFAULT);
+  }
+
+  private EnhanceLayout(List<String> hotClassNames, boolean storeHotClasses, Path classListFile, Set<StrippedAttribute> strippedAttributes, CompressionPolicy compressionPolicy) {
+    this.hotClassNames = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(hotClassNames)));
+    this.storeHotClasses = storeHotClasses;
+    this.classListFile = classListFile;
+    this.strippedAttributes = strippedAttributes.isEmpty() ?
+        Collections.<StrippedAttribute>emptySet() :
+        Collections.unmodifiableSet(EnumSet.copyOf(strippedAttributes));
+    this.compressionPolicy = Objects.requireNonNull(compressionPolicy);
+  }
+
+  /**
+   * Returns a layout with the same hot classes that strips the attributes from the value classes.
+   */
+  public EnhanceLayout withStrippedAttributes(Set<StrippedAttribute> strippedAttributes) {
+    return new EnhanceLayout(hotClassNames, storeHotClasses, classListFile, strippedAttributes, compressionPolicy);
+  }
+
+  /**
+   * Returns a layout with the same hot classes that uses the compression policy.
+   */
+  public EnhanceLayout withCompressionPolicy(CompressionPolicy compressionPolicy) {
+    return new EnhanceLayout(hotClassNames, storeHotClasses, classListFile, strippedAttributes, compressionPolicy);
+  }
+
+  public List<String> hotClassNames() {
+    return hotClassNames;
+  }
+
+  public boolean storeHotClasses() {
+    return storeHotClasses;
+  }
+
+  public Path classListFile() {
+    return classListFile;
+  }
+
+  public Set<StrippedAttribute> strippedAttributes() {
+    return strippedAttributes;
+  }
+
+  public CompressionPolicy compressionPolicy() {
+    return compressionPolicy;
+  }
+
+  /**
+   * Reads the internal names of the classes of a class-load list in the order of loading.
+   *
+   * The supported formats are the output of {@code -Xlog:class+load},
+   * a CDS class list generated by {@code -XX:DumpLoadedClassList} and a list of class names, one per line.
+   * The comments, the CDS directives (the lines starting with {@code @}) and the hidden classes are skipped.
+   */
+  public static List<String> readClassLoadList(Path path) throws IOException {
+    Objects.requireNonNull(path);
+    return parseClassLoadList(Files.readAllLines(path, StandardCharsets.UTF_8));
+  }
+
+  static List<String> parseClassLoadList(List<String> lines) {
+    ArrayList<String> classNames = new ArrayList<>();
+    for (String line : lines) {
+      String className = parseClassName(line.trim());
+      if (className != null) {
+        classNames.add(className);
+      }
+    }
+    return classNames;
+  }
+
+  // returns the internal name of the class or null
+  private static String parseClassName(String line) {
+    if (line.isEmpty() || line.startsWith("#") || line.startsWith("@")) {
+      return null;
+    }
+    // [0.012s][info][class,load] java.lang.Object source: shared objects file
+    int logIndex = line.indexOf("[class,load]");
+    if (logIndex != -1) {
+      line = line.substring(logIndex + "[class,load]".length()).trim();
+    } else if (line.startsWith("[")) {
+      return null;  // another log tag
+    }
+    int spaceIndex = line.indexOf(' ');
+    String name = spaceIndex == -1 ? line : line.substring(0, spaceIndex);
+    name = name.replace('.', '/');
+    if (name.isEmpty() || name.contains("/0x")) {
+      return null;  // hidden class
+    }
+    return name;
+  }
+
+  // the hot classes first in the order of loading then the value classes not already listed
+  void writeClassList(List<String> valueClassNames) throws IOException {
+    LinkedHashSet<String> classNames = new LinkedHashSet<>(hotClassNames);
+    classNames.addAll(valueClassNames);
+    Files.write(classListFile, classNames, StandardCharsets.UTF_8);
+  }
+}
@@ -1,29 +1,46 @@
 package com.github.forax.einherjar.core;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Type;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import static java.util.stream.Collectors.toSet;
 
@@ -33,179 +50,1205 @@ public final class Facade {
   }
 
   public static void check(String annotationName, Set<String> classSet, Path path, ValueTypeChecker.IssueReporter issueReporter) throws IOException {
+    check(annotationName, classSet, path, issueReporter, FacadeListener.NONE);
+  }
+
+  public static void check(String annotationName, Set<String> classSet, Path path, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
+    check(annotationName, classSet, path, null, false, issueReporter, listener);
+  }
+
+  /**
+   * Checks the classes of a jar with the class hierarchy of the jar and of a classpath,
+   * the abstract super classes of the matching classes that are defined in the jar are also checked.
+   *
+   * @param classpath the jars and the directories of the classes used by the jar or null
+   * @see #enhance(String, Set, Path, Path, List, Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache, EnhanceLayout)
+   */
+  public static void check(String annotationName, Set<String> classSet, Path path, List<Path> classpath, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
+    check(annotationName, classSet, path, classpath, false, issueReporter, listener);
+  }
+
+  /**
+   * Checks the classes of a jar like {@link #check(String, Set, Path, List, ValueTypeChecker.IssueReporter, FacadeListener)},
+   * if {@code identityUsages} is true, the method bodies of all the classes of the jar (not of its nested jars)
+   * are also scanned and an {@link ValueTypeChecker.Issue#IDENTITY_USAGE} is reported at the end for each
+   * synchronized, {@code ==}, {@code System.identityHashCode} or reference creation on a checked class.
+   *
+   * @param identityUsages scan the jar for the operations that depend on the identity of the checked classes
+   */
+  public static void check(String annotationName, Set<String> classSet, Path path, List<Path> classpath, boolean identityUsages, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
     Objects.requireNonNull(annotationName);
     Objects.requireNonNull(classSet);
     Objects.requireNonNull(path);
     Objects.requireNonNull(issueReporter);
+    Objects.requireNonNull(listener);
 
     String annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
     Set<String> internalClassSet = classSet.stream().map(name -> name.replace('.', '/')).collect(toSet());
+    ClassHierarchy classHierarchy = classpath == null ? null : ClassHierarchy.index(hierarchyPaths(path, classpath));
+    IdentityUsageIndex identityUsageIndex = identityUsages ? new IdentityUsageIndex() : null;
+    LinkedHashSet<String> matchingClassNames = new LinkedHashSet<>();
+    // the matching classes with a valid hierarchy, their super classes are checked
+    ArrayList<String> subClassNames = new ArrayList<>();
+    class ClassChecker implements ClassConsumer {
+      private final ClassHierarchy classHierarchy;
+      private final IdentityUsageIndex identityUsageIndex;
+      private final Predicate<String> classNameMatcher;
+      private final Predicate<String> annotationDescriptorMatcher;
+      private final Set<String> matchingClassNames;
+
+      private ClassChecker(ClassHierarchy classHierarchy, IdentityUsageIndex identityUsageIndex, Predicate<String> classNameMatcher, Predicate<String> annotationDescriptorMatcher, Set<String> matchingClassNames) {
+        this.classHierarchy = classHierarchy;
+        this.identityUsageIndex = identityUsageIndex;
+        this.classNameMatcher = classNameMatcher;
+        this.annotationDescriptorMatcher = annotationDescriptorMatcher;
+        this.matchingClassNames = matchingClassNames;
+      }
+
+      @Override
+      public void accept(String entryName, byte[] content) {
+        ClassReader reader = new ClassReader(content);
+
+        long start = System.nanoTime();
+        ClassMatcher classMatcher = new ClassMatcher(classNameMatcher, annotationDescriptorMatcher);
+        reader.accept(classMatcher, ClassReader.SKIP_CODE);
+        listener.phase(FacadeListener.Phase.MATCH, entryName, System.nanoTime() - start, 0);
+        start = System.nanoTime();
+        if (classMatcher.isMatching()) {
+          ValueTypeChecker valueTypeChecker = new ValueTypeChecker(issueReporter, null, classHierarchy);
+          reader.accept(valueTypeChecker, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+          if (matchingClassNames != null) {
+            matchingClassNames.add(reader.getClassName());
+          }
+          if (classHierarchy != null && classHierarchy.abstractValueClassIssue(reader.getSuperName()) == null) {
+            subClassNames.add(reader.getClassName());
+          }
+        }
+        if (identityUsageIndex != null) {
+          identityUsageIndex.addAll(IdentityUsageIndex.scan(content));
+        }
+        if (classMatcher.isMatching() || identityUsageIndex != null) {
+          listener.phase(FacadeListener.Phase.CHECK, entryName, System.nanoTime() - start, 0);
+        }
+      }
+    }
+    // the classes of a nested jar do not see the class hierarchy of the jar and are not indexed
+    ClassChecker nestedClassChecker = new ClassChecker(null, null, internalClassSet::contains, annotationDescriptor::equals, null);
+    ClassChecker classChecker = new ClassChecker(classHierarchy, identityUsageIndex, internalClassSet::contains, annotationDescriptor::equals, matchingClassNames);
+    listener.start("check", path);
     try(JarFile jarFile = new JarFile(path.toFile())) {
       for (JarEntry entry : Collections.list(jarFile.entries())) {
-        if (!entry.getName().endsWith(".class")) {
+        String entryName = entry.getName();
+        if (isNestedJar(entryName)) {
+          forEachNestedClass(entryName, read(jarFile, entry, listener), listener, nestedClassChecker);
+          continue;
+        }
+        if (!entryName.endsWith(".class")) {
           continue;  // skip entry
         }
-        ClassReader reader;
-        try (InputStream input = jarFile.getInputStream(entry)) {
-          reader = new ClassReader(input);
+        classChecker.accept(entryName, read(jarFile, entry, listener));
+      }
+      if (classHierarchy != null) {
+        LinkedHashSet<String> superClassNames = new LinkedHashSet<>();
+        for (String className : subClassNames) {
+          superClassNames.addAll(classHierarchy.rootSuperClasses(className));
         }
-
-        ClassMatcher classMatcher = new ClassMatcher(internalClassSet::contains, annotationDescriptor::equals);
-        reader.accept(classMatcher, ClassReader.SKIP_CODE);
-        if (classMatcher.isMatching()) {
-          ValueTypeChecker valueTypeChecker = new ValueTypeChecker(issueReporter, null);
-          reader.accept(valueTypeChecker, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        superClassNames.removeAll(matchingClassNames);
+        // the super classes are already indexed
+        ClassChecker superClassChecker = new ClassChecker(classHierarchy, null, superClassNames::contains, descriptor -> false, matchingClassNames);
+        for (String superClassName : superClassNames) {
+          JarEntry entry = jarFile.getJarEntry(superClassName + ".class");
+          superClassChecker.accept(entry.getName(), read(jarFile, entry, listener));
         }
       }
+      if (identityUsageIndex != null) {
+        identityUsageIndex.report(matchingClassNames, issueReporter);
+      }
+    } finally {
+      listener.end();
     }
   }
 
   public static void find(Path path, Consumer<String> potentialValueTypeConsumer) throws IOException {
+    find(path, potentialValueTypeConsumer, FacadeListener.NONE);
+  }
+
+  public static void find(Path path, Consumer<String> potentialValueTypeConsumer, FacadeListener listener) throws IOException {
+    find(path, potentialValueTypeConsumer, listener, false);
+  }
+
+  /**
+   * Finds the potential value classes of a jar,
+   * if {@code identityUsages} is true, the method bodies of all the classes of the jar (not of its nested jars)
+   * are also scanned and the classes that are synchronized on, compared with {@code ==}, passed to
+   * {@code System.identityHashCode} or referenced by a weak, soft or phantom reference are excluded,
+   * the potential value classes are then sent to the consumer at the end.
+   *
+   * @param identityUsages exclude the classes whose identity is used by the code of the jar
+   */
+  public static void find(Path path, Consumer<String> potentialValueTypeConsumer, FacadeListener listener, boolean identityUsages) throws IOException {
     Objects.requireNonNull(path);
     Objects.requireNonNull(potentialValueTypeConsumer);
+    Objects.requireNonNull(listener);
+
+    class IssueChecker implements ValueTypeChecker.IssueReporter {
+      boolean hasIssue;
+
+      @Override
+      public void report(ValueTypeChecker.Issue issue, String className, String message) {
+        hasIssue = true;
+      }
+    }
+    IdentityUsageIndex identityUsageIndex = identityUsages ? new IdentityUsageIndex() : null;
+    ArrayList<String> potentialValueTypes = new ArrayList<>();
+    ClassConsumer nestedFindClass = (entryName, content) -> {
+      ClassReader reader = new ClassReader(content);
 
+      long start = System.nanoTime();
+      IssueChecker issueChecker = new IssueChecker();
+      ValueTypeChecker valueTypeChecker = new ValueTypeChecker(issueChecker, null);
+      reader.accept(valueTypeChecker, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      listener.phase(FacadeListener.Phase.CHECK, entryName, System.nanoTime() - start, 0);
+      if (!issueChecker.hasIssue) {
+        if (identityUsageIndex == null) {
+          potentialValueTypeConsumer.accept(reader.getClassName());
+        } else {
+          potentialValueTypes.add(reader.getClassName());
+        }
+      }
+    };
+    ClassConsumer findClass = identityUsageIndex == null ? nestedFindClass : (entryName, content) -> {
+      nestedFindClass.accept(entryName, content);
+      long start = System.nanoTime();
+      identityUsageIndex.addAll(IdentityUsageIndex.scan(content));
+      listener.phase(FacadeListener.Phase.CHECK, entryName, System.nanoTime() - start, 0);
+    };
+    listener.start("find", path);
     try(JarFile jarFile = new JarFile(path.toFile())) {
       for (JarEntry entry : Collections.list(jarFile.entries())) {
-        if (!entry.getName().endsWith(".class")) {
+        String entryName = entry.getName();
+        if (isNestedJar(entryName)) {
+          forEachNestedClass(entryName, read(jarFile, entry, listener), listener, nestedFindClass);
+          continue;
+        }
+        if (!entryName.endsWith(".class")) {
           continue;  // skip entry
         }
-        ClassReader reader;
-        try (InputStream input = jarFile.getInputStream(entry)) {
-          reader = new ClassReader(input);
+        findClass.accept(entryName, read(jarFile, entry, listener));
+      }
+      if (identityUsageIndex != null) {
+        for (String className : potentialValueTypes) {
+          if (identityUsageIndex.usages(className).isEmpty()) {
+            potentialValueTypeConsumer.accept(className);
+          }
+        }
+      }
+    } finally {
+      listener.end();
+    }
+  }
+
+  // a class of a module, read and checked in parallel with the other classes
+  private static final class ModuleClass {
+    private final String entryName;
+    private final ClassSource source;
+    private long readNanos;
+    private int length;
+    private long checkNanos;
+    private String potentialValueType;
+
+    private ModuleClass(String entryName, ClassSource source) {
+      this.entryName = entryName;
+      this.source = source;
+    }
+
+    private void find() throws IOException {
+      long start = System.nanoTime();
+      byte[] content = source.read();
+      readNanos = System.nanoTime() - start;
+      length = content.length;
+
+      start = System.nanoTime();
+      boolean[] hasIssue = { false };
+      ClassReader reader = new ClassReader(content);
+      reader.accept(new ValueTypeChecker((issue, className, message) -> hasIssue[0] = true, null), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      checkNanos = System.nanoTime() - start;
+      potentialValueType = hasIssue[0] ? null : reader.getClassName();
+    }
+  }
+
+  @FunctionalInterface
+  private interface ClassSource {
+    byte[] read() throws IOException;
+  }
+
+  private static final String JMOD_EXTENSION = ".jmod";
+  private static final String JMOD_CLASSES = "classes/";
+
+  // the classes of the modules of the runtime image (jrt:/), of a jmod file or of a directory of jmod files
+  private static void listModuleClasses(Path path, Predicate<? super String> moduleFilter, ArrayList<Closeable> jmodFiles, ArrayList<ModuleClass> moduleClasses) throws IOException {
+    if (path.getFileSystem().provider().getScheme().equals("jrt")) {
+      List<Path> moduleDirectories;
+      try(Stream<Path> stream = Files.list(path.getFileSystem().getPath("/modules"))) {
+        moduleDirectories = stream.sorted().collect(Collectors.toList());
+      }
+      for (Path moduleDirectory : moduleDirectories) {
+        String moduleName = moduleDirectory.getFileName().toString();
+        if (!moduleFilter.test(moduleName)) {
+          continue;
+        }
+        List<Path> classFiles;
+        try(Stream<Path> stream = Files.walk(moduleDirectory)) {
+          classFiles = stream.filter(file -> file.toString().endsWith(".class") && !file.endsWith("module-info.class"))
+              .sorted()
+              .collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+          String entryName = moduleName + "/" + moduleDirectory.relativize(classFile);
+          moduleClasses.add(new ModuleClass(entryName, () -> Files.readAllBytes(classFile)));
+        }
+      }
+      return;
+    }
+    List<Path> jmods;
+    if (Files.isDirectory(path)) {
+      try(Stream<Path> stream = Files.list(path)) {
+        jmods = stream.filter(file -> file.toString().endsWith(JMOD_EXTENSION)).sorted().collect(Collectors.toList());
+      }
+    } else {
+      jmods = Collections.singletonList(path);
+    }
+    for (Path jmod : jmods) {
+      String filename = jmod.getFileName().toString();
+      String moduleName = filename.endsWith(JMOD_EXTENSION) ? filename.substring(0, filename.length() - JMOD_EXTENSION.length()) : filename;
+      if (!moduleFilter.test(moduleName)) {
+        continue;
+      }
+      // a jmod file is a zip file prefixed by a header, ZipFile skips the header
+      ZipFile zipFile = new ZipFile(jmod.toFile());
+      jmodFiles.add(zipFile);
+      for (ZipEntry entry : Collections.list(zipFile.entries())) {
+        String name = entry.getName();
+        if (!name.startsWith(JMOD_CLASSES) || !name.endsWith(".class") || name.endsWith("module-info.class")) {
+          continue;
         }
+        String entryName = moduleName + "/" + name.substring(JMOD_CLASSES.length());
+        moduleClasses.add(new ModuleClass(entryName, () -> {
+          try(InputStream input = zipFile.getInputStream(entry)) {
+            return readAllBytes(input, entry.getSize());
+          }
+        }));
+      }
+    }
+  }
 
-        class IssueChecker implements ValueTypeChecker.IssueReporter {
-          boolean hasIssue;
+  /**
+   * Finds the potential value classes of the modules of the runtime image, of a jmod file or of a directory
+   * of jmod files (e.g. {@code $JAVA_HOME/jmods}). The classes are read and checked in parallel,
+   * the potential value classes and the phases are reported in the order of the modules and of the classes,
+   * the entries are reported to the listener with the name {@code moduleName/entryName}.
+   *
+   * @param path a path of the {@code jrt:/} filesystem (only available on Java 9+), a jmod file or a directory
+   * @param moduleFilter selects the modules by name
+   */
+  public static void findModules(Path path, Predicate<? super String> moduleFilter, Consumer<String> potentialValueTypeConsumer, FacadeListener listener) throws IOException {
+    Objects.requireNonNull(path);
+    Objects.requireNonNull(moduleFilter);
+    Objects.requireNonNull(potentialValueTypeConsumer);
+    Objects.requireNonNull(listener);
 
-          @Override
-          public void report(ValueTypeChecker.Issue issue, String className, String message) {
-            hasIssue = true;
+    listener.start("find", path);
+    ArrayList<Closeable> jmodFiles = new ArrayList<>();
+    try {
+      ArrayList<ModuleClass> moduleClasses = new ArrayList<>();
+      listModuleClasses(path, moduleFilter, jmodFiles, moduleClasses);
+      try {
+        moduleClasses.parallelStream().forEach(moduleClass -> {
+          try {
+            moduleClass.find();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
           }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      for (ModuleClass moduleClass : moduleClasses) {
+        listener.phase(FacadeListener.Phase.READ, moduleClass.entryName, moduleClass.readNanos, moduleClass.length);
+        listener.phase(FacadeListener.Phase.CHECK, moduleClass.entryName, moduleClass.checkNanos, 0);
+        if (moduleClass.potentialValueType != null) {
+          potentialValueTypeConsumer.accept(moduleClass.potentialValueType);
         }
-        IssueChecker issueChecker = new IssueChecker();
-        ValueTypeChecker valueTypeChecker = new ValueTypeChecker(issueChecker, null);
-        reader.accept(valueTypeChecker, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-        if (!issueChecker.hasIssue) {
-          potentialValueTypeConsumer.accept(reader.getClassName());
+      }
+    } finally {
+      try {
+        for (Closeable jmodFile : jmodFiles) {
+          jmodFile.close();
         }
+      } finally {
+        listener.end();
       }
     }
   }
 
-  private static void copy(InputStream input, OutputStream output) throws IOException {
+  private static byte[] readAllBytes(InputStream input, long size) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(size < 0 || size > Integer.MAX_VALUE ? 8_192 : (int) size);
     byte[] buffer = new byte[8_192];
     int read;
     while ((read = input.read(buffer)) != -1) {
       output.write(buffer, 0, read);
     }
+    return output.toByteArray();
+  }
+
+  private static byte[] read(JarFile jarFile, JarEntry entry, FacadeListener listener) throws IOException {
+    long start = System.nanoTime();
+    byte[] content;
+    try(InputStream input = jarFile.getInputStream(entry)) {
+      content = readAllBytes(input, entry.getSize());
+    }
+    listener.phase(FacadeListener.Phase.READ, entry.getName(), System.nanoTime() - start, content.length);
+    return content;
+  }
+
+  private static void write(JarOutputStream jarOutput, JarEntry entry, byte[] content, FacadeListener listener) throws IOException {
+    long start = System.nanoTime();
+    jarOutput.putNextEntry(entry);
+    jarOutput.write(content);
+    jarOutput.closeEntry();
+    listener.phase(FacadeListener.Phase.WRITE, entry.getName(), System.nanoTime() - start, content.length);
   }
 
   private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String NESTED_SEPARATOR = "!/";
+  private static final Path STREAM_PATH = Paths.get("-");
+
+  // the libraries of a Spring Boot fat jar or of a war
+  private static boolean isNestedJar(String entryName) {
+    return entryName.endsWith(".jar") && (entryName.startsWith("BOOT-INF/lib/") || entryName.startsWith("WEB-INF/lib/"));
+  }
+
+  // a new entry with the same metadata, a stored entry stays stored (Spring Boot requires the nested jars to be stored)
+  private static JarEntry copyEntry(ZipEntry entry, byte[] content) {
+    if (entry.getMethod() != ZipEntry.STORED) {
+      return copyEntry(entry);
+    }
+    return store(copyEntry(entry), content);
+  }
+
+  // the entry is written uncompressed
+  private static JarEntry store(JarEntry entry, byte[] content) {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    entry.setCompressedSize(content.length);
+    entry.setCrc(crc.getValue());
+    return entry;
+  }
+
+  // a new entry with the same metadata and the same content,
+  // the size and the CRC of a stored entry are always known by a ZipInputStream
+  private static JarEntry copyEntry(ZipEntry entry) {
+    JarEntry copy = new JarEntry(entry.getName());
+    copy.setTime(entry.getTime());
+    copy.setComment(entry.getComment());
+    copy.setExtra(entry.getExtra());
+    if (entry.getMethod() == ZipEntry.STORED) {
+      copy.setMethod(ZipEntry.STORED);
+      copy.setSize(entry.getSize());
+      copy.setCompressedSize(entry.getSize());
+      copy.setCrc(entry.getCrc());
+    }
+    return copy;
+  }
+
+  // copy an entry without reading it fully in memory,
+  // reading and writing are interleaved so the whole time is reported as a write
+  private static void copy(InputStream input, JarOutputStream jarOutput, ZipEntry entry, FacadeListener listener) throws IOException {
+    long start = System.nanoTime();
+    long size = transfer(input, jarOutput, entry);
+    listener.phase(FacadeListener.Phase.READ, entry.getName(), 0, size);
+    listener.phase(FacadeListener.Phase.WRITE, entry.getName(), System.nanoTime() - start, size);
+  }
+
+  // returns the number of bytes copied
+  private static long transfer(InputStream input, JarOutputStream jarOutput, ZipEntry entry) throws IOException {
+    jarOutput.putNextEntry(copyEntry(entry));
+    byte[] buffer = new byte[8_192];
+    long size = 0;
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      jarOutput.write(buffer, 0, read);
+      size += read;
+    }
+    jarOutput.closeEntry();
+    return size;
+  }
+
+  private static byte[] read(ZipInputStream input, ZipEntry entry, FacadeListener listener) throws IOException {
+    long start = System.nanoTime();
+    byte[] content = readAllBytes(input, entry.getSize());
+    listener.phase(FacadeListener.Phase.READ, entry.getName(), System.nanoTime() - start, content.length);
+    return content;
+  }
+
+  @FunctionalInterface
+  interface ClassConsumer {
+    void accept(String entryName, byte[] content) throws IOException;
+  }
+
+  // the nested jar is read in memory, the classes are reported with the name jarName!/entryName
+  private static void forEachNestedClass(String jarName, byte[] content, FacadeListener listener, ClassConsumer consumer) throws IOException {
+    try(ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(content))) {
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        if (!entry.getName().endsWith(".class")) {
+          continue;  // skip entry
+        }
+        String entryName = jarName + NESTED_SEPARATOR + entry.getName();
+        long start = System.nanoTime();
+        byte[] classContent = readAllBytes(input, entry.getSize());
+        listener.phase(FacadeListener.Phase.READ, entryName, System.nanoTime() - start, classContent.length);
+        consumer.accept(entryName, classContent);
+      }
+    }
+  }
 
-  private static void checkVersion(int version) {
-    if (version < 23 || version > 99) {
-      throw new IllegalArgumentException("invalid version " + version);
+  // returns the versions sorted
+  static int[] checkVersions(Set<Integer> versions) {
+    if (versions.isEmpty()) {
+      throw new IllegalArgumentException("no version");
+    }
+    int[] array = new TreeSet<>(versions).stream().mapToInt(Integer::intValue).toArray();
+    for (int version : array) {
+      if (version < 23 || version > 99) {
+        throw new IllegalArgumentException("invalid version " + version);
+      }
     }
+    return array;
+  }
+
+  // the jar first, so its classes win over the classes of the classpath
+  private static List<Path> hierarchyPaths(Path path, List<Path> classpath) {
+    ArrayList<Path> paths = new ArrayList<>();
+    paths.add(path);
+    paths.addAll(classpath);
+    return paths;
+  }
+
+  static String versionedName(int version, String entryName) {
+    return "META-INF/versions/" + version + "/" + entryName;
   }
 
   public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, int version, ValueTypeChecker.IssueReporter issueReporter) throws IOException {
-    Objects.requireNonNull(annotationName);
-    Objects.requireNonNull(classSet);
-    Objects.requireNonNull(path);
-    checkVersion(version);
+    enhance(annotationName, classSet, path, toPath, version, issueReporter, FacadeListener.NONE);
+  }
 
-    String annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
-    Set<String> internalClassSet = classSet.stream().map(name -> name.replace('.', '/')).collect(toSet());
-    class DelegatingIssueChecker implements ValueTypeChecker.IssueReporter {
-      boolean hasIssue;
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, int version, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
+    enhance(annotationName, classSet, path, toPath, version, issueReporter, listener, null);
+  }
 
-      @Override
-      public void report(ValueTypeChecker.Issue issue, String className, String message) {
-        issueReporter.report(issue, className, message);
-        hasIssue = true;
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, int version, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache) throws IOException {
+    enhance(annotationName, classSet, path, toPath, Collections.singleton(version), issueReporter, listener, cache);
+  }
+
+  // analyze and rewrite the classes of a jar and of its nested jars
+  private static final class Enhancer implements ValueTypeChecker.IssueReporter {
+    private final String annotationDescriptor;
+    private final Set<String> internalClassSet;
+    private final int[] versions;
+    private final Set<EnhanceLayout.StrippedAttribute> strippedAttributes;
+    private final ClassHierarchy classHierarchy;
+    // the abstract super classes of the value classes, rewritten with them
+    private final Set<String> superClassSet;
+    private final ValueTypeChecker.IssueReporter issueReporter;
+    private final FacadeListener listener;
+    private final EnhanceCache cache;
+    private boolean hasIssue;
+
+    private Enhancer(String annotationDescriptor, Set<String> internalClassSet, int[] versions, Set<EnhanceLayout.StrippedAttribute> strippedAttributes, ClassHierarchy classHierarchy, Set<String> superClassSet, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache) {
+      this.annotationDescriptor = annotationDescriptor;
+      this.internalClassSet = internalClassSet;
+      this.versions = versions;
+      this.strippedAttributes = strippedAttributes;
+      this.classHierarchy = classHierarchy;
+      this.superClassSet = superClassSet;
+      this.issueReporter = issueReporter;
+      this.listener = listener;
+      this.cache = cache;
+    }
+
+    private Enhancer(String annotationDescriptor, Set<String> internalClassSet, int[] versions, Set<EnhanceLayout.StrippedAttribute> strippedAttributes, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache) {
+      this(annotationDescriptor, internalClassSet, versions, strippedAttributes, null, Collections.<String>emptySet(), issueReporter, listener, cache);
+    }
+
+    // an enhancer with the same configuration that reports to another issue reporter and another listener
+    private Enhancer fork(ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) {
+      return new Enhancer(annotationDescriptor, internalClassSet, versions, strippedAttributes, classHierarchy, superClassSet, issueReporter, listener, cache);
+    }
+
+    // an enhancer that only rewrites the super classes, the issues are reported to this enhancer
+    private Enhancer forSuperClasses(Set<String> superClassSet) {
+      return new Enhancer(annotationDescriptor, Collections.<String>emptySet(), versions, strippedAttributes, classHierarchy, superClassSet, this, listener, cache);
+    }
+
+    // the classes of a nested jar do not see the class hierarchy of the jar, the issues are reported to this enhancer
+    private Enhancer forNestedJar() {
+      return classHierarchy == null ? this : new Enhancer(annotationDescriptor, internalClassSet, versions, strippedAttributes, this, listener, cache);
+    }
+
+    // the analysis of a class that inherits from an abstract class or that is an abstract super class
+    // depends on other classes, so it is not cached
+    private boolean isCacheable(byte[] content) {
+      if (classHierarchy == null) {
+        return true;
       }
+      ClassReader reader = new ClassReader(content);
+      return ClassHierarchy.isValueSuperClass(reader.getSuperName()) && !superClassSet.contains(reader.getClassName());
     }
-    DelegatingIssueChecker delegatingIssueChecker = new DelegatingIssueChecker();
-    LinkedHashMap<String, byte[]> valueTypeMap = new LinkedHashMap<>();
-    try(OutputStream output = Files.newOutputStream(toPath);
-        JarOutputStream jarOutput = new JarOutputStream(output)) {
-      Manifest manifest;
-      try(JarFile jarFile = new JarFile(path.toFile())) {
-        manifest = jarFile.getManifest();
-        for (JarEntry entry : Collections.list(jarFile.entries())) {
-          String entryName = entry.getName();
-          if (entryName.equals(MANIFEST_NAME)) {
-            continue;  // skip
+
+    @Override
+    public void report(ValueTypeChecker.Issue issue, String className, String message) {
+      issueReporter.report(issue, className, message);
+      hasIssue = true;
+    }
+
+    // returns the rewritten classes, one by version in the order of the versions, or null
+    private byte[][] enhanceClass(String entryName, byte[] content) {
+      byte[] digest = null;
+      EnhanceCache cache = this.cache != null && isCacheable(content) ? this.cache : null;
+      if (cache != null) {
+        digest = EnhanceCache.digest(content);
+        byte[][] cachedValueClasses;
+        synchronized (cache) {  // the classes are analyzed in parallel
+          cachedValueClasses = cache.lookup(entryName, digest);
+        }
+        if (cachedValueClasses != null) {
+          return cachedValueClasses == EnhanceCache.NOT_REWRITTEN ? null : cachedValueClasses;
+        }
+      }
+      ClassReader reader = new ClassReader(content);
+
+      long start = System.nanoTime();
+      ClassMatcher classMatcher = superClassSet.isEmpty() ?
+          new ClassMatcher(internalClassSet::contains, annotationDescriptor::equals) :
+          new ClassMatcher(superClassSet::contains, descriptor -> false);
+      reader.accept(classMatcher, ClassReader.SKIP_CODE);
+      listener.phase(FacadeListener.Phase.MATCH, entryName, System.nanoTime() - start, 0);
+      if (!classMatcher.isMatching()) {
+        if (cache != null) {
+          synchronized (cache) {
+            cache.record(entryName, digest, null);
           }
+        }
+        return null;
+      }
+      // check once and rewrite once by version, so the time of each phase is known,
+      // the rewriter does not change the code, so the methods are copied as is
+      start = System.nanoTime();
+      reader.accept(new ValueTypeChecker(this, null, classHierarchy), 0);
+      listener.phase(FacadeListener.Phase.CHECK, entryName, System.nanoTime() - start, 0);
+      if (hasIssue) {
+        return null;
+      }
+      start = System.nanoTime();
+      byte[][] valueClasses = new byte[versions.length][];
+      for (int i = 0; i < versions.length; i++) {
+        ClassWriter writer = new ClassWriter(reader, 0);
+        ClassVisitor visitor = strippedAttributes.isEmpty() ? writer : new AttributeStripper(writer, strippedAttributes);
+        reader.accept(new ValueTypeRewriter(visitor, versions[i]), 0);
+        valueClasses[i] = writer.toByteArray();
+      }
+      if (cache != null) {
+        synchronized (cache) {
+          cache.record(entryName, digest, valueClasses);
+        }
+      }
+      listener.phase(FacadeListener.Phase.REWRITE, entryName, System.nanoTime() - start, 0);
+      return valueClasses;
+    }
 
-          // // copy the entry
-          jarOutput.putNextEntry(entry);
-          try(InputStream input = jarFile.getInputStream(entry)) {
-            copy(input, jarOutput);
+    // add the rewritten classes of a class to the spool with their versioned names
+    private void addValueClasses(ValueClassSpool spool, String entryName, byte[][] valueClasses) throws IOException {
+      for (int i = 0; i < versions.length; i++) {
+        spool.add(versionedName(versions[i], entryName), valueClasses[i]);
+      }
+    }
+
+    // returns the nested jar with its value classes or null if the nested jar has no value class,
+    // the nested jar is only re-encoded if it contains at least one value class
+    private byte[] enhanceNestedJar(String jarName, byte[] content) throws IOException {
+      ValueClassSpool spool = analyzeNestedJar(jarName, content);
+      if (spool == null) {
+        return null;
+      }
+      try {
+        return rewriteNestedJar(content, spool);
+      } finally {
+        spool.close();
+      }
+    }
+
+    // returns the value classes of the nested jar or null if the nested jar has no value class or has an issue
+    private ValueClassSpool analyzeNestedJar(String jarName, byte[] content) throws IOException {
+      ValueClassSpool spool = new ValueClassSpool();
+      Enhancer nestedEnhancer = forNestedJar();
+      try {
+        forEachNestedClass(jarName, content, listener, (entryName, classContent) -> {
+          byte[][] valueClasses = nestedEnhancer.enhanceClass(entryName, classContent);
+          if (valueClasses != null) {
+            addValueClasses(spool, entryName.substring(jarName.length() + NESTED_SEPARATOR.length()), valueClasses);
           }
-          jarOutput.closeEntry();
+        });
+      } catch (IOException | RuntimeException e) {
+        spool.close();
+        throw e;
+      }
+      if (spool.isEmpty() || hasIssue) {
+        spool.close();
+        return null;
+      }
+      return spool;
+    }
+  }
 
-          if (!entryName.endsWith(".class")) {
-            continue;  // skip
+  // re-encodes a nested jar in memory with its value classes
+  private static byte[] rewriteNestedJar(byte[] content, ValueClassSpool spool) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(content.length + content.length / 4);
+    try(ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(content));
+        JarOutputStream jarOutput = new JarOutputStream(output)) {
+      // the manifest has to be at the start of the jar to be seen by a JarInputStream,
+      // the jar is modified so its signature is removed
+      writeManifest(jarOutput, unsignedManifest(readManifest(content)));
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        if (entry.getName().equals(MANIFEST_NAME) || isSignatureFile(entry.getName())) {
+          continue;
+        }
+        byte[] entryContent = readAllBytes(input, entry.getSize());
+        jarOutput.putNextEntry(copyEntry(entry, entryContent));
+        jarOutput.write(entryContent);
+        jarOutput.closeEntry();
+      }
+      writeValueClasses(jarOutput, spool, FacadeListener.NONE);
+    }
+    return output.toByteArray();
+  }
+
+  // the manifest of a jar in memory, usually one of the first entries, or null
+  private static Manifest readManifest(byte[] content) throws IOException {
+    try(ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(content))) {
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        if (entry.getName().equals(MANIFEST_NAME)) {
+          return new Manifest(input);
+        }
+      }
+      return null;
+    }
+  }
+
+  // number of classes (or nested jars) read in memory before being analyzed in parallel
+  private static final int BATCH_SIZE = 1_024;
+
+  // a class or a nested jar analyzed in parallel with the other entries of a batch,
+  // the calls to the listener and to the issue reporter are recorded and replayed in the order of the jar
+  private static final class Analysis implements FacadeListener, ValueTypeChecker.IssueReporter {
+    private final String entryName;
+    private byte[] content;
+    private final int contentLength;
+    private final ArrayList<Consumer<Enhancer>> events = new ArrayList<>();
+    private final boolean scanIdentityUsages;
+    private byte[][] valueClasses;
+    private ValueClassSpool nestedValueClasses;
+    private List<IdentityUsageIndex.IdentityUsage> identityUsages;
+
+    private Analysis(String entryName, byte[] content, boolean scanIdentityUsages) {
+      this.entryName = entryName;
+      this.content = content;
+      this.contentLength = content.length;
+      this.scanIdentityUsages = scanIdentityUsages;
+    }
+
+    @Override
+    public void phase(Phase phase, String entryName, long nanos, long bytes) {
+      events.add(enhancer -> enhancer.listener.phase(phase, entryName, nanos, bytes));
+    }
+
+    @Override
+    public void report(ValueTypeChecker.Issue issue, String className, String message) {
+      events.add(enhancer -> enhancer.report(issue, className, message));
+    }
+
+    private void analyze(Enhancer enhancer) throws IOException {
+      Enhancer analyzer = enhancer.fork(this, this);
+      if (isNestedJar(entryName)) {
+        nestedValueClasses = analyzer.analyzeNestedJar(entryName, content);
+      } else {
+        valueClasses = analyzer.enhanceClass(entryName, content);
+        if (scanIdentityUsages) {
+          long start = System.nanoTime();
+          identityUsages = IdentityUsageIndex.scan(content);
+          phase(Phase.CHECK, entryName, System.nanoTime() - start, 0);
+        }
+      }
+      content = null;  // release the memory
+    }
+  }
+
+  // the result of the analysis phase of enhance, the value classes of the jar and of its nested jars
+  private static final class EnhancePlan implements Closeable {
+    private final ValueClassSpool valueClasses = new ValueClassSpool();
+    private final HashMap<String, ValueClassSpool> nestedJars = new HashMap<>();
+    // the value classes of the hot classes are written with them, so they are not spooled
+    private final Set<String> hotEntryNames;
+    private final HashMap<String, byte[][]> hotValueClasses = new HashMap<>();
+    private final ArrayList<String> valueClassNames = new ArrayList<>();
+    // the identity usages of the classes of the jar or null
+    private final IdentityUsageIndex identityUsageIndex;
+    // the size of the rewritten classes (once by version) and of the value classes, not counting the nested jars
+    private long classBytes;
+    private long valueClassBytes;
+
+    private EnhancePlan(Set<String> hotEntryNames, IdentityUsageIndex identityUsageIndex) {
+      this.hotEntryNames = hotEntryNames;
+      this.identityUsageIndex = identityUsageIndex;
+    }
+
+    private void addValueClasses(Enhancer enhancer, String entryName, int classLength, byte[][] classes) throws IOException {
+      valueClassNames.add(entryName.substring(0, entryName.length() - ".class".length()));
+      for (byte[] valueClass : classes) {
+        classBytes += classLength;
+        valueClassBytes += valueClass.length;
+      }
+      if (hotEntryNames.contains(entryName)) {
+        hotValueClasses.put(entryName, classes);
+        return;
+      }
+      enhancer.addValueClasses(valueClasses, entryName, classes);
+    }
+
+    private void analyzeBatch(ArrayList<Analysis> batch, Enhancer enhancer) throws IOException {
+      try {
+        batch.parallelStream().forEach(analysis -> {
+          try {
+            analysis.analyze(enhancer);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
           }
-          ClassReader reader;
-          try (InputStream input = jarFile.getInputStream(entry)) {
-            reader = new ClassReader(input);
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      } finally {
+        // the analyses are added in the order of the jar, even if one has failed, so the spools are closed
+        for (Analysis analysis : batch) {
+          for (Consumer<Enhancer> event : analysis.events) {
+            event.accept(enhancer);
           }
-
-          ClassMatcher classMatcher = new ClassMatcher(internalClassSet::contains, annotationDescriptor::equals);
-          reader.accept(classMatcher, ClassReader.SKIP_CODE);
-          if (classMatcher.isMatching()) {
-            ClassWriter writer = new ClassWriter(reader, 0);
-            ValueTypeRewriter rewriter = new ValueTypeRewriter(writer, version);
-            ValueTypeChecker valueTypeChecker = new ValueTypeChecker(delegatingIssueChecker, rewriter);
-            reader.accept(valueTypeChecker, 0);
-            if (!delegatingIssueChecker.hasIssue) {
-              valueTypeMap.put(entryName, writer.toByteArray());
-            }
+          if (analysis.valueClasses != null) {
+            addValueClasses(enhancer, analysis.entryName, analysis.contentLength, analysis.valueClasses);
+          }
+          if (analysis.nestedValueClasses != null) {
+            nestedJars.put(analysis.entryName, analysis.nestedValueClasses);
+          }
+          if (analysis.identityUsages != null) {
+            identityUsageIndex.addAll(analysis.identityUsages);
           }
         }
+        batch.clear();
       }
+    }
 
-      if (delegatingIssueChecker.hasIssue) {
-        return;
+    @Override
+    public void close() throws IOException {
+      valueClasses.close();
+      for (ValueClassSpool spool : nestedJars.values()) {
+        spool.close();
       }
+    }
+  }
 
-      // add manifest
-      if (manifest == null) {
-        manifest = new Manifest();
-      } else {
-        if (!manifest.getEntries().isEmpty()) {
-          throw new AssertionError("composite manifest are not supported !");
+  // the analysis phase, only the classes and the nested jars are read
+  private static EnhancePlan analyze(JarFile jarFile, Enhancer enhancer, Set<String> hotEntryNames, boolean identityUsages) throws IOException {
+    EnhancePlan plan = new EnhancePlan(hotEntryNames, identityUsages ? new IdentityUsageIndex() : null);
+    boolean completed = false;
+    try {
+      ArrayList<Analysis> batch = new ArrayList<>();
+      for (JarEntry entry : Collections.list(jarFile.entries())) {
+        String entryName = entry.getName();
+        if (!entryName.endsWith(".class") && !isNestedJar(entryName)) {
+          continue;  // skip
+        }
+        batch.add(new Analysis(entryName, read(jarFile, entry, enhancer.listener), identityUsages));
+        if (batch.size() == BATCH_SIZE) {
+          plan.analyzeBatch(batch, enhancer);
+        }
+      }
+      plan.analyzeBatch(batch, enhancer);
+      if (enhancer.classHierarchy != null && !enhancer.hasIssue) {
+        analyzeSuperClasses(jarFile, enhancer, plan);
+      }
+      if (identityUsages) {
+        plan.identityUsageIndex.report(plan.valueClassNames, enhancer);
+      }
+      completed = true;
+      return plan;
+    } finally {
+      if (!completed) {
+        plan.close();
+      }
+    }
+  }
+
+  // the abstract super classes of the value classes defined in the jar are checked and rewritten after the value classes
+  private static void analyzeSuperClasses(JarFile jarFile, Enhancer enhancer, EnhancePlan plan) throws IOException {
+    HashSet<String> valueClassNames = new HashSet<>(plan.valueClassNames);
+    LinkedHashSet<String> superClassNames = new LinkedHashSet<>();
+    for (String valueClassName : plan.valueClassNames) {
+      for (String superClassName : enhancer.classHierarchy.rootSuperClasses(valueClassName)) {
+        if (!valueClassNames.contains(superClassName)) {
+          superClassNames.add(superClassName);
+        }
+      }
+    }
+    Enhancer superClassEnhancer = enhancer.forSuperClasses(superClassNames);
+    ArrayList<Analysis> batch = new ArrayList<>();
+    for (String superClassName : superClassNames) {
+      JarEntry entry = jarFile.getJarEntry(superClassName + ".class");
+      batch.add(new Analysis(entry.getName(), read(jarFile, entry, enhancer.listener), false));  // already indexed
+      if (batch.size() == BATCH_SIZE) {
+        plan.analyzeBatch(batch, superClassEnhancer);
+      }
+    }
+    plan.analyzeBatch(batch, superClassEnhancer);
+  }
+
+  // the write phase, the Einherjar is written in a temporary file in the directory of toPath then moved to toPath,
+  // the classes and the nested jars are read a second time, only the resources are reported as read
+  private static void write(JarFile jarFile, EnhancePlan plan, Path toPath, int[] versions, EnhanceLayout layout, FacadeListener listener) throws IOException {
+    Path directory = toPath.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(directory, toPath.getFileName().toString(), ".tmp");
+    try {
+      try(OutputStream output = Files.newOutputStream(temporary);
+          JarOutputStream jarOutput = new PolicyJarOutputStream(output, layout.compressionPolicy())) {
+        writeManifest(jarOutput, jarFile.getManifest());
+        HashSet<String> hotEntryNames = new HashSet<>();
+        writeHotClasses(jarFile, jarOutput, plan, versions, layout, hotEntryNames, listener);
+        for (JarEntry entry : Collections.list(jarFile.entries())) {
+          String entryName = entry.getName();
+          if (entryName.equals(MANIFEST_NAME) || hotEntryNames.contains(entryName)) {
+            continue;  // skip
+          }
+          ValueClassSpool nestedValueClasses = plan.nestedJars.get(entryName);
+          if (nestedValueClasses != null) {
+            long start = System.nanoTime();
+            byte[] content;
+            try(InputStream input = jarFile.getInputStream(entry)) {
+              content = rewriteNestedJar(readAllBytes(input, entry.getSize()), nestedValueClasses);
+            }
+            jarOutput.putNextEntry(copyEntry(entry, content));
+            jarOutput.write(content);
+            jarOutput.closeEntry();
+            listener.phase(FacadeListener.Phase.WRITE, entryName, System.nanoTime() - start, content.length);
+            continue;
+          }
+          try(InputStream input = jarFile.getInputStream(entry)) {
+            if (entryName.endsWith(".class") || isNestedJar(entryName)) {
+              long start = System.nanoTime();
+              long size = transfer(input, jarOutput, entry);
+              listener.phase(FacadeListener.Phase.WRITE, entryName, System.nanoTime() - start, size);
+            } else {
+              copy(input, jarOutput, entry, listener);
+            }
+          }
         }
+        writeValueClasses(jarOutput, plan.valueClasses, listener);
       }
-      Attributes mainAttributes = manifest.getMainAttributes();
-      mainAttributes.putValue("Multi-Release", "true");
+      moveAtomically(temporary, toPath);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    if (layout.classListFile() != null) {
+      layout.writeClassList(plan.valueClassNames);
+    }
+  }
+
+  // a jar output stream that sets the compression level of each entry
+  private static final class PolicyJarOutputStream extends JarOutputStream {
+    private final EnhanceLayout.CompressionPolicy compressionPolicy;
+
+    private PolicyJarOutputStream(OutputStream output, EnhanceLayout.CompressionPolicy compressionPolicy) throws IOException {
+      super(output);
+      this.compressionPolicy = compressionPolicy;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry entry) throws IOException {
+      setLevel(compressionPolicy.level(entry.getName()));
+      super.putNextEntry(entry);
+    }
+  }
 
-      jarOutput.putNextEntry(new JarEntry(MANIFEST_NAME));
-      OutputStreamWriter manifestWriter = new OutputStreamWriter(jarOutput, StandardCharsets.UTF_8);
-      for (Map.Entry<Object, Object> entry : manifest.getMainAttributes().entrySet()) {
-        Object key = entry.getKey();
-        Object value = entry.getValue();
-        manifestWriter.write(key + ": " + value + "\n");
+  // the hot classes in the order of loading, each one followed by its value classes
+  private static void writeHotClasses(JarFile jarFile, JarOutputStream jarOutput, EnhancePlan plan, int[] versions, EnhanceLayout layout, Set<String> hotEntryNames, FacadeListener listener) throws IOException {
+    for (String className : layout.hotClassNames()) {
+      String entryName = className + ".class";
+      JarEntry entry = jarFile.getJarEntry(entryName);
+      if (entry == null) {
+        continue;  // a class of the JDK or of another jar
       }
-      manifestWriter.flush();
+      hotEntryNames.add(entryName);
+      long start = System.nanoTime();
+      byte[] content;
+      try(InputStream input = jarFile.getInputStream(entry)) {
+        content = readAllBytes(input, entry.getSize());
+      }
+      JarEntry hotEntry = copyEntry(entry);
+      jarOutput.putNextEntry(layout.storeHotClasses() ? store(hotEntry, content) : hotEntry);
+      jarOutput.write(content);
       jarOutput.closeEntry();
+      listener.phase(FacadeListener.Phase.WRITE, entryName, System.nanoTime() - start, content.length);
 
-      // add versioned entry
-      for(Entry<String, byte[]> mapEntry : valueTypeMap.entrySet()) {
-        String entryName = mapEntry.getKey();
-        byte[] code = mapEntry.getValue();
-        String versionedName = "META-INF/versions/" + version + "/" + entryName;
-        jarOutput.putNextEntry(new JarEntry(versionedName));
-        jarOutput.write(code);
-        jarOutput.closeEntry();
+      byte[][] valueClasses = plan.hotValueClasses.get(entryName);
+      if (valueClasses == null) {
+        continue;
+      }
+      for (int i = 0; i < versions.length; i++) {
+        String versionedName = versionedName(versions[i], entryName);
+        JarEntry versionedEntry = new JarEntry(versionedName);
+        write(jarOutput, layout.storeHotClasses() ? store(versionedEntry, valueClasses[i]) : versionedEntry, valueClasses[i], listener);
+      }
+    }
+  }
+
+  private static void moveAtomically(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Enhances a jar, the classes already analyzed by a previous call with the same cache
+   * and that have not changed are not analyzed again.
+   * The classes with issues are not cached, so their issues are reported again.
+   *
+   * The nested jars (in BOOT-INF/lib or WEB-INF/lib) are enhanced in memory and replaced
+   * by multi-release jars if they contain value classes, the entries of a nested jar
+   * are reported to the listener and to the cache with the name {@code jarName!/entryName}.
+   *
+   * The classes are first analyzed in parallel, the Einherjar is only written if no issue is reported,
+   * in a temporary file that is then moved to {@code toPath}, so {@code toPath} is never seen half-written
+   * and is left untouched if an issue is reported.
+   *
+   * Each class is analyzed once and rewritten once for each version,
+   * the Einherjar contains a directory {@code META-INF/versions/version} for each version.
+   *
+   * @param versions the classfile versions of the value classes
+   * @param cache a cache or null
+   */
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, Set<Integer> versions, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache) throws IOException {
+    enhance(annotationName, classSet, path, toPath, versions, issueReporter, listener, cache, null);
+  }
+
+  /**
+   * Enhances a jar like {@link #enhance(String, Set, Path, Path, Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache)}
+   * with a layout that puts the classes loaded at startup first, strips debug attributes from the value classes
+   * and chooses the compression level of each entry.
+   * The sizes of the jars and of the value classes are reported to the listener.
+   *
+   * @param layout a layout or null
+   */
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, Set<Integer> versions, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache, EnhanceLayout layout) throws IOException {
+    enhance(annotationName, classSet, path, toPath, null, versions, issueReporter, listener, cache, layout);
+  }
+
+  /**
+   * Enhances a jar like {@link #enhance(String, Set, Path, Path, Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache, EnhanceLayout)}
+   * with the class hierarchy of the jar and of a classpath.
+   *
+   * A value class can inherit from an abstract class if all the super classes up to j.l.Object are abstract,
+   * have no instance field that is not final and no synchronized instance method.
+   * The abstract super classes defined in the jar are checked and rewritten as abstract value classes,
+   * the ones defined in the classpath have to be value classes already (in a versioned directory of a multi-release jar).
+   * The nested jars do not use the class hierarchy.
+   *
+   * @param classpath the jars and the directories of the classes used by the jar,
+   *                  or null to only accept j.l.Object, j.l.Number and j.l.Record as super classes
+   */
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, List<Path> classpath, Set<Integer> versions, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache, EnhanceLayout layout) throws IOException {
+    enhance(annotationName, classSet, path, toPath, classpath, false, versions, issueReporter, listener, cache, layout);
+  }
+
+  /**
+   * Enhances a jar like {@link #enhance(String, Set, Path, Path, List, Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache, EnhanceLayout)},
+   * if {@code identityUsages} is true, the method bodies of all the classes of the jar (not of its nested jars)
+   * are also scanned during the analysis and an {@link ValueTypeChecker.Issue#IDENTITY_USAGE} is reported
+   * for each synchronized, {@code ==}, {@code System.identityHashCode} or reference creation on a value class,
+   * so the Einherjar is not written. The scan is not cached.
+   *
+   * @param identityUsages scan the jar for the operations that depend on the identity of the value classes
+   */
+  public static void enhance(String annotationName, Set<String> classSet, Path path, Path toPath, List<Path> classpath, boolean identityUsages, Set<Integer> versions, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener, EnhanceCache cache, EnhanceLayout layout) throws IOException {
+    Objects.requireNonNull(annotationName);
+    Objects.requireNonNull(classSet);
+    Objects.requireNonNull(path);
+    Objects.requireNonNull(listener);
+    int[] sortedVersions = checkVersions(versions);
+    EnhanceLayout enhanceLayout = layout == null ? EnhanceLayout.DEFAULT : layout;
+
+    String annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
+    Set<String> internalClassSet = classSet.stream().map(name -> name.replace('.', '/')).collect(toSet());
+    Set<EnhanceLayout.StrippedAttribute> strippedAttributes = enhanceLayout.strippedAttributes();
+    ClassHierarchy classHierarchy = classpath == null ? null : ClassHierarchy.index(hierarchyPaths(path, classpath));
+    Enhancer enhancer = new Enhancer(annotationDescriptor, internalClassSet, sortedVersions, strippedAttributes, classHierarchy, Collections.<String>emptySet(), issueReporter, listener, cache);
+    if (cache != null) {
+      cache.start(EnhanceCache.implementationVersion() + ' ' + annotationName + ' ' + new TreeSet<>(internalClassSet) + ' ' + Arrays.toString(sortedVersions) + ' ' + strippedAttributes);
+    }
+    listener.start("enhance", path);
+    Set<String> hotEntryNames = enhanceLayout.hotClassNames().stream().map(className -> className + ".class").collect(toSet());
+    try(JarFile jarFile = new JarFile(path.toFile());
+        EnhancePlan plan = analyze(jarFile, enhancer, hotEntryNames, identityUsages)) {
+      if (enhancer.hasIssue) {
+        return;
+      }
+      write(jarFile, plan, toPath, sortedVersions, enhanceLayout, listener);
+      listener.size(Files.size(path), Files.size(toPath), plan.classBytes, plan.valueClassBytes);
+    } finally {
+      listener.end();
+    }
+  }
+
+  /**
+   * Enhances a jar read from a stream and writes the Einherjar to a stream, the streams are not closed.
+   *
+   * Only one entry (or one nested jar) is in memory at a time, the resources are copied without being
+   * fully read in memory and the value classes are spilled to a temporary file past a threshold,
+   * so the memory used does not depend on the size of the jar.
+   * If an issue is reported, the value classes are not written and the output should be discarded.
+   * The manifest is written first, a manifest that is not at the start of the input jar is ignored.
+   * The listener receives the path {@code -}.
+   */
+  public static void enhance(String annotationName, Set<String> classSet, InputStream input, OutputStream output, int version, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
+    enhance(annotationName, classSet, input, output, Collections.singleton(version), issueReporter, listener);
+  }
+
+  /**
+   * Enhances a jar read from a stream like {@link #enhance(String, Set, InputStream, OutputStream, int, ValueTypeChecker.IssueReporter, FacadeListener)}
+   * with a directory {@code META-INF/versions/version} for each version.
+   */
+  public static void enhance(String annotationName, Set<String> classSet, InputStream input, OutputStream output, Set<Integer> versions, ValueTypeChecker.IssueReporter issueReporter, FacadeListener listener) throws IOException {
+    Objects.requireNonNull(annotationName);
+    Objects.requireNonNull(classSet);
+    Objects.requireNonNull(input);
+    Objects.requireNonNull(output);
+    Objects.requireNonNull(listener);
+    int[] sortedVersions = checkVersions(versions);
+
+    String annotationDescriptor = Type.getObjectType(annotationName.replace('.', '/')).getDescriptor();
+    Set<String> internalClassSet = classSet.stream().map(name -> name.replace('.', '/')).collect(toSet());
+    Enhancer enhancer = new Enhancer(annotationDescriptor, internalClassSet, sortedVersions, Collections.<EnhanceLayout.StrippedAttribute>emptySet(), issueReporter, listener, null);
+    listener.start("enhance", STREAM_PATH);
+    try(ValueClassSpool spool = new ValueClassSpool()) {
+      // do not close the streams
+      ZipInputStream zipInput = new ZipInputStream(input);
+      JarOutputStream jarOutput = new JarOutputStream(output);
+      boolean manifestWritten = false;
+      ZipEntry entry;
+      while ((entry = zipInput.getNextEntry()) != null) {
+        String entryName = entry.getName();
+        if (!manifestWritten) {
+          // the manifest has to be at the start of the jar to be seen by a JarInputStream
+          if (entryName.equals(MANIFEST_NAME)) {
+            writeManifest(jarOutput, new Manifest(zipInput));
+            manifestWritten = true;
+            continue;
+          }
+          if (!entryName.equals("META-INF/")) {
+            writeManifest(jarOutput, null);
+            manifestWritten = true;
+          }
+        } else if (entryName.equals(MANIFEST_NAME)) {
+          // like a JarInputStream, ignore a manifest that is not at the start of the jar
+          continue;
+        }
+        if (!entryName.endsWith(".class") && !isNestedJar(entryName)) {
+          copy(zipInput, jarOutput, entry, listener);
+          continue;
+        }
+
+        byte[] content = read(zipInput, entry, listener);
+        if (isNestedJar(entryName)) {
+          byte[] enhancedContent = enhancer.enhanceNestedJar(entryName, content);
+          byte[] nestedContent = enhancedContent != null ? enhancedContent : content;
+          write(jarOutput, copyEntry(entry, nestedContent), nestedContent, listener);
+          continue;
+        }
+        write(jarOutput, copyEntry(entry, content), content, listener);
+        byte[][] valueClasses = enhancer.enhanceClass(entryName, content);
+        if (valueClasses != null) {
+          enhancer.addValueClasses(spool, entryName, valueClasses);
+        }
       }
 
+      if (!manifestWritten) {
+        writeManifest(jarOutput, null);
+      }
+      if (!enhancer.hasIssue) {
+        writeValueClasses(jarOutput, spool, listener);
+      }
+      jarOutput.finish();
     } finally {
-      if (delegatingIssueChecker.hasIssue) {
-        Files.delete(toPath);
+      listener.end();
+    }
+  }
+
+  // the entry sections (Name:) are kept
+  private static void writeManifest(JarOutputStream jarOutput, Manifest manifest) throws IOException {
+    if (manifest == null) {
+      manifest = new Manifest();
+    }
+    Attributes mainAttributes = manifest.getMainAttributes();
+    if (mainAttributes.getValue(Attributes.Name.MANIFEST_VERSION) == null) {
+      // Manifest.write() skips the main attributes without a version
+      mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    }
+    mainAttributes.putValue("Multi-Release", "true");
+
+    jarOutput.putNextEntry(new JarEntry(MANIFEST_NAME));
+    manifest.write(jarOutput);
+    jarOutput.closeEntry();
+  }
+
+  private static boolean isSignatureFile(String entryName) {
+    if (!entryName.startsWith("META-INF/") || entryName.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    return entryName.endsWith(".SF") || entryName.endsWith(".RSA") || entryName.endsWith(".DSA") || entryName.endsWith(".EC");
+  }
+
+  // removes the digests of the signature from the entry sections, the sections left empty are removed
+  private static Manifest unsignedManifest(Manifest manifest) {
+    if (manifest == null) {
+      return null;
+    }
+    Iterator<Attributes> iterator = manifest.getEntries().values().iterator();
+    while (iterator.hasNext()) {
+      Attributes attributes = iterator.next();
+      attributes.keySet().removeIf(name -> name.toString().endsWith("-Digest"));
+      if (attributes.isEmpty()) {
+        iterator.remove();
       }
     }
+    return manifest;
+  }
+
+  // the value classes are spooled with their versioned names
+  private static void writeValueClasses(JarOutputStream jarOutput, ValueClassSpool spool, FacadeListener listener) throws IOException {
+    spool.forEach((versionedName, code) -> {
+      write(jarOutput, new JarEntry(versionedName), code, listener);
+    });
   }
 }
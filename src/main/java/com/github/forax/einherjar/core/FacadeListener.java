@@ -0,0 +1,63 @@
+package com.github.forax.einherjar.core;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the timings of the phases of the actions of {@link Facade}.
+ *
+ * @see FacadeStats
+ */
+public interface FacadeListener {
+  /**
+   * A listener that does nothing.
+   */
+  FacadeListener NONE = new FacadeListener() { };
+
+  enum Phase {
+    /** read and inflate an entry of the jar */
+    READ,
+    /** find if a class is annotated or listed */
+    MATCH,
+    /** check if a class can be a value class */
+    CHECK,
+    /** rewrite a class to a value class and generate its classfile */
+    REWRITE,
+    /** deflate and write an entry of the jar */
+    WRITE
+  }
+
+  /**
+   * Called when an action starts.
+   */
+  default void start(String action, Path path) {
+    // empty
+  }
+
+  /**
+   * Called each time a phase is executed on an entry of the jar.
+   *
+   * @param phase the phase
+   * @param entryName the name of the jar entry
+   * @param nanos the duration of the phase
+   * @param bytes the number of (uncompressed) bytes read or written, 0 if the phase does not do I/O
+   */
+  default void phase(Phase phase, String entryName, long nanos, long bytes) {
+    // empty
+  }
+
+  /**
+   * Called by enhance on a file, before the end, with the sizes in bytes of the jar and of the Einherjar,
+   * of the classes rewritten to value classes (counted once by version) and of the value classes.
+   * The classes of the nested jars are not counted.
+   */
+  default void size(long jarBytes, long enhancedJarBytes, long classBytes, long valueClassBytes) {
+    // empty
+  }
+
+  /**
+   * Called when an action ends, even if it fails.
+   */
+  default void end() {
+    // empty
+  }
+}
@@ -0,0 +1,288 @@
+package com.github.forax.einherjar.core;
+
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link FacadeListener} that computes the time spent in each phase, the number of bytes
+ * read and written, the number of classes per second and the slowest classes to analyze.
+ *
+ * The analysis time of a class is the time spent in the phases
+ * {@link Phase#MATCH MATCH}, {@link Phase#CHECK CHECK} and {@link Phase#REWRITE REWRITE}.
+ */
+public final class FacadeStats implements FacadeListener {
+  private static final int DEFAULT_SLOWEST_CLASS_COUNT = 10;
+
+  private final int slowestClassCount;
+
+  private String action;
+  private Path path;
+  private long startNanos;
+  private long elapsedNanos;
+  private final long[] phaseNanos = new long[Phase.values().length];
+  private long bytesRead;
+  private long bytesWritten;
+  private int entryCount;
+  private int classCount;
+  // only reported by enhance on a file, -1 otherwise
+  private long jarBytes = -1;
+  private long enhancedJarBytes = -1;
+  private long classBytes = -1;
+  private long valueClassBytes = -1;
+
+  // the phases of an entry are called in sequence
+  private String currentEntryName;
+  private long currentEntryNanos;
+  private final PriorityQueue<Map.Entry<String, Long>> slowestClasses;
+
+  public FacadeStats() {
+    this(DEFAULT_SLOWEST_CLASS_COUNT);
+  }
+
+  public FacadeStats(int slowestClassCount) {
+    if (slowestClassCount < 0) {
+      throw new IllegalArgumentException("slowestClassCount < 0");
+    }
+    this.slowestClassCount = slowestClassCount;
+    this.slowestClasses = new PriorityQueue<>(slowestClassCount + 1, (e1, e2) -> Long.compare(e1.getValue(), e2.getValue()));
+  }
+
+  @Override
+  public void start(String action, Path path) {
+    this.action = action;
+    this.path = path;
+    startNanos = System.nanoTime();
+    elapsedNanos = 0;
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseNanos[i] = 0;
+    }
+    bytesRead = bytesWritten = 0;
+    entryCount = classCount = 0;
+    jarBytes = enhancedJarBytes = classBytes = valueClassBytes = -1;
+    currentEntryName = null;
+    currentEntryNanos = 0;
+    slowestClasses.clear();
+  }
+
+  @Override
+  public void phase(Phase phase, String entryName, long nanos, long bytes) {
+    phaseNanos[phase.ordinal()] += nanos;
+    switch (phase) {
+      case READ:
+        bytesRead += bytes;
+        entryCount++;
+        if (entryName.endsWith(".class")) {
+          classCount++;
+        }
+        return;
+      case WRITE:
+        bytesWritten += bytes;
+        return;
+      default:
+        if (!entryName.equals(currentEntryName)) {
+          flushCurrentEntry();
+          currentEntryName = entryName;
+        }
+        currentEntryNanos += nanos;
+    }
+  }
+
+  private void flushCurrentEntry() {
+    if (currentEntryName == null) {
+      return;
+    }
+    String className = currentEntryName.substring(0, currentEntryName.length() - ".class".length());
+    slowestClasses.add(new AbstractMap.SimpleImmutableEntry<>(className, currentEntryNanos));
+    if (slowestClasses.size() > slowestClassCount) {
+      slowestClasses.poll();
+    }
+    currentEntryName = null;
+    currentEntryNanos = 0;
+  }
+
+  @Override
+  public void size(long jarBytes, long enhancedJarBytes, long classBytes, long valueClassBytes) {
+    this.jarBytes = jarBytes;
+    this.enhancedJarBytes = enhancedJarBytes;
+    this.classBytes = classBytes;
+    this.valueClassBytes = valueClassBytes;
+  }
+
+  @Override
+  public void end() {
+    flushCurrentEntry();
+    elapsedNanos = System.nanoTime() - startNanos;
+  }
+
+  public long elapsedNanos() {
+    return elapsedNanos;
+  }
+
+  public long phaseNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  public long bytesRead() {
+    return bytesRead;
+  }
+
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  public int entryCount() {
+    return entryCount;
+  }
+
+  public int classCount() {
+    return classCount;
+  }
+
+  /**
+   * Returns the size of the enhanced jar or -1 if the action is not enhance on a file.
+   */
+  public long jarBytes() {
+    return jarBytes;
+  }
+
+  /**
+   * Returns the size of the Einherjar or -1 if the action is not enhance on a file.
+   */
+  public long enhancedJarBytes() {
+    return enhancedJarBytes;
+  }
+
+  /**
+   * Returns the size of the classes rewritten to value classes, counted once by version,
+   * or -1 if the action is not enhance on a file.
+   */
+  public long classBytes() {
+    return classBytes;
+  }
+
+  /**
+   * Returns the size of the value classes or -1 if the action is not enhance on a file.
+   */
+  public long valueClassBytes() {
+    return valueClassBytes;
+  }
+
+  public double classesPerSecond() {
+    return elapsedNanos == 0 ? 0 : classCount * 1_000_000_000.0 / elapsedNanos;
+  }
+
+  /**
+   * Returns the internal names and the analysis times in nanoseconds of the slowest classes,
+   * the slowest class first.
+   */
+  public List<Map.Entry<String, Long>> slowestClasses() {
+    ArrayList<Map.Entry<String, Long>> list = new ArrayList<>(slowestClasses);
+    list.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+    return Collections.unmodifiableList(list);
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.1f ms", nanos / 1_000_000.0);
+  }
+
+  private static String delta(long bytes, long newBytes) {
+    return String.format(Locale.ROOT, "%+d bytes, %+.1f%%", newBytes - bytes, bytes == 0 ? 0 : (newBytes - bytes) * 100.0 / bytes);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(action).append(' ').append(path).append(": ")
+        .append(classCount).append(" classes (").append(entryCount).append(" entries) in ").append(millis(elapsedNanos))
+        .append(String.format(Locale.ROOT, ", %.0f classes/s", classesPerSecond())).append('\n');
+    for (Phase phase : Phase.values()) {
+      builder.append("  ").append(phase.name().toLowerCase(Locale.ROOT)).append(": ").append(millis(phaseNanos(phase)));
+      if (phase == Phase.READ) {
+        builder.append(", ").append(bytesRead).append(" bytes");
+      }
+      if (phase == Phase.WRITE) {
+        builder.append(", ").append(bytesWritten).append(" bytes");
+      }
+      builder.append('\n');
+    }
+    if (enhancedJarBytes != -1) {
+      builder.append("  size: ").append(enhancedJarBytes).append(" bytes (").append(delta(jarBytes, enhancedJarBytes)).append(")")
+          .append(", value classes: ").append(valueClassBytes).append(" bytes (").append(delta(classBytes, valueClassBytes)).append(")\n");
+    }
+    List<Map.Entry<String, Long>> slowestClasses = slowestClasses();
+    if (!slowestClasses.isEmpty()) {
+      builder.append("  slowest classes to analyze:\n");
+      for (Map.Entry<String, Long> entry : slowestClasses) {
+        builder.append("    ").append(millis(entry.getValue())).append(' ').append(entry.getKey().replace('/', '.')).append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  private static String jsonString(String text) {
+    StringBuilder builder = new StringBuilder().append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            builder.append(String.format("\\u%04x", (int) c));
+          } else {
+            builder.append(c);
+          }
+      }
+    }
+    return builder.append('"').toString();
+  }
+
+  /**
+   * Returns the statistics as a JSON object, the durations are in nanoseconds.
+   */
+  public String toJSON() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("{\n")
+        .append("  \"action\": ").append(jsonString(String.valueOf(action))).append(",\n")
+        .append("  \"path\": ").append(jsonString(String.valueOf(path))).append(",\n")
+        .append("  \"elapsedNanos\": ").append(elapsedNanos).append(",\n")
+        .append("  \"entryCount\": ").append(entryCount).append(",\n")
+        .append("  \"classCount\": ").append(classCount).append(",\n")
+        .append("  \"classesPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", classesPerSecond())).append(",\n")
+        .append("  \"bytesRead\": ").append(bytesRead).append(",\n")
+        .append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+    if (enhancedJarBytes != -1) {
+      builder.append("  \"jarBytes\": ").append(jarBytes).append(",\n")
+          .append("  \"enhancedJarBytes\": ").append(enhancedJarBytes).append(",\n")
+          .append("  \"classBytes\": ").append(classBytes).append(",\n")
+          .append("  \"valueClassBytes\": ").append(valueClassBytes).append(",\n");
+    }
+    builder.append("  \"phaseNanos\": {");
+    Phase[] phases = Phase.values();
+    for (int i = 0; i < phases.length; i++) {
+      builder.append(i == 0 ? "" : ", ").append(jsonString(phases[i].name())).append(": ").append(phaseNanos(phases[i]));
+    }
+    builder.append("},\n")
+        .append("  \"slowestClasses\": [");
+    List<Map.Entry<String, Long>> slowestClasses = slowestClasses();
+    for (int i = 0; i < slowestClasses.size(); i++) {
+      Map.Entry<String, Long> entry = slowestClasses.get(i);
+      builder.append(i == 0 ? "\n" : ",\n")
+          .append("    {\"name\": ").append(jsonString(entry.getKey().replace('/', '.')))
+          .append(", \"nanos\": ").append(entry.getValue()).append('}');
+    }
+    builder.append(slowestClasses.isEmpty() ? "" : "\n  ").append("]\n")
+        .append("}\n");
+    return builder.toString();
+  }
+}
@@ -0,0 +1,240 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * An index of the operations that depend on the identity of an object found in the method bodies
+ * of the classes of a jar, by type of the object:
+ * <ul>
+ *   <li>a synchronized block on the object or a synchronized method of its class
+ *   <li>{@code ==} (or {@code !=}) on two objects of the same type
+ *   <li>a call to {@code System.identityHashCode}
+ *   <li>the creation of a weak, soft or phantom reference on the object
+ * </ul>
+ *
+ * The types are the static types computed by an analysis of the bytecode that merges two different types
+ * to j.l.Object, so an operation on an object typed as a super type (j.l.Object or an interface)
+ * is not attributed to its class.
+ * The classes are scanned independently (in parallel for enhance) then added to the index.
+ */
+final class IdentityUsageIndex {
+  private final HashMap<String, ArrayList<String>> usageMap = new HashMap<>();
+
+  // an operation on an object of a type
+  static final class IdentityUsage {
+    private final String typeName;
+    private final String message;
+
+    private IdentityUsage(String typeName, String message) {
+      this.typeName = typeName;
+      this.message = message;
+    }
+  }
+
+  void addAll(List<IdentityUsage> usages) {
+    for (IdentityUsage usage : usages) {
+      usageMap.computeIfAbsent(usage.typeName, __ -> new ArrayList<>()).add(usage.message);
+    }
+  }
+
+  /**
+   * Returns the messages describing the identity usages of a class in the order of the jar.
+   */
+  List<String> usages(String className) {
+    ArrayList<String> usages = usageMap.get(className);
+    return usages == null ? Collections.<String>emptyList() : usages;
+  }
+
+  /**
+   * Reports an {@link ValueTypeChecker.Issue#IDENTITY_USAGE} for each identity usage of the classes.
+   */
+  void report(Iterable<String> classNames, ValueTypeChecker.IssueReporter issueReporter) {
+    for (String className : classNames) {
+      for (String message : usages(className)) {
+        issueReporter.report(ValueTypeChecker.Issue.IDENTITY_USAGE, className, message);
+      }
+    }
+  }
+
+  private static boolean isReference(String owner) {
+    switch (owner) {
+      case "java/lang/ref/WeakReference":
+      case "java/lang/ref/SoftReference":
+      case "java/lang/ref/PhantomReference":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // a basic interpreter that keeps the types of the references, two different types are merged to j.l.Object
+  private static final class TypeInterpreter extends BasicInterpreter {
+    private TypeInterpreter() {
+      super(ASM9);
+    }
+
+    @Override
+    public BasicValue newValue(Type type) {
+      if (type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY)) {
+        return new BasicValue(type);
+      }
+      return super.newValue(type);
+    }
+
+    @Override
+    public BasicValue merge(BasicValue value1, BasicValue value2) {
+      if (!value1.equals(value2) && value1.isReference() && value2.isReference()) {
+        return BasicValue.REFERENCE_VALUE;
+      }
+      return super.merge(value1, value2);
+    }
+  }
+
+  private static boolean isIdentitySensitive(AbstractInsnNode insn) {
+    switch (insn.getOpcode()) {
+      case Opcodes.MONITORENTER:
+      case Opcodes.IF_ACMPEQ:
+      case Opcodes.IF_ACMPNE:
+        return true;
+      case Opcodes.INVOKESTATIC: {
+        MethodInsnNode methodInsn = (MethodInsnNode) insn;
+        return methodInsn.owner.equals("java/lang/System") && methodInsn.name.equals("identityHashCode");
+      }
+      case Opcodes.INVOKESPECIAL: {
+        MethodInsnNode methodInsn = (MethodInsnNode) insn;
+        return methodInsn.name.equals("<init>") && isReference(methodInsn.owner);
+      }
+      default:
+        return false;
+    }
+  }
+
+  // the type of the value at a depth from the top of the stack or null
+  private static String peek(Frame<BasicValue> frame, int depth) {
+    Type type = frame.getStack(frame.getStackSize() - 1 - depth).getType();
+    if (type == null || type.getSort() != Type.OBJECT || type.getInternalName().equals("null")) {
+      return null;
+    }
+    return type.getInternalName();
+  }
+
+  private static int scanBackwardToFindLineNumber(AbstractInsnNode node) {
+    for(AbstractInsnNode insn = node; insn != null; insn = insn.getPrevious()) {
+      if (insn instanceof LineNumberNode) {
+        return ((LineNumberNode) insn).line;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the identity usages of the method bodies of a class,
+   * only the methods that contain an identity sensitive instruction are analyzed.
+   */
+  static List<IdentityUsage> scan(byte[] content) {
+    ArrayList<IdentityUsage> usages = new ArrayList<>();
+    ClassReader reader = new ClassReader(content);
+    reader.accept(new ClassVisitor(ASM9) {
+      private String className;
+      private String sourceName;
+
+      @Override
+      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+      }
+
+      @Override
+      public void visitSource(String source, String debug) {
+        sourceName = source;
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        String method = className + "." + name + descriptor;
+        if ((access & (Opcodes.ACC_SYNCHRONIZED | Opcodes.ACC_STATIC)) == Opcodes.ACC_SYNCHRONIZED) {
+          usages.add(new IdentityUsage(className, "synchronized method " + method));
+        }
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+          return null;
+        }
+        return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+          private void add(String typeName, String operation, AbstractInsnNode insn) {
+            if (typeName != null && !typeName.equals("java/lang/Object")) {
+              String location = (sourceName == null ? className : sourceName) + ":" + scanBackwardToFindLineNumber(insn);
+              usages.add(new IdentityUsage(typeName, operation + " in " + method + " at " + location));
+            }
+          }
+
+          @Override
+          public void visitEnd() {
+            super.visitEnd();
+            AbstractInsnNode[] insns = instructions.toArray();
+            boolean identitySensitive = false;
+            for (AbstractInsnNode insn : insns) {
+              identitySensitive |= isIdentitySensitive(insn);
+            }
+            if (!identitySensitive) {
+              return;
+            }
+            Frame<BasicValue>[] frames;
+            try {
+              frames = new Analyzer<>(new TypeInterpreter()).analyze(className, this);
+            } catch (AnalyzerException e) {
+              return;  // invalid bytecode (the VM would reject it), skip the method, not the whole run
+            }
+            for (int i = 0; i < insns.length; i++) {
+              AbstractInsnNode insn = insns[i];
+              Frame<BasicValue> frame = frames[i];
+              if (frame == null || !isIdentitySensitive(insn)) {
+                continue;  // unreachable code
+              }
+              switch (insn.getOpcode()) {
+                case Opcodes.MONITORENTER:
+                  add(peek(frame, 0), "synchronized", insn);
+                  break;
+                case Opcodes.IF_ACMPEQ:
+                case Opcodes.IF_ACMPNE: {
+                  String typeName = peek(frame, 0);
+                  if (typeName != null && typeName.equals(peek(frame, 1))) {
+                    add(typeName, "==", insn);  // javac may compile == to IF_ACMPNE
+                  }
+                  break;
+                }
+                case Opcodes.INVOKESTATIC:
+                  add(peek(frame, 0), "System.identityHashCode", insn);
+                  break;
+                default: {
+                  // the referent is the first argument of the constructor of the reference
+                  MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                  int argumentSize = Type.getArgumentsAndReturnSizes(methodInsn.desc) >> 2;
+                  add(peek(frame, argumentSize - 2), "new " + methodInsn.owner.substring(methodInsn.owner.lastIndexOf('/') + 1), insn);
+                }
+              }
+            }
+          }
+        };
+      }
+    }, ClassReader.SKIP_FRAMES);
+    return usages;
+  }
+}
@@ -0,0 +1,202 @@
+package com.github.forax.einherjar.core;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Checks and rewrites classes that are already in memory, like
+ * {@link Facade#enhance(String, Set, java.nio.file.Path, java.nio.file.Path, Set, ValueTypeChecker.IssueReporter, FacadeListener, EnhanceCache, EnhanceLayout)}
+ * does for the classes of a jar, for the annotation processors, the compiler plugins and the build tools.
+ *
+ * An enhancer is immutable, it can be reused and shared between threads,
+ * it never touches the filesystem and never modifies the arrays of bytes it receives.
+ * The classes of a batch are analyzed in parallel, like the classes of a jar each class is checked alone,
+ * so a class can only inherit from {@code java.lang.Object}, {@code java.lang.Number} or {@code java.lang.Record}.
+ */
+public final class ValueClassEnhancer {
+  /**
+   * An issue found when checking a class.
+   */
+  public static final class ClassIssue {
+    private final ValueTypeChecker.Issue issue;
+    private final String className;
+    private final String message;
+
+    private ClassIssue(ValueTypeChecker.Issue issue, String className, String message) {
+      this.issue = issue;
+      this.className = className;
+      this.message = message;
+    }
+
+    public ValueTypeChecker.Issue issue() {
+      return issue;
+    }
+
+    public String className() {
+      return className;
+    }
+
+    public String message() {
+      return message;
+    }
+
+    @Override
+    public String toString() {
+      return issue + ": class " + className + ", " + message;
+    }
+  }
+
+  /**
+   * The result of the enhancement of a class, a class that does not match or that has an issue has no value class.
+   */
+  public static final class Result {
+    private final String className;
+    private final List<ClassIssue> issues;
+    private final Map<Integer, byte[]> valueClasses;
+
+    private Result(String className, List<ClassIssue> issues, Map<Integer, byte[]> valueClasses) {
+      this.className = className;
+      this.issues = issues;
+      this.valueClasses = valueClasses;
+    }
+
+    /**
+     * Returns the internal name of the class.
+     */
+    public String className() {
+      return className;
+    }
+
+    public List<ClassIssue> issues() {
+      return issues;
+    }
+
+    public boolean isValueClass() {
+      return !valueClasses.isEmpty();
+    }
+
+    /**
+     * Returns the rewritten classes by classfile version, in the order of the versions.
+     */
+    public Map<Integer, byte[]> valueClasses() {
+      return valueClasses;
+    }
+
+    /**
+     * Returns the rewritten classes by name of entry of a multi-release jar
+     * ({@code META-INF/versions/version/className.class}), in the order of the versions.
+     */
+    public Map<String, byte[]> versionedEntries() {
+      LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>();
+      for (Map.Entry<Integer, byte[]> entry : valueClasses.entrySet()) {
+        entries.put(Facade.versionedName(entry.getKey(), className + ".class"), entry.getValue());
+      }
+      return entries;
+    }
+
+    /**
+     * Reports the issues of the class to an issue reporter.
+     */
+    public void report(ValueTypeChecker.IssueReporter issueReporter) {
+      for (ClassIssue classIssue : issues) {
+        issueReporter.report(classIssue.issue, classIssue.className, classIssue.message);
+      }
+    }
+  }
+
+  private final String annotationDescriptor;
+  private final Set<String> internalClassSet;
+  private final int[] versions;
+  private final Set<EnhanceLayout.StrippedAttribute> strippedAttributes;
+
+  /**
+   * Creates an enhancer.
+   *
+   * @param annotationName the qualified name of the annotation of the value classes
+   * @param classSet the qualified names of the value classes that are not annotated
+   * @param versions the classfile versions of the value classes
+   */
+  public ValueClassEnhancer(String annotationName, Set<String> classSet, Set<Integer> versions) {
+    this(Type.getObjectType(annotationName.replace('.', '/')).getDescriptor(),
+        Collections.unmodifiableSet(classSet.stream().map(name -> name.replace('.', '/')).collect(toSet())),
+        Facade.checkVersions(versions),
+        Collections.<EnhanceLayout.StrippedAttribute>emptySet());
+  }
+
+  private ValueClassEnhancer(String annotationDescriptor, Set<String> internalClassSet, int[] versions, Set<EnhanceLayout.StrippedAttribute> strippedAttributes) {
+    this.annotationDescriptor = annotationDescriptor;
+    this.internalClassSet = internalClassSet;
+    this.versions = versions;
+    this.strippedAttributes = strippedAttributes;
+  }
+
+  /**
+   * Returns an enhancer with the same configuration that strips the attributes from the value classes.
+   */
+  public ValueClassEnhancer withStrippedAttributes(Set<EnhanceLayout.StrippedAttribute> strippedAttributes) {
+    return new ValueClassEnhancer(annotationDescriptor, internalClassSet, versions,
+        strippedAttributes.isEmpty() ?
+            Collections.<EnhanceLayout.StrippedAttribute>emptySet() :
+            Collections.unmodifiableSet(EnumSet.copyOf(strippedAttributes)));
+  }
+
+  /**
+   * Checks a class and rewrites it once by version if it matches and has no issue.
+   */
+  public Result enhance(byte[] content) {
+    Objects.requireNonNull(content);
+    ClassReader reader = new ClassReader(content);
+    String className = reader.getClassName();
+    ClassMatcher classMatcher = new ClassMatcher(internalClassSet::contains, annotationDescriptor::equals);
+    reader.accept(classMatcher, ClassReader.SKIP_CODE);
+    if (!classMatcher.isMatching()) {
+      return new Result(className, Collections.<ClassIssue>emptyList(), Collections.<Integer, byte[]>emptyMap());
+    }
+    ArrayList<ClassIssue> issues = new ArrayList<>();
+    reader.accept(new ValueTypeChecker((issue, issueClassName, message) -> issues.add(new ClassIssue(issue, issueClassName, message)), null), 0);
+    if (!issues.isEmpty()) {
+      return new Result(className, Collections.unmodifiableList(issues), Collections.<Integer, byte[]>emptyMap());
+    }
+    TreeMap<Integer, byte[]> valueClasses = new TreeMap<>();
+    for (int version : versions) {
+      ClassWriter writer = new ClassWriter(reader, 0);
+      ClassVisitor visitor = strippedAttributes.isEmpty() ? writer : new AttributeStripper(writer, strippedAttributes);
+      reader.accept(new ValueTypeRewriter(visitor, version), 0);
+      valueClasses.put(version, writer.toByteArray());
+    }
+    return new Result(className, Collections.<ClassIssue>emptyList(), Collections.unmodifiableMap(valueClasses));
+  }
+
+  /**
+   * Enhances a batch of classes in parallel.
+   *
+   * @param classes the classes by name (e.g. their internal names or their entry names)
+   * @return the results by name in the order of the batch
+   */
+  public Map<String, Result> enhance(Map<String, byte[]> classes) {
+    List<Map.Entry<String, byte[]>> entries = new ArrayList<>(classes.entrySet());
+    List<Result> results = entries.parallelStream()
+        .map(entry -> enhance(entry.getValue()))
+        .collect(toList());
+    LinkedHashMap<String, Result> resultMap = new LinkedHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      resultMap.put(entries.get(i).getKey(), results.get(i));
+    }
+    return resultMap;
+  }
+}
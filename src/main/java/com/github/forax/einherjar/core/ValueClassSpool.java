@@ -0,0 +1,114 @@
+package com.github.forax.einherjar.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * The rewritten classes waiting to be written at the end of the jar,
+ * kept in memory until their total size reaches a threshold then spilled to a temporary file,
+ * so the memory used by enhance does not grow with the number of value classes.
+ *
+ * The classes are replayed in the order they were added.
+ */
+final class ValueClassSpool implements Closeable {
+  static final long DEFAULT_MEMORY_THRESHOLD = 16 * 1_024 * 1_024;
+
+  private final long memoryThreshold;
+  private final ArrayList<String> names = new ArrayList<>();
+  private final ArrayList<byte[]> contents = new ArrayList<>();
+  private long memorySize;
+  private int size;
+  private Path spillFile;
+  private DataOutputStream spillOutput;
+
+  ValueClassSpool() {
+    this(DEFAULT_MEMORY_THRESHOLD);
+  }
+
+  ValueClassSpool(long memoryThreshold) {
+    if (memoryThreshold < 0) {
+      throw new IllegalArgumentException("memoryThreshold < 0");
+    }
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  void add(String entryName, byte[] content) throws IOException {
+    size++;
+    if (spillOutput == null && memorySize + content.length <= memoryThreshold) {
+      names.add(entryName);
+      contents.add(content);
+      memorySize += content.length;
+      return;
+    }
+    if (spillOutput == null) {
+      spillFile = Files.createTempFile("einherjar-", ".spool");
+      spillOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+      // keep the order, the classes in memory are written first
+      for (int i = 0; i < names.size(); i++) {
+        spill(names.get(i), contents.get(i));
+      }
+      names.clear();
+      contents.clear();
+      memorySize = 0;
+    }
+    spill(entryName, content);
+  }
+
+  private void spill(String entryName, byte[] content) throws IOException {
+    spillOutput.writeUTF(entryName);
+    spillOutput.writeInt(content.length);
+    spillOutput.write(content);
+  }
+
+  void forEach(Facade.ClassConsumer consumer) throws IOException {
+    if (spillOutput == null) {
+      for (int i = 0; i < names.size(); i++) {
+        consumer.accept(names.get(i), contents.get(i));
+      }
+      return;
+    }
+    spillOutput.flush();
+    try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))) {
+      for (int i = 0; i < size; i++) {
+        String entryName = input.readUTF();
+        byte[] content = new byte[input.readInt()];
+        input.readFully(content);
+        consumer.accept(entryName, content);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    names.clear();
+    contents.clear();
+    if (spillOutput != null) {
+      try {
+        spillOutput.close();
+      } finally {
+        Files.deleteIfExists(spillFile);
+        spillOutput = null;
+        spillFile = null;
+      }
+    }
+  }
+}
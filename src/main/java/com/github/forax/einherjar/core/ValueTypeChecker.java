@@ -22,7 +22,8 @@ import static org.objectweb.asm.Opcodes.ASM9;
 /**
  * Checks that
  * <ul>
- *   <li>the super class is either j.l.Object, j.l.Number or j.l.Record
+ *   <li>the super class is either j.l.Object, j.l.Number or j.l.Record,
+ *       or, if a class hierarchy is available, an abstract class that can be an abstract value class
  *   <li>all fields are final
  *   <li>"this" does not escape the constructor
  * </ul>
@@ -33,7 +34,9 @@ public final class ValueTypeChecker extends ClassVisitor {
   public enum Issue {
     UNKNOWN_SUPER,
     THIS_ESCAPE,
-    NON_FINAL_FIELD
+    NON_FINAL_FIELD,
+    /** reported by the whole-jar analysis of Facade, not by the checker */
+    IDENTITY_USAGE
   }
   @FunctionalInterface
   public interface IssueReporter {
@@ -51,13 +54,19 @@ public final class ValueTypeChecker extends ClassVisitor {
   }
 
   private final IssueReporter issueReporter;
+  private final ClassHierarchy classHierarchy;
   private String ownerClassName;
   private String superClassName;
   private String sourceName;
 
   public ValueTypeChecker(IssueReporter issueReporter, ClassVisitor classVisitor) {
+    this(issueReporter, classVisitor, null);
+  }
+
+  ValueTypeChecker(IssueReporter issueReporter, ClassVisitor classVisitor, ClassHierarchy classHierarchy) {
     super(ASM9, classVisitor);
     this.issueReporter = issueReporter;
+    this.classHierarchy = classHierarchy;
   }
 
   @Override
@@ -65,13 +74,22 @@ public final class ValueTypeChecker extends ClassVisitor {
     super.visit(version, access, name, signature, superName, interfaces);
     ownerClassName = name;
     superClassName = superName;
+    if (superName == null) {  // java.lang.Object
+      issueReporter.report(Issue.UNKNOWN_SUPER, name, "no super class");
+      return;
+    }
     switch (superName) {
       case "java/lang/Object":
       case "java/lang/Number":
       case "java/lang/Record":
         break;
       default:
-        issueReporter.report(Issue.UNKNOWN_SUPER, name , "super class " + superName + " is unknown");
+        String message = classHierarchy == null ?
+            "super class " + superName + " is unknown" :
+            classHierarchy.abstractValueClassIssue(superName);
+        if (message != null) {
+          issueReporter.report(Issue.UNKNOWN_SUPER, name, message);
+        }
     }
   }
 
@@ -92,9 +110,9 @@ public final class ValueTypeChecker extends ClassVisitor {
 
   @Override
   public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-    MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+    MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
     if (!name.equals("<init>")) {
-      return mv;
+      return methodVisitor;
     }
 
     return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
@@ -129,7 +147,7 @@ public final class ValueTypeChecker extends ClassVisitor {
             int opcode = insn.getOpcode();
             if (opcode >= INVOKEVIRTUAL && opcode <= INVOKEDYNAMIC) {
               MethodInsnNode methodInsnNode;
-              if (opcode == INVOKESPECIAL && "<init>".equals((methodInsnNode = ((MethodInsnNode) insn)).name) && superClassName.equals(methodInsnNode.owner)) {
+              if (opcode == INVOKESPECIAL && "<init>".equals((methodInsnNode = ((MethodInsnNode) insn)).name) && methodInsnNode.owner.equals(superClassName)) {
                 // call to the super constructor
                 zeroContainsThis = true;
                 return result;
@@ -150,6 +168,11 @@ public final class ValueTypeChecker extends ClassVisitor {
         } catch (AnalyzerException e) {
           throw new IllegalStateException(e);
         }
+
+        // the constructor is buffered to be analyzed, send it to the next visitor
+        if (methodVisitor != null) {
+          accept(methodVisitor);
+        }
       }
     };
   }
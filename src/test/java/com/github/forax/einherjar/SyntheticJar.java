@@ -0,0 +1,209 @@
+package com.github.forax.einherjar;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.LRETURN;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V21;
+
+/**
+ * Generates reproducible synthetic jars of any size, to test and benchmark on inputs
+ * that look like large applications.
+ *
+ * The classes are named {@code synthetic/p<i / 1_000>/<Kind><i>}, the kind of each class
+ * and whether it is annotated with {@code @ValueType} are chosen using the seed.
+ * The same parameters always generate the same jar, byte for byte.
+ */
+public final class SyntheticJar {
+  private SyntheticJar() {
+    throw new AssertionError();
+  }
+
+  public enum Kind {
+    /** a record, a potential value class */
+    Record,
+    /** a final class with final fields, a potential value class */
+    FinalClass,
+    /** a class with a non-final field */
+    NonFinalField,
+    /** a class that calls a method on this in its constructor */
+    ThisEscape,
+    /** a final class with {@link #LARGE_FIELD_COUNT} final fields initialized by its constructor */
+    LargeConstructor;
+
+    /**
+     * Returns true if a class of this kind can be a value class.
+     */
+    public boolean isPotentialValueType() {
+      return this == Record || this == FinalClass || this == LargeConstructor;
+    }
+
+    /**
+     * Returns the kind of a generated class from its name.
+     */
+    public static Kind of(String className) {
+      String simpleName = className.substring(className.lastIndexOf('/') + 1);
+      for (Kind kind : values()) {
+        if (simpleName.startsWith(kind.name()) && Character.isDigit(simpleName.charAt(kind.name().length()))) {
+          return kind;
+        }
+      }
+      throw new IllegalArgumentException("not a generated class " + className);
+    }
+  }
+
+  public static final int LARGE_FIELD_COUNT = 1_000;
+  public static final String ANNOTATION_DESCRIPTOR = "Lcom/github/forax/einherjar/api/ValueType;";
+
+  // 1980-01-01, the smallest timestamp of the zip format
+  private static final long ENTRY_TIME = 315_532_800_000L;
+
+  /**
+   * Generates a jar with {@code classCount} classes and one resource of 256 KiB for 100 classes.
+   */
+  public static Path generate(Path jar, int classCount, long seed) throws IOException {
+    return generate(jar, classCount, classCount / 100, 256 * 1_024, seed);
+  }
+
+  /**
+   * Generates a jar with {@code classCount} classes and {@code resourceCount} resources of {@code resourceSize} bytes.
+   */
+  public static Path generate(Path jar, int classCount, int resourceCount, int resourceSize, long seed) throws IOException {
+    var random = new Random(seed);
+    var kinds = Kind.values();
+    try(var output = Files.newOutputStream(jar);
+        var jarOutput = new JarOutputStream(output)) {
+      for (var i = 0; i < classCount; i++) {
+        var kind = kinds[random.nextInt(kinds.length)];
+        var annotated = random.nextBoolean();
+        var className = "synthetic/p" + (i / 1_000) + "/" + kind.name() + i;
+        write(jarOutput, className + ".class", generateClass(className, kind, annotated));
+      }
+      for (var i = 0; i < resourceCount; i++) {
+        var content = new byte[resourceSize];
+        random.nextBytes(content);
+        write(jarOutput, "synthetic/resources/resource" + i + ".bin", content);
+      }
+    }
+    return jar;
+  }
+
+  private static void write(JarOutputStream jarOutput, String name, byte[] content) throws IOException {
+    var entry = new JarEntry(name);
+    entry.setTime(ENTRY_TIME);
+    jarOutput.putNextEntry(entry);
+    jarOutput.write(content);
+    jarOutput.closeEntry();
+  }
+
+  /**
+   * Generates the classfile of a class of the given kind.
+   */
+  public static byte[] generateClass(String className, Kind kind, boolean annotated) {
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    var access = ACC_PUBLIC | ACC_SUPER | (kind == Kind.NonFinalField || kind == Kind.ThisEscape ? 0 : ACC_FINAL);
+    var superName = kind == Kind.Record ? "java/lang/Record" : "java/lang/Object";
+    writer.visit(V21, access, className, null, superName, null);
+    if (annotated) {
+      writer.visitAnnotation(ANNOTATION_DESCRIPTOR, true).visitEnd();
+    }
+    if (kind == Kind.LargeConstructor) {
+      generateLargeConstructor(writer, className);
+    } else {
+      generateFields(writer, className, kind, superName);
+    }
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  // an int, a long and a String
+  private static void generateFields(ClassWriter writer, String className, Kind kind, String superName) {
+    var names = new String[] { "x", "y", "name" };
+    var descriptors = new String[] { "I", "J", "Ljava/lang/String;" };
+    for (var i = 0; i < names.length; i++) {
+      var fieldAccess = ACC_PRIVATE | (kind == Kind.NonFinalField && i == 0 ? 0 : ACC_FINAL);
+      writer.visitField(fieldAccess, names[i], descriptors[i], null, null).visitEnd();
+      if (kind == Kind.Record) {
+        writer.visitRecordComponent(names[i], descriptors[i], null).visitEnd();
+      }
+    }
+
+    var constructor = writer.visitMethod(ACC_PUBLIC, "<init>", "(IJLjava/lang/String;)V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+    var slot = 1;
+    var loads = new int[] { ILOAD, LLOAD, ALOAD };
+    for (var i = 0; i < names.length; i++) {
+      constructor.visitVarInsn(ALOAD, 0);
+      constructor.visitVarInsn(loads[i], slot);
+      constructor.visitFieldInsn(PUTFIELD, className, names[i], descriptors[i]);
+      slot += Type.getType(descriptors[i]).getSize();
+    }
+    if (kind == Kind.ThisEscape) {
+      constructor.visitVarInsn(ALOAD, 0);
+      constructor.visitMethodInsn(INVOKESPECIAL, className, "init", "()V", false);
+    }
+    constructor.visitInsn(RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    if (kind == Kind.ThisEscape) {
+      var init = writer.visitMethod(ACC_PRIVATE, "init", "()V", null, null);
+      init.visitCode();
+      init.visitInsn(RETURN);
+      init.visitMaxs(0, 0);
+      init.visitEnd();
+    }
+
+    var returns = new int[] { IRETURN, LRETURN, ARETURN };
+    for (var i = 0; i < names.length; i++) {
+      MethodVisitor accessor = writer.visitMethod(ACC_PUBLIC, names[i], "()" + descriptors[i], null, null);
+      accessor.visitCode();
+      accessor.visitVarInsn(ALOAD, 0);
+      accessor.visitFieldInsn(GETFIELD, className, names[i], descriptors[i]);
+      accessor.visitInsn(returns[i]);
+      accessor.visitMaxs(0, 0);
+      accessor.visitEnd();
+    }
+  }
+
+  private static void generateLargeConstructor(ClassWriter writer, String className) {
+    for (var i = 0; i < LARGE_FIELD_COUNT; i++) {
+      writer.visitField(ACC_PRIVATE | ACC_FINAL, "f" + i, "I", null, null).visitEnd();
+    }
+    var constructor = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    for (var i = 0; i < LARGE_FIELD_COUNT; i++) {
+      constructor.visitVarInsn(ALOAD, 0);
+      constructor.visitLdcInsn(i);
+      constructor.visitFieldInsn(PUTFIELD, className, "f" + i, "I");
+    }
+    constructor.visitInsn(RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+  }
+}
@@ -0,0 +1,76 @@
+package com.github.forax.einherjar;
+
+import com.github.forax.einherjar.SyntheticJar.Kind;
+import com.github.forax.einherjar.core.Facade;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+import static java.util.stream.Collectors.toSet;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SyntheticJarTest {
+  private static Set<String> classNames(Path jar) throws IOException {
+    try(var jarFile = new JarFile(jar.toFile())) {
+      return jarFile.stream()
+          .map(entry -> entry.getName())
+          .filter(name -> name.endsWith(".class"))
+          .map(name -> name.substring(0, name.length() - ".class".length()))
+          .collect(toSet());
+    }
+  }
+
+  @Test
+  public void reproducible(@TempDir Path directory) throws IOException {
+    var jar1 = SyntheticJar.generate(directory.resolve("1.jar"), 500, 42);
+    var jar2 = SyntheticJar.generate(directory.resolve("2.jar"), 500, 42);
+    var jar3 = SyntheticJar.generate(directory.resolve("3.jar"), 500, 7);
+    assertAll(
+        () -> assertEquals(-1, Files.mismatch(jar1, jar2)),
+        () -> assertTrue(Files.mismatch(jar1, jar3) != -1),
+        () -> assertEquals(500, classNames(jar1).size())
+    );
+  }
+
+  @Test
+  public void allKindsAndResources(@TempDir Path directory) throws IOException {
+    var jar = SyntheticJar.generate(directory.resolve("test.jar"), 200, 3, 1_024, 42);
+    try(var jarFile = new JarFile(jar.toFile())) {
+      assertEquals(203, jarFile.size());
+      assertEquals(1_024, jarFile.getEntry("synthetic/resources/resource2.bin").getSize());
+    }
+    assertEquals(Set.of(Kind.values()), classNames(jar).stream().map(Kind::of).collect(toSet()));
+  }
+
+  @Test
+  public void loadable(@TempDir Path directory) throws IOException, ClassNotFoundException {
+    var jar = SyntheticJar.generate(directory.resolve("test.jar"), 100, 42);
+    try(var loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, SyntheticJarTest.class.getClassLoader())) {
+      for (var className : classNames(jar)) {
+        // initialize the class, so it is verified
+        Class.forName(className.replace('/', '.'), true, loader);
+      }
+    }
+  }
+
+  @Test
+  public void findPotentialValueTypes(@TempDir Path directory) throws IOException {
+    var jar = SyntheticJar.generate(directory.resolve("test.jar"), 300, 42);
+    var found = new HashSet<String>();
+    Facade.find(jar, found::add);
+    var expected = classNames(jar).stream()
+        .filter(className -> Kind.of(className).isPotentialValueType())
+        .collect(toSet());
+    assertEquals(expected, found);
+  }
+}
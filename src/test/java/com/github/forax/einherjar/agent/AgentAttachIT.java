@@ -0,0 +1,80 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import com.sun.tools.attach.VirtualMachine;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AgentAttachIT {
+  @ValueType
+  record Point(int x, int y) { }
+
+  // run in a VM started without the agent
+  public static final class AttachMain {
+    @SuppressWarnings("unused")
+    static boolean same() {
+      return new Point(1, 2) == new Point(1, 2);
+    }
+
+    private static void loadAgent(String agentJar, String options) throws Exception {
+      var vm = VirtualMachine.attach(String.valueOf(ProcessHandle.current().pid()));
+      try {
+        vm.loadAgent(agentJar, options);
+      } finally {
+        vm.detach();
+      }
+    }
+
+    public static void main(String[] args) throws Exception {
+      var agentJar = args[0];
+      var options = args[1];
+      if (same()) {
+        System.exit(1);  // the class is not yet transformed
+      }
+      loadAgent(agentJar, options);
+      if (!same()) {
+        System.exit(2);  // the class is not re-transformed
+      }
+      loadAgent(agentJar, "checking=false");
+      if (same()) {
+        System.exit(3);  // the checking is not turned off
+      }
+      System.exit(0);
+    }
+  }
+
+  private static void run(List<String> vmOptions, String agentOptions) throws IOException, InterruptedException {
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var agentJar = Path.of("target", "einherjar.jar").toAbsolutePath().toString();
+    var command = new ArrayList<String>();
+    command.add(java);
+    command.addAll(vmOptions);
+    command.addAll(List.of(
+        "-Djdk.attach.allowAttachSelf=true", "-XX:+EnableDynamicAgentLoading",
+        "-cp", System.getProperty("java.class.path"),
+        AttachMain.class.getName(), agentJar, agentOptions));
+    var process = new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .start();
+    var output = new String(process.getInputStream().readAllBytes());
+    assertEquals(0, process.waitFor(), output);
+  }
+
+  @Test
+  public void attachAndRetransform() throws IOException, InterruptedException {
+    run(List.of(), "");
+  }
+
+  @Test
+  public void attachWithEnhanceAndRetransform() throws IOException, InterruptedException {
+    // the classes already loaded can not be enhanced (on a VM that supports value classes),
+    // but they are still retransformed
+    run(List.of("--enable-preview"), "enhance=true");
+  }
+}
@@ -0,0 +1,89 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+public class AgentCacheIT {
+  @ValueType
+  record Target(int value) { }
+
+  // run in a VM started with the agent, a cache and the allocation counting
+  public static final class AllocationMain {
+    public static void main(String[] args) {
+      var sum = 0;
+      for (var i = 0; i < 10; i++) {
+        sum += new Target(i).value();
+      }
+      System.out.println(sum);
+    }
+  }
+
+  private static String run(Path cache, String classpath) throws IOException, InterruptedException {
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var agentJar = Path.of("target", "einherjar.jar").toAbsolutePath().toString();
+    var process = new ProcessBuilder(java,
+          "-javaagent:" + agentJar + "=cache=" + cache + ",allocations",
+          "-cp", classpath,
+          AllocationMain.class.getName())
+        .redirectErrorStream(true)
+        .start();
+    var output = new String(process.getInputStream().readAllBytes());
+    assertEquals(0, process.waitFor(), output);
+    return output;
+  }
+
+  // the same class without the annotation
+  private static byte[] removeAnnotation(Class<?> clazz) throws IOException {
+    var annotationDescriptor = "L" + ValueType.class.getName().replace('.', '/') + ";";
+    byte[] code;
+    try(var input = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+      code = input.readAllBytes();
+    }
+    var reader = new ClassReader(code);
+    var writer = new ClassWriter(reader, 0);
+    reader.accept(new ClassVisitor(ASM9, writer) {
+      @Override
+      public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+        return descriptor.equals(annotationDescriptor) ? null : super.visitAnnotation(descriptor, visible);
+      }
+    }, 0);
+    return writer.toByteArray();
+  }
+
+  @Test
+  public void referencedClassLosesItsAnnotation(@TempDir Path directory) throws IOException, InterruptedException {
+    var cache = directory.resolve("cache");
+    var classpath = System.getProperty("java.class.path");
+    var site = Target.class.getName() + " " + AllocationMain.class.getName() + ".main:";
+
+    var output1 = run(cache, classpath);
+
+    // the classfile of the main class does not change, only the annotation of the allocated class
+    var classes = directory.resolve("classes");
+    var targetFile = classes.resolve(Target.class.getName().replace('.', '/') + ".class");
+    Files.createDirectories(targetFile.getParent());
+    Files.write(targetFile, removeAnnotation(Target.class));
+    var output2 = run(cache, classes + File.pathSeparator + classpath);
+
+    assertAll(
+        () -> assertTrue(output1.contains(site), output1),
+        () -> assertFalse(output2.contains(site), output2)
+    );
+  }
+}
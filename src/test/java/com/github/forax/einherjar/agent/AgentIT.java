@@ -4,17 +4,39 @@ import com.github.forax.einherjar.api.ValueType;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.Attribute;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class AgentIT {
 
@@ -251,4 +273,284 @@ public class AgentIT {
       );
     }
   }
+
+  @Nested
+  class Toggle {
+    private static void setCheckingEnabled(boolean enabled) throws Exception {
+      var server = ManagementFactory.getPlatformMBeanServer();
+      server.setAttribute(new ObjectName("com.github.forax.einherjar:type=Agent"), new Attribute("CheckingEnabled", enabled));
+    }
+
+    @Test
+    public void turnOffAndOn() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      var value = new Point(1, 2);
+      setCheckingEnabled(false);
+      try {
+        assertNotSame(new Point(1, 2), new Point(1, 2));
+        synchronized (value) {
+          // no exception
+        }
+      } finally {
+        setCheckingEnabled(true);
+      }
+      assertSame(new Point(1, 2), new Point(1, 2));
+      assertThrows(IllegalMonitorStateException.class, () -> {
+        synchronized (value) {
+          // do nothing here
+        }
+      });
+    }
+  }
+
+  @Nested
+  class Sampling {
+    private static void setSamplingRate(int rate) throws Exception {
+      var server = ManagementFactory.getPlatformMBeanServer();
+      server.setAttribute(new ObjectName("com.github.forax.einherjar:type=Agent"), new Attribute("SamplingRate", rate));
+    }
+
+    @Test
+    public void almostNeverSampled() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      setSamplingRate(Integer.MAX_VALUE);
+      try {
+        assertNotSame(new Point(1, 2), new Point(1, 2));
+      } finally {
+        setSamplingRate(1);
+      }
+      assertSame(new Point(1, 2), new Point(1, 2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void eachSiteSampled() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      var server = ManagementFactory.getPlatformMBeanServer();
+      var agentName = new ObjectName("com.github.forax.einherjar:type=Agent");
+      server.setAttribute(agentName, new Attribute("MetricsEnabled", true));
+      setSamplingRate(4);
+      var results = new ArrayList<Boolean>();
+      try {
+        for (var i = 0; i < 100; i++) {
+          results.add(new Point(1, 2) == new Point(1, 2));
+          results.add(new Point(i, i) == new Point(i, i));
+        }
+      } finally {
+        setSamplingRate(1);
+        server.setAttribute(agentName, new Attribute("MetricsEnabled", false));
+      }
+      var siteCounts = ((Map<String, Long>) server.getAttribute(agentName, "SiteCounts")).entrySet().stream()
+          .filter(entry -> entry.getKey().startsWith("acmp " + Sampling.class.getName() + ".eachSiteSampled:"))
+          .map(Map.Entry::getValue)
+          .toList();
+      assertAll(
+          () -> assertEquals(List.of(25L, 25L), siteCounts),
+          // one execution out of 4 of each site
+          () -> assertEquals(List.of(false, false, false, false, false, false, true, true, false, false), results.subList(0, 10))
+      );
+    }
+  }
+
+  @Nested
+  class Metrics {
+    private static final ObjectName AGENT_NAME;
+    static {
+      try {
+        AGENT_NAME = new ObjectName("com.github.forax.einherjar:type=Agent");
+      } catch (MalformedObjectNameException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> counts(String attribute) throws Exception {
+      var server = ManagementFactory.getPlatformMBeanServer();
+      return (Map<String, Long>) server.getAttribute(AGENT_NAME, attribute);
+    }
+
+    private static void setMetricsEnabled(boolean enabled) throws Exception {
+      var server = ManagementFactory.getPlatformMBeanServer();
+      server.setAttribute(AGENT_NAME, new Attribute("MetricsEnabled", enabled));
+    }
+
+    @Test
+    public void countValueAcmp() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      setMetricsEnabled(true);
+      try {
+        var before = counts("OperationCounts").get("acmp.value");
+        @SuppressWarnings("unused")
+        var same = new Point(1, 2) == new Point(1, 2);
+        assertTrue(same);
+        assertAll(
+            () -> assertTrue(counts("OperationCounts").get("acmp.value") > before),
+            () -> assertTrue(counts("ValueClassCounts").containsKey("acmp " + Point.class.getName())),
+            () -> assertTrue(counts("SiteCounts").keySet().stream()
+                .anyMatch(key -> key.startsWith("acmp " + Metrics.class.getName() + ".countValueAcmp:")))
+        );
+      } finally {
+        setMetricsEnabled(false);
+      }
+    }
+
+    @Test
+    public void violationEvent() throws Exception {
+      @ValueType
+      record Value() { }
+
+      var lock = new Value();
+      try(var recording = new Recording()) {
+        recording.enable("com.github.forax.einherjar.Violation");
+        recording.start();
+        assertThrows(IllegalMonitorStateException.class, () -> {
+          synchronized (lock) {
+            // do nothing here
+          }
+        });
+        recording.stop();
+        var file = Files.createTempFile("einherjar-violation", ".jfr");
+        try {
+          recording.dump(file);
+          var events = RecordingFile.readAllEvents(file);
+          assertTrue(events.stream().anyMatch(event ->
+              event.getString("operation").equals("monitorenter") &&
+              event.getClass("valueClass").getName().equals(Value.class.getName()) &&
+              event.getStackTrace() != null));
+        } finally {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  @Nested
+  class Allocations {
+    @Test
+    @SuppressWarnings("unchecked")
+    public void countAllocations() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      for (var i = 0; i < 10; i++) {
+        assertNotNull(new Point(i, i));
+      }
+      var server = ManagementFactory.getPlatformMBeanServer();
+      var counts = (Map<String, Long>) server.getAttribute(new ObjectName("com.github.forax.einherjar:type=Agent"), "AllocationCounts");
+      var site = Point.class.getName() + " " + Allocations.class.getName() + ".countAllocations:";
+      assertTrue(counts.entrySet().stream()
+          .anyMatch(entry -> entry.getKey().startsWith(site) && entry.getValue() >= 10), counts.toString());
+    }
+  }
+
+  @Nested
+  class IdentityMap {
+    @Test
+    public void valueKeys() {
+      @ValueType
+      record Point(int x, int y) { }
+
+      var map = new IdentityHashMap<Point, String>();
+      map.put(new Point(1, 2), "foo");
+      map.put(new Point(1, 2), "bar");
+      assertAll(
+          () -> assertEquals("ValueIdentityHashMap", map.getClass().getSimpleName()),
+          () -> assertEquals(1, map.size()),
+          () -> assertEquals("bar", map.get(new Point(1, 2))),
+          () -> assertEquals("bar", map.remove(new Point(1, 2))),
+          () -> assertTrue(map.isEmpty())
+      );
+    }
+
+    @Test
+    public void identityKeys() {
+      var map = new IdentityHashMap<Object, Integer>();
+      var keys = new ArrayList<String>();
+      for (var i = 0; i < 100; i++) {
+        var key = new String("key");
+        keys.add(key);
+        map.put(key, i);
+      }
+      map.put(null, -1);
+      assertAll(
+          () -> assertEquals(101, map.size()),
+          () -> assertEquals(42, map.get(keys.get(42))),
+          () -> assertEquals(-1, map.get(null)),
+          () -> assertNull(map.get("key"))
+      );
+    }
+
+    @Test
+    public void iteratorRemove() {
+      @ValueType
+      record Value(int v) { }
+
+      var map = new IdentityHashMap<Value, Integer>();
+      for (var i = 0; i < 100; i++) {
+        map.put(new Value(i), i);
+      }
+      map.keySet().removeIf(value -> value.v() % 2 == 0);
+      assertAll(
+          () -> assertEquals(50, map.size()),
+          () -> assertTrue(map.containsKey(new Value(51))),
+          () -> assertFalse(map.containsKey(new Value(50))),
+          () -> assertEquals(map, new IdentityHashMap<>(map))
+      );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void serialization() throws Exception {
+      @ValueType
+      record Point(int x, int y) implements Serializable { }
+
+      var map = new IdentityHashMap<Object, String>();
+      map.put(new Point(1, 2), "foo");
+      map.put("bar", "baz");
+      map.put(null, "null");
+      var bytes = new ByteArrayOutputStream();
+      try(var output = new ObjectOutputStream(bytes)) {
+        output.writeObject(map);
+      }
+      Map<Object, String> copy;
+      try(var input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+        copy = (Map<Object, String>) input.readObject();
+      }
+      assertAll(
+          () -> assertEquals("ValueIdentityHashMap", map.getClass().getSimpleName()),
+          () -> assertEquals(IdentityHashMap.class, copy.getClass()),
+          () -> assertEquals(3, copy.size()),
+          () -> assertEquals(new HashMap<>(map), new HashMap<>(copy))
+      );
+    }
+
+    @Test
+    public void checkingTurnedOff() throws Exception {
+      @ValueType
+      record Point(int x, int y) { }
+
+      IdentityHashMap<Point, String> map;
+      Toggle.setCheckingEnabled(false);
+      try {
+        map = new IdentityHashMap<>();
+      } finally {
+        Toggle.setCheckingEnabled(true);
+      }
+      // the map keeps the identity semantics after the checks are turned on again
+      map.put(new Point(1, 2), "foo");
+      map.put(new Point(1, 2), "bar");
+      assertAll(
+          () -> assertEquals(2, map.size()),
+          () -> assertNull(map.get(new Point(1, 2)))
+      );
+    }
+  }
 }
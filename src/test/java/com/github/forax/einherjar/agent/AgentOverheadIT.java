@@ -0,0 +1,194 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a fixed set of workloads in forked VMs with and without the agent
+ * and fails if the overhead of the agent is above the configured thresholds.
+ *
+ * The thresholds are the system properties
+ * {@code einherjar.overhead.throughput} (max slowdown of the throughput),
+ * {@code einherjar.overhead.allocation} (max ratio of the allocated bytes per operation) and
+ * {@code einherjar.overhead.startup} (max ratio of the startup time), they are set in the pom.
+ * A threshold can be overridden for a workload, e.g. {@code einherjar.overhead.throughput.acmp}.
+ */
+public class AgentOverheadIT {
+  private static final int ROUNDS = 10;
+  private static final int OPERATIONS = 10_000;
+
+  @ValueType
+  record Point(int x, int y) { }
+
+  // run in a VM started with or without the agent, prints the best throughput and the allocated bytes per operation
+  public static final class WorkloadMain {
+    private static Object sink;
+
+    private static void collections() {
+      var list = new ArrayList<Point>();
+      var map = new HashMap<Point, Integer>();
+      for (var i = 0; i < 100; i++) {
+        var point = new Point(i, i);
+        list.add(point);
+        map.merge(point, 1, Integer::sum);
+      }
+      sink = list.indexOf(new Point(50, 50)) + map.get(new Point(99, 99));
+    }
+
+    private static void identityHashMap() {
+      var map = new IdentityHashMap<Object, Integer>();
+      for (var i = 0; i < 100; i++) {
+        map.put(new Point(i, i), i);
+        map.put(new Object(), i);
+      }
+      sink = map.get(new Point(50, 50));
+    }
+
+    private static final Object LOCK = new Object();
+    private static int counter;
+
+    private static void synchronizedBlocks() {
+      for (var i = 0; i < 100; i++) {
+        synchronized (LOCK) {
+          counter++;
+        }
+      }
+    }
+
+    private static final Object[] OBJECTS = Stream.iterate(0, i -> i + 1).limit(100)
+        .map(i -> i % 2 == 0 ? new Point(i, i) : new Object())
+        .toArray();
+
+    private static void acmp() {
+      var count = 0;
+      for (var o1 : OBJECTS) {
+        for (var o2 : OBJECTS) {
+          if (o1 == o2) {
+            count++;
+          }
+        }
+      }
+      sink = count;
+    }
+
+    private static Runnable workload(String name) {
+      return switch (name) {
+        case "collections" -> WorkloadMain::collections;
+        case "identityHashMap" -> WorkloadMain::identityHashMap;
+        case "synchronized" -> WorkloadMain::synchronizedBlocks;
+        case "acmp" -> WorkloadMain::acmp;
+        case "noop" -> () -> {};
+        default -> throw new IllegalArgumentException(name);
+      };
+    }
+
+    public static void main(String[] args) {
+      var workload = workload(args[0]);
+      var rounds = Integer.parseInt(args[1]);
+      var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      var bestNanos = Long.MAX_VALUE;
+      var bestAllocated = Long.MAX_VALUE;
+      for (var round = 0; round < rounds; round++) {
+        var allocatedStart = threadMXBean.getCurrentThreadAllocatedBytes();
+        var start = System.nanoTime();
+        for (var i = 0; i < OPERATIONS; i++) {
+          workload.run();
+        }
+        var nanos = System.nanoTime() - start;
+        var allocated = threadMXBean.getCurrentThreadAllocatedBytes() - allocatedStart;
+        bestNanos = Math.min(bestNanos, nanos);
+        bestAllocated = Math.min(bestAllocated, allocated);
+      }
+      System.out.println("RESULT " + (OPERATIONS * 1_000_000_000.0 / bestNanos) + " " + ((double) bestAllocated / OPERATIONS));
+    }
+  }
+
+  record Measure(double throughput, double allocatedPerOperation, long elapsedNanos) { }
+
+  private static Measure run(boolean withAgent, String workload, int rounds) throws IOException, InterruptedException {
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var command = new ArrayList<String>(List.of(java));
+    if (withAgent) {
+      command.add("-javaagent:" + Path.of("target", "einherjar.jar").toAbsolutePath() + "=cache=" + Path.of("target", "agent-cache").toAbsolutePath());
+    }
+    command.addAll(List.of("-cp", System.getProperty("java.class.path"), WorkloadMain.class.getName(), workload, "" + rounds));
+    var start = System.nanoTime();
+    var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    var output = new String(process.getInputStream().readAllBytes());
+    assertEquals(0, process.waitFor(), output);
+    var elapsedNanos = System.nanoTime() - start;
+    var result = output.lines().filter(line -> line.startsWith("RESULT ")).findFirst().orElseThrow(() -> new AssertionError(output)).split(" ");
+    return new Measure(Double.parseDouble(result[1]), Double.parseDouble(result[2]), elapsedNanos);
+  }
+
+  private static double threshold(String name, String workload) {
+    var property = "einherjar.overhead." + name;
+    var value = System.getProperty(property + "." + workload, System.getProperty(property));
+    if (value == null) {
+      throw new IllegalStateException("threshold " + property + " is not set");
+    }
+    return Double.parseDouble(value);
+  }
+
+  private static void checkThroughputAndAllocation(String workload) throws IOException, InterruptedException {
+    var plain = run(false, workload, ROUNDS);
+    var agent = run(true, workload, ROUNDS);
+    var slowdown = plain.throughput() / agent.throughput();
+    // a workload that does not allocate without the agent is compared to 1 byte per operation
+    var allocationRatio = agent.allocatedPerOperation() / Math.max(1.0, plain.allocatedPerOperation());
+    System.out.printf("einherjar overhead %s: throughput %.0f -> %.0f op/s (x%.2f), allocation %.1f -> %.1f B/op (x%.2f)%n",
+        workload, plain.throughput(), agent.throughput(), slowdown,
+        plain.allocatedPerOperation(), agent.allocatedPerOperation(), allocationRatio);
+    assertAll(
+        () -> assertTrue(slowdown <= threshold("throughput", workload), workload + " slowdown x" + slowdown),
+        () -> assertTrue(allocationRatio <= threshold("allocation", workload), workload + " allocation x" + allocationRatio)
+    );
+  }
+
+  @Test
+  public void collections() throws IOException, InterruptedException {
+    checkThroughputAndAllocation("collections");
+  }
+
+  @Test
+  public void identityHashMap() throws IOException, InterruptedException {
+    checkThroughputAndAllocation("identityHashMap");
+  }
+
+  @Test
+  public void synchronizedBlocks() throws IOException, InterruptedException {
+    checkThroughputAndAllocation("synchronized");
+  }
+
+  @Test
+  public void acmp() throws IOException, InterruptedException {
+    checkThroughputAndAllocation("acmp");
+  }
+
+  @Test
+  public void startup() throws IOException, InterruptedException {
+    run(true, "noop", 1);  // fill the transformation cache
+    var plainNanos = Long.MAX_VALUE;
+    var agentNanos = Long.MAX_VALUE;
+    for (var i = 0; i < 3; i++) {
+      plainNanos = Math.min(plainNanos, run(false, "noop", 1).elapsedNanos());
+      agentNanos = Math.min(agentNanos, run(true, "noop", 1).elapsedNanos());
+    }
+    var ratio = (double) agentNanos / plainNanos;
+    System.out.printf("einherjar overhead startup: %d -> %d ms (x%.2f)%n", plainNanos / 1_000_000, agentNanos / 1_000_000, ratio);
+    assertTrue(ratio <= threshold("startup", "noop"), "startup x" + ratio);
+  }
+}
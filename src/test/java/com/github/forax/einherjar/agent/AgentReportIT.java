@@ -0,0 +1,64 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AgentReportIT {
+  @ValueType
+  record Point(int x, int y) { }
+
+  // run in a VM started with the agent in report-only mode
+  public static final class ReportMain {
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    private static void lock(Point point) {
+      synchronized (point) {
+        // no exception
+      }
+    }
+
+    public static void main(String[] args) {
+      for (var i = 0; i < 10; i++) {
+        lock(new Point(i, i));
+      }
+      new WeakReference<>(new Point(0, 0));
+    }
+  }
+
+  @Test
+  public void reportOnly() throws IOException, InterruptedException {
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    var agentJar = Path.of("target", "einherjar.jar").toAbsolutePath().toString();
+    var report = Files.createTempFile("einherjar-report", ".txt");
+    try {
+      var process = new ProcessBuilder(java,
+            "-javaagent:" + agentJar + "=report=" + report,
+            "-cp", System.getProperty("java.class.path"),
+            ReportMain.class.getName())
+          .redirectErrorStream(true)
+          .start();
+      var output = new String(process.getInputStream().readAllBytes());
+      assertEquals(0, process.waitFor(), output);
+
+      var lines = Files.readAllLines(report);
+      var lockSite = "monitorenter " + ReportMain.class.getName() + ".lock:";
+      var referenceSite = "identityCheck " + ReportMain.class.getName() + ".main:";
+      assertAll(
+          () -> assertEquals(1, lines.stream().filter(line -> line.startsWith(lockSite)).count(), output),
+          () -> assertEquals(1, lines.stream().filter(line -> line.startsWith(referenceSite)).count(), output),
+          () -> assertTrue(lines.contains("# summary: 2 distinct violation(s), 11 occurrence(s)"), String.join("\n", lines)),
+          () -> assertTrue(lines.stream().anyMatch(line -> line.startsWith("# 10 " + lockSite)), String.join("\n", lines))
+      );
+    } finally {
+      Files.delete(report);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import com.github.forax.einherjar.core.ValueTypeChecker;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClassEnhancerTest {
+  @ValueType
+  record Point(int x, int y) { }
+
+  @ValueType
+  record Pair(Object first, Object second) {
+    boolean same() {
+      return first == second;
+    }
+  }
+
+  @ValueType
+  static class Mutable {
+    int x;
+  }
+
+  record NotAnnotated(int x) { }
+
+  private static byte[] load(Class<?> clazz) throws IOException {
+    return Agent.classBytes(clazz.getName().replace('.', '/'));
+  }
+
+  @Test
+  public void enhance() throws IOException {
+    var enhancer = new ClassEnhancer(ValueType.class.getName(), 23, (className, issue, message) -> {
+      throw new AssertionError(className + " " + issue + " " + message);
+    });
+    var enhanced = enhancer.enhance(load(Point.class));
+    assertNotNull(enhanced);
+    var reader = new ClassReader(enhanced);
+    var majorVersion = ((enhanced[6] & 0xFF) << 8) | (enhanced[7] & 0xFF);
+    var minorVersion = ((enhanced[4] & 0xFF) << 8) | (enhanced[5] & 0xFF);
+    assertAll(
+        () -> assertEquals(67, majorVersion),
+        () -> assertEquals(0xFFFF, minorVersion),
+        () -> assertEquals(Point.class.getName().replace('.', '/'), reader.getClassName()),
+        () -> assertTrue(constructorHasCode(reader))
+    );
+  }
+
+  private static boolean constructorHasCode(ClassReader reader) {
+    var node = new ClassNode();
+    reader.accept(node, 0);
+    return node.methods.stream()
+        .filter(method -> method.name.equals("<init>"))
+        .allMatch(method -> method.instructions.size() != 0);
+  }
+
+  @Test
+  public void retransformedClassNotEnhanced() throws IOException {
+    var enhancer = new ClassEnhancer(ValueType.class.getName(), 23, (className, issue, message) -> {
+      throw new AssertionError(className + " " + issue + " " + message);
+    });
+    var content = load(Pair.class);
+    var loaded = Agent.enhanceAndRewrite(content, null, null, true, enhancer);
+    // the == is still rewritten
+    var retransformed = Agent.enhanceAndRewrite(content, Pair.class, null, true, enhancer);
+    assertAll(
+        () -> assertEquals(67, loaded[7]),
+        () -> assertEquals(content[7], retransformed[7]),
+        () -> assertEquals(new ClassReader(content).getAccess(), new ClassReader(retransformed).getAccess())
+    );
+  }
+
+  @Test
+  public void notAnnotated() throws IOException {
+    var enhancer = new ClassEnhancer(ValueType.class.getName(), 23, (className, issue, message) -> {
+      throw new AssertionError(className + " " + issue + " " + message);
+    });
+    assertNull(enhancer.enhance(load(NotAnnotated.class)));
+  }
+
+  @Test
+  public void enhanceFailure() throws IOException {
+    var issues = new ArrayList<ValueTypeChecker.Issue>();
+    var enhancer = new ClassEnhancer(ValueType.class.getName(), 23, (className, issue, message) -> issues.add(issue));
+    assertAll(
+        () -> assertNull(enhancer.enhance(load(Mutable.class))),
+        () -> assertEquals(ValueTypeChecker.Issue.NON_FINAL_FIELD, issues.get(0))
+    );
+  }
+}
@@ -0,0 +1,115 @@
+package com.github.forax.einherjar.agent;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import static java.util.stream.Collectors.toSet;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InstrumenterTest {
+  @ValueType
+  record Point(int x, int y) {}
+
+  public static class UseAcmp {
+    @SuppressWarnings("unused")
+    public static boolean same() {
+      return new Point(1, 2) == new Point(1, 2);
+    }
+  }
+
+  private static Path createTestJar(Class<?>... classes) throws IOException {
+    var directory = Files.createTempDirectory("--einherjar--instrumenter--");
+    var testJar = directory.resolve("test.jar");
+    try(var output = Files.newOutputStream(testJar);
+        var jarOutput = new JarOutputStream(output)) {
+      for(var clazz: classes) {
+        var className = clazz.getName().replace('.', '/');
+        jarOutput.putNextEntry(new JarEntry(className + ".class"));
+        jarOutput.write(Agent.classBytes(className));
+        jarOutput.closeEntry();
+      }
+    }
+    return testJar;
+  }
+
+  private static Object callSame(Path jarFile) throws IOException, ReflectiveOperationException {
+    try(var classLoader = new URLClassLoader(new URL[] { jarFile.toUri().toURL() }, ClassLoader.getPlatformClassLoader())) {
+      var type = classLoader.loadClass(UseAcmp.class.getName());
+      try {
+        return type.getMethod("same").invoke(null);
+      } catch (InvocationTargetException e) {
+        throw new AssertionError(e.getCause());
+      }
+    }
+  }
+
+  @Test
+  public void instrument() throws IOException, ReflectiveOperationException {
+    var jarFile = createTestJar(Point.class, UseAcmp.class, ValueType.class);
+    var instrumentedJarFile = jarFile.resolveSibling("test-instrumented.jar");
+    Instrumenter.instrument(jarFile, instrumentedJarFile);
+
+    try(var resultJarFile = new JarFile(instrumentedJarFile.toFile())) {
+      assertAll(
+          () -> assertNotNull(resultJarFile.getJarEntry(Agent.AGENT_RUNTIME_NAME + ".class")),
+          () -> assertNotNull(resultJarFile.getJarEntry(UseAcmp.class.getName().replace('.', '/') + ".class"))
+      );
+    }
+    assertAll(
+        () -> assertEquals(false, callSame(jarFile)),
+        () -> assertEquals(true, callSame(instrumentedJarFile))
+    );
+  }
+
+  @Test
+  public void instrumentFailureKeepsOutput() throws IOException {
+    var jarFile = createTestJar(UseAcmp.class);
+    try(var jarOutput = new JarOutputStream(Files.newOutputStream(jarFile))) {
+      jarOutput.putNextEntry(new JarEntry("Broken.class"));
+      jarOutput.write(new byte[] { (byte) 0xCA, (byte) 0xFE });
+      jarOutput.closeEntry();
+    }
+    var instrumentedJarFile = jarFile.resolveSibling("test-instrumented.jar");
+    Files.writeString(instrumentedJarFile, "previous");
+    assertThrows(RuntimeException.class, () -> Instrumenter.instrument(jarFile, instrumentedJarFile));
+    try(var files = Files.list(jarFile.getParent())) {
+      assertAll(
+          () -> assertEquals("previous", Files.readString(instrumentedJarFile)),
+          () -> assertEquals(Set.of(jarFile, instrumentedJarFile), files.collect(toSet()))
+      );
+    }
+  }
+
+  @Test
+  public void instrumentAll() throws IOException {
+    var jarFile1 = createTestJar(UseAcmp.class);
+    var jarFile2 = createTestJar(Point.class);
+    Instrumenter.instrumentAll(List.of(jarFile1, jarFile2), path -> path.resolveSibling("test-instrumented.jar"));
+
+    for(var jarFile : List.of(jarFile1, jarFile2)) {
+      var instrumentedJarFile = jarFile.resolveSibling("test-instrumented.jar");
+      assertTrue(Files.exists(instrumentedJarFile));
+      try(var resultJarFile = new JarFile(instrumentedJarFile.toFile())) {
+        assertNotNull(resultJarFile.getJarEntry(Agent.AGENT_RUNTIME_NAME + ".class"));
+        assertFalse(resultJarFile.stream().anyMatch(entry -> entry.getName().endsWith(".SF")));
+      }
+    }
+  }
+}
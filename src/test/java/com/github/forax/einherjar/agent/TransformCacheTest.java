@@ -0,0 +1,91 @@
+package com.github.forax.einherjar.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransformCacheTest {
+  private static TransformCache.Entry awaitEntry(TransformCache cache, String key) throws InterruptedException {
+    for(var i = 0; i < 100; i++) {
+      var entry = cache.lookup(key);
+      if (entry != TransformCache.Entry.MISS) {
+        return entry;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("entry " + key + " never written");
+  }
+
+  @Test
+  public void storeAndLookup() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("--einherjar--cache--");
+    var cache = TransformCache.open(directory, "0123456789abcdef0123", "");
+    var key = cache.key(new byte[] { 1, 2, 3 }, true);
+    assertSame(TransformCache.Entry.MISS, cache.lookup(key));
+
+    cache.store(key, new byte[] { 4, 5, 6 });
+    assertArrayEquals(new byte[] { 4, 5, 6 }, awaitEntry(cache, key).transformed);
+  }
+
+  @Test
+  public void storeUnchanged() throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("--einherjar--cache--");
+    var cache = TransformCache.open(directory, "0123456789abcdef0123", "");
+    var key = cache.key(new byte[] { 1, 2, 3 }, true);
+
+    cache.store(key, null);
+    assertSame(TransformCache.Entry.UNCHANGED_ENTRY, awaitEntry(cache, key));
+  }
+
+  @Test
+  public void keyDependsOnConfig() throws IOException {
+    var directory = Files.createTempDirectory("--einherjar--cache--");
+    var cache1 = TransformCache.open(directory, "0123456789abcdef0123", "");
+    var cache2 = TransformCache.open(directory, "0123456789abcdef0123", "foo=bar,");
+    var cache3 = TransformCache.open(directory, "fedcba98765432100123", "");
+    var code = new byte[] { 1, 2, 3 };
+    assertAllDifferent(cache1.key(code, true), cache2.key(code, true), cache3.key(code, true));
+  }
+
+  @Test
+  public void keyDependsOnClassLoader() throws IOException {
+    var directory = Files.createTempDirectory("--einherjar--cache--");
+    var cache = TransformCache.open(directory, "0123456789abcdef0123", "");
+    var code = new byte[] { 1, 2, 3 };
+    assertNotEquals(cache.key(code, true), cache.key(code, false));
+  }
+
+  private static void assertAllDifferent(String key1, String key2, String key3) {
+    assertNotEquals(key1, key2);
+    assertNotEquals(key1, key3);
+    assertNotEquals(key2, key3);
+  }
+
+  @Test
+  public void bootstrapJarFileIsReused() throws IOException {
+    var directory = Files.createTempDirectory("--einherjar--cache--");
+    var cache = TransformCache.open(directory, "0123456789abcdef0123", "");
+    var counter = new Object() { int counter; };
+    TransformCache.JarWriter jarWriter = output -> {
+      counter.counter++;
+      try(var jarOutput = new JarOutputStream(output)) {
+        jarOutput.putNextEntry(new JarEntry("foo"));
+        jarOutput.closeEntry();
+      }
+    };
+    var jarFile1 = cache.bootstrapJarFile(jarWriter);
+    var jarFile2 = cache.bootstrapJarFile(jarWriter);
+    assertEquals(jarFile1, jarFile2);
+    assertTrue(Files.exists(jarFile1));
+    assertEquals(1, counter.counter);
+  }
+}
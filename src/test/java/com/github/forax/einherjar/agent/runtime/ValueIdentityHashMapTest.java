@@ -0,0 +1,38 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ValueIdentityHashMapTest {
+  @Test
+  public void entrySetValue() {
+    var map = new ValueIdentityHashMap<String, Integer>();
+    map.put("foo", 1);
+    var entry = map.entrySet().iterator().next();
+    assertAll(
+        () -> assertEquals(1, entry.setValue(2)),
+        () -> assertEquals(2, entry.getValue()),
+        () -> assertEquals(Map.of("foo", 2), map)
+    );
+  }
+
+  @Test
+  public void removedEntrySetValue() {
+    var map = new ValueIdentityHashMap<String, Integer>();
+    map.put("foo", 1);
+    map.put("bar", 2);
+    var entry = map.entrySet().iterator().next();
+    map.remove(entry.getKey());
+    assertThrows(IllegalStateException.class, () -> entry.setValue(3));
+    assertAll(
+        () -> assertFalse(map.containsKey(entry.getKey())),
+        () -> assertEquals(1, map.size())
+    );
+  }
+}
@@ -0,0 +1,66 @@
+package com.github.forax.einherjar.agent.runtime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ViolationReporterTest {
+  @Test
+  public void everyViolationIsCounted(@TempDir Path directory) throws IOException, InterruptedException {
+    var file = directory.resolve("report.txt");
+    var reporter = ViolationReporter.start(file);
+    var threads = new ArrayList<Thread>();
+    for (var i = 0; i < 8; i++) {
+      var site = "site" + (i % 2);
+      var thread = new Thread(() -> {
+        for (var j = 0; j < 1_000; j++) {
+          reporter.report(AgentMetrics.MONITORENTER, site, Integer.class);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+    reporter.close();
+
+    var lines = Files.readAllLines(file);
+    assertAll(
+        () -> assertTrue(lines.contains("monitorenter site0 java.lang.Integer"), lines.toString()),
+        () -> assertTrue(lines.contains("monitorenter site1 java.lang.Integer"), lines.toString()),
+        () -> assertTrue(lines.contains("# summary: 2 distinct violation(s), 8000 occurrence(s)"), lines.toString()),
+        () -> assertEquals(2, lines.stream().filter(line -> !line.startsWith("#")).count(), lines.toString())
+    );
+  }
+
+  @Test
+  public void fullBufferDropsAndCounts(@TempDir Path directory) throws IOException, InterruptedException {
+    var file = directory.resolve("report.txt");
+    var reporter = ViolationReporter.start(file);
+    var thread = new Thread(() -> {
+      for (var j = 0; j < 100_000; j++) {
+        reporter.report(AgentMetrics.ACMP, "site", Integer.class);
+      }
+    });
+    thread.start();
+    thread.join();
+    reporter.close();
+
+    var lines = Files.readAllLines(file);
+    var summary = lines.stream().filter(line -> line.startsWith("# summary: 1 distinct violation(s), ")).findFirst().orElseThrow();
+    var occurrences = Long.parseLong(summary.split(", ")[1].split(" ")[0]);
+    var dropped = lines.stream().filter(line -> line.endsWith("violation(s) dropped, a thread buffer was full"))
+        .mapToLong(line -> Long.parseLong(line.split(" ")[1]))
+        .sum();
+    assertEquals(100_000, occurrences + dropped, lines.toString());
+  }
+}
@@ -0,0 +1,182 @@
+package com.github.forax.einherjar.cli;
+
+import com.github.forax.einherjar.SyntheticJar;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DaemonTest {
+  record Result(int exitCode, String out, String err) { }
+
+  private static Result send(Path daemonFile, Path workingDirectory, String... args) throws IOException {
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    var exitCode = Client.send(daemonFile, Client.COMMAND_RUN, args, workingDirectory, out, err);
+    return new Result(exitCode, out.toString(UTF_8), err.toString(UTF_8));
+  }
+
+  private static Result runInProcess(Path workingDirectory, String... args) throws IOException {
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    var exitCode = Main.run(args, workingDirectory, InputStream.nullInputStream(), new PrintStream(out, true, UTF_8), new PrintStream(err, true, UTF_8));
+    return new Result(exitCode, out.toString(UTF_8), err.toString(UTF_8));
+  }
+
+  @Test
+  public void find(@TempDir Path directory) throws IOException {
+    SyntheticJar.generate(directory.resolve("synthetic.jar"), 100, 42);
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      // the path of the jar is relative to the working directory of the client
+      var result = send(daemonFile, directory, "find", "synthetic.jar");
+      assertAll(
+          () -> assertEquals(runInProcess(directory, "find", "synthetic.jar"), result),
+          () -> assertEquals(0, result.exitCode()),
+          () -> assertTrue(result.out().contains("found potential value class synthetic.")),
+          () -> assertEquals(daemon.port(), Client.DaemonAddress.read(daemonFile).port)
+      );
+    }
+  }
+
+  @Test
+  public void enhance(@TempDir Path directory) throws IOException {
+    SyntheticJar.generate(directory.resolve("synthetic.jar"), 100, 42);
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      // no class is annotated, so there is no issue and the enhanced jar is written
+      var result = send(daemonFile, directory, "enhance", "--annotation", "foo.Bar", "--output", "enhanced.jar", "synthetic.jar");
+      assertAll(
+          () -> assertEquals(0, result.exitCode()),
+          () -> assertTrue(Files.exists(directory.resolve("enhanced.jar")))
+      );
+    }
+  }
+
+  @Test
+  public void concurrentRequests(@TempDir Path directory) throws Exception {
+    SyntheticJar.generate(directory.resolve("synthetic.jar"), 200, 7);
+    var daemonFile = directory.resolve("daemon");
+    var expected = runInProcess(directory, "find", "synthetic.jar");
+    try(var daemon = Daemon.start(0, daemonFile);
+        var executor = Executors.newFixedThreadPool(8)) {
+      var tasks = new ArrayList<Callable<Result>>();
+      for (var i = 0; i < 16; i++) {
+        tasks.add(() -> send(daemonFile, directory, "find", "synthetic.jar"));
+      }
+      for (var future : executor.invokeAll(tasks)) {
+        assertEquals(expected, future.get());
+      }
+    }
+  }
+
+  @Test
+  public void badCommandLine(@TempDir Path directory) throws IOException {
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      var result = send(daemonFile, directory, "find");
+      assertAll(
+          () -> assertEquals(1, result.exitCode()),
+          () -> assertTrue(result.err().startsWith("command line: no jar file defined"), result.err())
+      );
+    }
+  }
+
+  @Test
+  public void missingJarFile(@TempDir Path directory) throws IOException {
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      var result = send(daemonFile, directory, "find", "missing.jar");
+      assertAll(
+          () -> assertEquals(1, result.exitCode()),
+          () -> assertTrue(result.err().contains("missing.jar"), result.err())
+      );
+    }
+  }
+
+  @Test
+  public void badToken(@TempDir Path directory) throws IOException {
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      var fakeDaemonFile = directory.resolve("fake-daemon");
+      new Client.DaemonAddress(daemon.port(), "bad-token").write(fakeDaemonFile);
+      assertThrows(IOException.class, () -> send(fakeDaemonFile, directory, "find", "foo.jar"));
+    }
+  }
+
+  @Test
+  public void longArgument(@TempDir Path directory) throws IOException {
+    SyntheticJar.generate(directory.resolve("synthetic.jar"), 100, 42);
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      // more than the 65535 bytes of writeUTF()
+      var classes = "com.acme.Foo,".repeat(10_000) + "com.acme.\u00e9t\u00e9";
+      var result = send(daemonFile, directory, "find", "--classes", classes, "synthetic.jar");
+      assertAll(
+          () -> assertEquals(runInProcess(directory, "find", "--classes", classes, "synthetic.jar"), result),
+          () -> assertEquals(0, result.exitCode())
+      );
+    }
+  }
+
+  @Test
+  public void silentClients(@TempDir Path directory) throws IOException {
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile, 200)) {
+      // more silent clients than worker threads
+      var sockets = new ArrayList<Socket>();
+      try {
+        for (var i = 0; i < Runtime.getRuntime().availableProcessors() + 1; i++) {
+          sockets.add(new Socket(InetAddress.getLoopbackAddress(), daemon.port()));
+        }
+        var result = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> send(daemonFile, directory, "find", "missing.jar"));
+        assertAll(
+            () -> assertEquals(1, result.exitCode()),
+            () -> assertEquals(-1, assertTimeoutPreemptively(Duration.ofSeconds(10), () -> sockets.get(0).getInputStream().read()))
+        );
+      } finally {
+        for (var socket : sockets) {
+          socket.close();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void noDaemon(@TempDir Path directory) {
+    var exception = assertThrows(IOException.class, () -> send(directory.resolve("daemon"), directory, "find", "foo.jar"));
+    assertTrue(exception.getMessage().startsWith("no daemon is running"), exception.getMessage());
+  }
+
+  @Test
+  public void stop(@TempDir Path directory) throws IOException, InterruptedException {
+    var daemonFile = directory.resolve("daemon");
+    try(var daemon = Daemon.start(0, daemonFile)) {
+      var exitCode = Client.send(daemonFile, Client.COMMAND_STOP, new String[0], directory, new ByteArrayOutputStream(), new ByteArrayOutputStream());
+      daemon.awaitTermination();
+      assertAll(
+          () -> assertEquals(0, exitCode),
+          () -> assertFalse(Files.exists(daemonFile))
+      );
+    }
+  }
+}
@@ -1,12 +1,28 @@
 package com.github.forax.einherjar.cli;
 
+import com.github.forax.einherjar.core.EnhanceLayout;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class MainTest {
 
@@ -95,11 +111,42 @@ public class MainTest {
     var cmdLine = Main.CmdLine.parse("enhance --version 23 foo.jar".split(" "));
     assertAll(
         () -> assertEquals(Main.Action.ENHANCE, cmdLine.action),
-        () -> assertEquals(Map.of(Main.Option.Kind.VERSION, 23), cmdLine.optionMap),
+        () -> assertEquals(Map.of(Main.Option.Kind.VERSION_SET, Set.of(23)), cmdLine.optionMap),
         () -> assertEquals(Path.of("foo.jar"), cmdLine.jarFile)
     );
   }
 
+  @Test
+  public void actionEnhanceWithSeveralVersions() {
+    var cmdLine = Main.CmdLine.parse("enhance --version 24,23 foo.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.ENHANCE, cmdLine.action),
+        () -> assertEquals(Map.of(Main.Option.Kind.VERSION_SET, Set.of(23, 24)), cmdLine.optionMap),
+        () -> assertEquals(Path.of("foo.jar"), cmdLine.jarFile)
+    );
+  }
+
+  @Test
+  public void actionInstrument() {
+    var cmdLine = Main.CmdLine.parse("instrument foo.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.INSTRUMENT, cmdLine.action),
+        () -> assertEquals(Map.of(), cmdLine.optionMap),
+        () -> assertEquals(List.of(Path.of("foo.jar")), cmdLine.jarFiles)
+    );
+  }
+
+  @Test
+  public void actionInstrumentSeveralJarFiles() {
+    var cmdLine = Main.CmdLine.parse("instrument --output out foo.jar bar.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.INSTRUMENT, cmdLine.action),
+        () -> assertEquals(Map.of(Main.Option.Kind.OUTPUT, Path.of("out")), cmdLine.optionMap),
+        () -> assertEquals(Path.of("foo.jar"), cmdLine.jarFile),
+        () -> assertEquals(List.of(Path.of("foo.jar"), Path.of("bar.jar")), cmdLine.jarFiles)
+    );
+  }
+
 
   @Test
   public void badNoAction() {
@@ -130,4 +177,262 @@ public class MainTest {
     var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("check --annotation".split(" ")));
     assertEquals("no value defined for option --annotation", exception.getMessage());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void badSeveralJarFiles() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("check foo.jar bar.jar".split(" ")));
+    assertEquals("only one jar file can be defined", exception.getMessage());
+  }
+
+  @Test
+  public void badOptionAfterJarFile() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("instrument foo.jar --output out".split(" ")));
+    assertEquals("options should be defined before the jar files --output", exception.getMessage());
+  }
+
+  @Test
+  public void actionEnhanceWithStats() {
+    var cmdLine = Main.CmdLine.parse("enhance --stats --stats-json stats.json foo.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.ENHANCE, cmdLine.action),
+        () -> assertEquals(Map.of(Main.Option.Kind.STATS, true, Main.Option.Kind.STATS_JSON, Path.of("stats.json")), cmdLine.optionMap),
+        () -> assertEquals(Path.of("foo.jar"), cmdLine.jarFile)
+    );
+  }
+
+  @Test
+  public void badStatsWithInstrument() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("instrument --stats foo.jar".split(" ")));
+    assertEquals("statistics are not supported by the action instrument", exception.getMessage());
+  }
+
+  @Test
+  public void actionEnhanceStandardStreams() {
+    var cmdLine = Main.CmdLine.parse("enhance --output - -".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.ENHANCE, cmdLine.action),
+        () -> assertEquals(Map.of(Main.Option.Kind.OUTPUT, Main.STANDARD_STREAM), cmdLine.optionMap),
+        () -> assertEquals(Main.STANDARD_STREAM, cmdLine.jarFile)
+    );
+  }
+
+  @Test
+  public void badStandardStreamWithFind() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("find -".split(" ")));
+    assertEquals("- is not supported by the action find", exception.getMessage());
+  }
+
+  @Test
+  public void runEnhancePipe(@TempDir Path directory) throws IOException {
+    var jar = directory.resolve("test.jar");
+    try(var output = new JarOutputStream(Files.newOutputStream(jar))) {
+      output.putNextEntry(new JarEntry("foo.txt"));
+      output.write("foo".getBytes(UTF_8));
+      output.closeEntry();
+    }
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    int exitCode;
+    try(var in = Files.newInputStream(jar)) {
+      exitCode = Main.run(new String[] { "enhance", "-" }, directory, in, new PrintStream(out), new PrintStream(err));
+    }
+    try(var jarInput = new JarInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      var entry = jarInput.getNextJarEntry();
+      assertAll(
+          () -> assertEquals(0, exitCode, err.toString(UTF_8)),
+          () -> assertEquals("true", jarInput.getManifest().getMainAttributes().getValue("Multi-Release")),
+          () -> assertEquals("foo.txt", entry.getName()),
+          () -> assertEquals("foo", new String(jarInput.readAllBytes(), UTF_8))
+      );
+    }
+  }
+
+  static class MutableClass {
+    int value;
+  }
+
+  @Test
+  public void runEnhanceStandardInputToFileWithIssue(@TempDir Path directory) throws IOException {
+    var jar = directory.resolve("test.jar");
+    var entryName = MutableClass.class.getName().replace('.', '/') + ".class";
+    try(var output = new JarOutputStream(Files.newOutputStream(jar));
+        var classInput = MutableClass.class.getResourceAsStream("/" + entryName)) {
+      output.putNextEntry(new JarEntry(entryName));
+      output.write(classInput.readAllBytes());
+      output.closeEntry();
+    }
+    var enhancedJar = directory.resolve("test-enhanced.jar");
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    int exitCode;
+    try(var in = Files.newInputStream(jar)) {
+      exitCode = Main.run(new String[] { "enhance", "--classes", MutableClass.class.getName(), "--output", enhancedJar.toString(), "-" },
+          directory, in, new PrintStream(out), new PrintStream(err));
+    }
+    try(var files = Files.list(directory)) {
+      var fileNames = files.map(path -> path.getFileName().toString()).toList();
+      assertAll(
+          () -> assertEquals(1, exitCode),
+          () -> assertTrue(err.toString(UTF_8).contains("NON_FINAL_FIELD"), err.toString(UTF_8)),
+          () -> assertEquals(List.of("test.jar"), fileNames)
+      );
+    }
+  }
+
+  @Test
+  public void runEnhanceStandardInputToFile(@TempDir Path directory) throws IOException {
+    var jar = directory.resolve("test.jar");
+    try(var output = new JarOutputStream(Files.newOutputStream(jar))) {
+      output.putNextEntry(new JarEntry("foo.txt"));
+      output.write("foo".getBytes(UTF_8));
+      output.closeEntry();
+    }
+    var enhancedJar = directory.resolve("test-enhanced.jar");
+    int exitCode;
+    try(var in = Files.newInputStream(jar)) {
+      exitCode = Main.run(new String[] { "enhance", "--output", enhancedJar.toString(), "-" },
+          directory, in, new PrintStream(new ByteArrayOutputStream()), new PrintStream(new ByteArrayOutputStream()));
+    }
+    try(var jarInput = new JarInputStream(Files.newInputStream(enhancedJar));
+        var files = Files.list(directory)) {
+      var fileCount = files.count();
+      assertAll(
+          () -> assertEquals(0, exitCode),
+          () -> assertEquals("foo.txt", jarInput.getNextJarEntry().getName()),
+          () -> assertEquals(2, fileCount)
+      );
+    }
+  }
+
+  @Test
+  public void actionEnhanceWithLayout() {
+    var cmdLine = Main.CmdLine.parse("enhance --class-load-list app.log --store-hot-classes --cds-classlist app.classlist foo.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Main.Action.ENHANCE, cmdLine.action),
+        () -> assertEquals(Map.of(
+            Main.Option.Kind.CLASS_LOAD_LIST, Path.of("app.log"),
+            Main.Option.Kind.STORE_HOT_CLASSES, true,
+            Main.Option.Kind.CDS_CLASSLIST, Path.of("app.classlist")), cmdLine.optionMap)
+    );
+  }
+
+  @Test
+  public void badLayoutWithCheck() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("check --class-load-list app.log foo.jar".split(" ")));
+    assertEquals("the layout options are only supported by the action enhance on files", exception.getMessage());
+  }
+
+  @Test
+  public void actionEnhanceWithStrippedAttributesAndCompression() {
+    var cmdLine = Main.CmdLine.parse("enhance --strip-attributes LocalVariableTable,SourceDebugExtension --compression-level META-INF/versions/*=9,6 foo.jar".split(" "));
+    assertAll(
+        () -> assertEquals(Set.of(EnhanceLayout.StrippedAttribute.LOCAL_VARIABLE_TABLE, EnhanceLayout.StrippedAttribute.SOURCE_DEBUG_EXTENSION),
+            cmdLine.optionMap.get(Main.Option.Kind.STRIPPED_ATTRIBUTE_SET)),
+        () -> assertEquals(9, ((EnhanceLayout.CompressionPolicy) cmdLine.optionMap.get(Main.Option.Kind.COMPRESSION_POLICY)).level("META-INF/versions/23/Foo.class")),
+        () -> assertEquals(6, ((EnhanceLayout.CompressionPolicy) cmdLine.optionMap.get(Main.Option.Kind.COMPRESSION_POLICY)).level("Foo.class"))
+    );
+  }
+
+  @Test
+  public void badStrippedAttribute() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("enhance --strip-attributes Code foo.jar".split(" ")));
+    assertEquals("unknown attribute Code", exception.getMessage());
+  }
+
+  @Test
+  public void actionCheckWithClasspath() {
+    var cmdLine = Main.CmdLine.parse(new String[] { "check", "--classpath", "lib/a.jar" + File.pathSeparator + "classes", "foo.jar" });
+    assertEquals(List.of(Path.of("lib/a.jar"), Path.of("classes")), cmdLine.optionMap.get(Main.Option.Kind.CLASSPATH));
+  }
+
+  @Test
+  public void actionEnhanceWithEmptyClasspath() {
+    var cmdLine = Main.CmdLine.parse(new String[] { "enhance", "--classpath", "", "foo.jar" });
+    assertEquals(List.of(), cmdLine.optionMap.get(Main.Option.Kind.CLASSPATH));
+  }
+
+  @Test
+  public void badClasspathWithFind() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("find --classpath lib.jar foo.jar".split(" ")));
+    assertEquals("--classpath is only supported by the actions check and enhance on files", exception.getMessage());
+  }
+
+  @Test
+  public void actionFindWithIdentityUsages() {
+    var cmdLine = Main.CmdLine.parse("find --identity-usages foo.jar".split(" "));
+    assertEquals(true, cmdLine.optionMap.get(Main.Option.Kind.IDENTITY_USAGES));
+  }
+
+  @Test
+  public void badIdentityUsagesWithStandardStream() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("enhance --identity-usages -".split(" ")));
+    assertEquals("--identity-usages is only supported by the actions find, check and enhance on jar files", exception.getMessage());
+  }
+
+  @Test
+  public void actionFindRuntimeImage() {
+    var cmdLine = Main.CmdLine.parse("find --modules java.base,java.sql jrt:/".split(" "));
+    assertAll(
+        () -> assertEquals("jrt", cmdLine.jarFile.getFileSystem().provider().getScheme()),
+        () -> assertEquals(Set.of("java.base", "java.sql"), cmdLine.optionMap.get(Main.Option.Kind.MODULE_SET))
+    );
+  }
+
+  @Test
+  public void badRuntimeImageWithCheck() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("check jrt:/".split(" ")));
+    assertEquals("jrt:/ and the jmod files are only supported by the action find", exception.getMessage());
+  }
+
+  @Test
+  public void actionCheckDirectoryIsNotModules(@TempDir Path directory) throws IOException {
+    Files.createDirectories(directory.resolve("com/example"));
+    var cmdLine = Main.CmdLine.parse(new String[] { "check", directory.toString() });
+    assertEquals(directory, cmdLine.jarFile);
+  }
+
+  @Test
+  public void actionFindRuntimeImageDirectory() {
+    var javaHome = Path.of(System.getProperty("java.home"));
+    assumeTrue(Files.isRegularFile(javaHome.resolve("lib/modules")));
+    var cmdLine = Main.CmdLine.parse(new String[] { "find", javaHome.toString() });
+    assertEquals("jrt", cmdLine.jarFile.getFileSystem().provider().getScheme());
+  }
+
+  @Test
+  public void badRuntimeImageDirectoryWithCheck() {
+    var javaHome = Path.of(System.getProperty("java.home"));
+    assumeTrue(Files.isRegularFile(javaHome.resolve("lib/modules")));
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse(new String[] { "check", javaHome.toString() }));
+    assertEquals("jrt:/ and the jmod files are only supported by the action find", exception.getMessage());
+  }
+
+  @Test
+  public void badJmodDirectoryWithCheck() {
+    var jmods = Path.of(System.getProperty("java.home"), "jmods");
+    assumeTrue(Files.isDirectory(jmods));
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse(new String[] { "check", jmods.toString() }));
+    assertEquals("jrt:/ and the jmod files are only supported by the action find", exception.getMessage());
+  }
+
+  @Test
+  public void badModulesWithJar() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> Main.CmdLine.parse("find --modules java.base foo.jar".split(" ")));
+    assertEquals("--modules is only supported on jrt:/ and the jmod files", exception.getMessage());
+  }
+
+  @Test
+  public void runFindJmod() throws IOException {
+    var jmod = Path.of(System.getProperty("java.home"), "jmods", "java.sql.jmod");
+    assumeTrue(Files.exists(jmod));
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    var exitCode = Main.run(new String[] { "find", jmod.toString() }, Path.of(""), InputStream.nullInputStream(), new PrintStream(out, true, UTF_8), new PrintStream(err, true, UTF_8));
+    assertAll(
+        () -> assertEquals(0, exitCode),
+        () -> assertEquals("", err.toString(UTF_8)),
+        () -> assertTrue(out.toString(UTF_8).lines().allMatch(line -> line.startsWith("found potential value class java.sql.") || line.startsWith("found potential value class javax.sql."))),
+        () -> assertFalse(out.toString(UTF_8).contains("found potential value class java.sql.DriverPropertyInfo\n"))
+    );
+  }
+}
@@ -0,0 +1,85 @@
+package com.github.forax.einherjar.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ClassHierarchyTest {
+  static abstract class Base {
+    private final int id;
+
+    Base(int id) {
+      this.id = id;
+    }
+  }
+  static abstract class Middle extends Base {
+    Middle() {
+      super(42);
+    }
+  }
+  static final class Leaf extends Middle {}
+
+  static abstract class Locked {
+    synchronized void lock() {}
+  }
+  static abstract class Mutable {
+    private int value;
+    private static int counter;
+  }
+  static class Concrete {}
+  interface Marker extends Serializable {}
+
+  private static String internalName(Class<?> clazz) {
+    return clazz.getName().replace('.', '/');
+  }
+
+  private static Path copyClasses(Path directory, Class<?>... classes) throws IOException {
+    for (var clazz : classes) {
+      var pathname = internalName(clazz) + ".class";
+      var file = directory.resolve(pathname);
+      Files.createDirectories(file.getParent());
+      try(var input = clazz.getResourceAsStream("/" + pathname)) {
+        Files.write(file, input.readAllBytes());
+      }
+    }
+    return directory;
+  }
+
+  @Test
+  public void abstractValueClassIssue(@TempDir Path directory) throws IOException {
+    var classes = copyClasses(directory, Base.class, Middle.class, Leaf.class, Locked.class, Mutable.class, Concrete.class, Marker.class);
+    var hierarchy = ClassHierarchy.index(List.of(classes));
+    assertAll(
+        () -> assertEquals(7, hierarchy.size()),
+        () -> assertNull(hierarchy.abstractValueClassIssue("java/lang/Record")),
+        () -> assertNull(hierarchy.abstractValueClassIssue(internalName(Middle.class))),
+        () -> assertEquals("super class " + internalName(Leaf.class) + " is not abstract", hierarchy.abstractValueClassIssue(internalName(Leaf.class))),
+        () -> assertEquals("super class " + internalName(Concrete.class) + " is not abstract", hierarchy.abstractValueClassIssue(internalName(Concrete.class))),
+        () -> assertEquals("super class " + internalName(Marker.class) + " is not abstract", hierarchy.abstractValueClassIssue(internalName(Marker.class))),
+        () -> assertEquals("super class " + internalName(Locked.class) + " has a synchronized method", hierarchy.abstractValueClassIssue(internalName(Locked.class))),
+        () -> assertEquals("super class " + internalName(Mutable.class) + " has a non final field", hierarchy.abstractValueClassIssue(internalName(Mutable.class))),
+        () -> assertEquals("super class java/io/InputStream is unknown", hierarchy.abstractValueClassIssue("java/io/InputStream"))
+    );
+  }
+
+  @Test
+  public void rootSuperClasses(@TempDir Path directory) throws IOException {
+    var root = copyClasses(Files.createDirectory(directory.resolve("root")), Leaf.class, Middle.class);
+    var classpath = copyClasses(Files.createDirectory(directory.resolve("classpath")), Base.class, Middle.class);
+    var hierarchy = ClassHierarchy.index(List.of(root, classpath));
+    assertAll(
+        () -> assertEquals(3, hierarchy.size()),
+        () -> assertEquals(List.of(internalName(Middle.class)), hierarchy.rootSuperClasses(internalName(Leaf.class))),
+        () -> assertEquals("super class " + internalName(Base.class) + " is not in the jar and is not a value class", hierarchy.abstractValueClassIssue(internalName(Middle.class)))
+    );
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.forax.einherjar.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EnhanceLayoutTest {
+  @Test
+  public void parseClassLoadLog() {
+    var lines = List.of(
+        "[0.010s][info][class,load] java.lang.Object source: shared objects file",
+        "[0.011s][info][class,load] com.acme.Foo source: file:/app.jar",
+        "[0.012s][info][class,load] java.lang.invoke.LambdaForm$MH/0x0000000800c01000 source: __JVM_LookupDefineClass__",
+        "[0.013s][info][gc] Using G1",
+        "[0.014s][info][class,load] com.acme.Foo$Bar source: file:/app.jar");
+    assertEquals(List.of("java/lang/Object", "com/acme/Foo", "com/acme/Foo$Bar"), EnhanceLayout.parseClassLoadList(lines));
+  }
+
+  @Test
+  public void parseCDSClassList() {
+    var lines = List.of(
+        "# NOTE: Do not modify this file.",
+        "java/lang/Object id: 0",
+        "com/acme/Foo id: 1 super: 0 source: /app.jar",
+        "@lambda-proxy com/acme/Foo run ()Ljava/lang/Runnable;",
+        "",
+        "com/acme/Baz");
+    assertEquals(List.of("java/lang/Object", "com/acme/Foo", "com/acme/Baz"), EnhanceLayout.parseClassLoadList(lines));
+  }
+
+  @Test
+  public void hotClassNamesWithoutDuplicates() {
+    var layout = new EnhanceLayout(List.of("com/acme/Foo", "com/acme/Bar", "com/acme/Foo"), false, null);
+    assertEquals(List.of("com/acme/Foo", "com/acme/Bar"), layout.hotClassNames());
+  }
+
+  @Test
+  public void compressionPolicy() {
+    var policy = EnhanceLayout.CompressionPolicy.parse("META-INF/versions/*=9, *.png=0, 6");
+    assertAll(
+        () -> assertEquals(9, policy.level("META-INF/versions/23/com/acme/Foo.class")),
+        () -> assertEquals(0, policy.level("images/logo.png")),
+        () -> assertEquals(6, policy.level("com/acme/Foo.class"))
+    );
+  }
+
+  @Test
+  public void compressionPolicyDefaultLevel() {
+    var policy = EnhanceLayout.CompressionPolicy.parse("*.class=1");
+    assertEquals(Deflater.DEFAULT_COMPRESSION, policy.level("foo.txt"));
+  }
+
+  @Test
+  public void compressionPolicyInvalidLevel() {
+    assertThrows(IllegalArgumentException.class, () -> EnhanceLayout.CompressionPolicy.parse("*.class=10"));
+  }
+
+  @Test
+  public void strippedAttributeOf() {
+    assertAll(
+        () -> assertEquals(EnhanceLayout.StrippedAttribute.LINE_NUMBER_TABLE, EnhanceLayout.StrippedAttribute.of("LineNumberTable")),
+        () -> assertThrows(IllegalArgumentException.class, () -> EnhanceLayout.StrippedAttribute.of("Code"))
+    );
+  }
+}
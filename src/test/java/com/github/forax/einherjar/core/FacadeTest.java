@@ -1,27 +1,50 @@
 package com.github.forax.einherjar.core;
 
+import com.github.forax.einherjar.SyntheticJar;
 import com.github.forax.einherjar.api.ValueType;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.objectweb.asm.Opcodes.ACC_SUPER;
 import static org.objectweb.asm.Opcodes.ASM9;
 import static org.objectweb.asm.Opcodes.V23;
@@ -82,6 +105,45 @@ public class FacadeTest {
     }
   }
 
+  // --- abstract super classes
+
+  static abstract class AbstractShape {
+    private final String name;
+
+    AbstractShape(String name) {
+      this.name = name;
+    }
+  }
+  @ValueType
+  static class CircleAnnotated extends AbstractShape {
+    private final int radius;
+
+    CircleAnnotated(int radius) {
+      super("circle");
+      this.radius = radius;
+    }
+  }
+
+  static abstract class AbstractCounter {
+    private int count;
+  }
+  @ValueType
+  static class CounterAnnotated extends AbstractCounter {
+  }
+
+  // --- identity usages
+
+  static class IdentityUser {
+    static boolean same(GoodClass point1, GoodClass point2) {
+      return point1 == point2;
+    }
+    static void lock(GoodClassAnnotated point) {
+      synchronized (point) {
+        System.out.println(point);
+      }
+    }
+  }
+
   private record Resource(String pathname, byte[] content) {}
 
   private static Path createTestJar(Resource... resources) throws IOException {
@@ -245,4 +307,629 @@ public class FacadeTest {
       Files.delete(jarFile);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testEnhanceStats() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var enhancedJarFile = jarFile.resolveSibling("test-enhanced.jar");
+    var stats = new FacadeStats();
+    try {
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      }, stats);
+
+      assertAll(
+          () -> assertEquals(2, stats.classCount()),
+          () -> assertTrue(stats.bytesRead() > 0 && stats.bytesRead() < stats.bytesWritten()),
+          () -> assertTrue(stats.phaseNanos(FacadeListener.Phase.CHECK) > 0),
+          () -> assertTrue(stats.phaseNanos(FacadeListener.Phase.REWRITE) > 0),
+          () -> assertTrue(stats.elapsedNanos() >= stats.phaseNanos(FacadeListener.Phase.READ)),
+          () -> assertEquals(List.of(GoodClassAnnotated.class.getName().replace('.', '/'), GoodClass.class.getName().replace('.', '/')),
+              stats.slowestClasses().stream().map(Map.Entry::getKey).sorted(Comparator.comparing(name -> !name.endsWith("Annotated"))).toList()),
+          () -> assertTrue(stats.toJSON().contains("\"classCount\": 2"), stats.toJSON()),
+          () -> assertTrue(stats.toString().startsWith("enhance " + jarFile + ": 2 classes"), stats.toString())
+      );
+    } finally {
+      Files.deleteIfExists(enhancedJarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceCache() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var enhancedJarFile = jarFile.resolveSibling("test-enhanced.jar");
+    var cacheFile = jarFile.resolveSibling("enhance.cache");
+    ValueTypeChecker.IssueReporter issueReporter = (issue, className, message) -> {
+      throw new AssertionError(issue + " " + className + " " + message);
+    };
+    var versionedName = "META-INF/versions/23/" + fromClass(GoodClassAnnotated.class).pathname;
+    try {
+      var cache = EnhanceCache.load(cacheFile);
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, issueReporter, FacadeListener.NONE, cache);
+      byte[] valueClass;
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        valueClass = resultJarFile.getInputStream(resultJarFile.getJarEntry(versionedName)).readAllBytes();
+      }
+      assertAll(
+          () -> assertEquals(0, cache.hitCount()),
+          () -> assertEquals(2, cache.missCount())
+      );
+      cache.save(cacheFile);
+
+      // the classes are not analyzed again
+      var stats = new FacadeStats();
+      var cache2 = EnhanceCache.load(cacheFile);
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, issueReporter, stats, cache2);
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        var valueClass2 = resultJarFile.getInputStream(resultJarFile.getJarEntry(versionedName)).readAllBytes();
+        assertAll(
+            () -> assertEquals(2, cache2.hitCount()),
+            () -> assertEquals(0, cache2.missCount()),
+            () -> assertEquals(0, stats.phaseNanos(FacadeListener.Phase.MATCH)),
+            () -> assertArrayEquals(valueClass, valueClass2)
+        );
+      }
+
+      // another version invalidates the cache
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 24, issueReporter, FacadeListener.NONE, cache2);
+      assertAll(
+          () -> assertEquals(0, cache2.hitCount()),
+          () -> assertEquals(2, cache2.missCount())
+      );
+    } finally {
+      Files.deleteIfExists(cacheFile);
+      Files.deleteIfExists(enhancedJarFile);
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceCacheOtherImplementation(@TempDir Path directory) throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    var cacheFile = directory.resolve("enhance.cache");
+    ValueTypeChecker.IssueReporter issueReporter = (issue, className, message) -> {
+      throw new AssertionError(issue + " " + className + " " + message);
+    };
+    try {
+      var cache = EnhanceCache.load(cacheFile);
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, issueReporter, FacadeListener.NONE, cache);
+      cache.save(cacheFile);
+
+      // the cache saved by another implementation of einherjar is invalidated
+      var implementationVersion = EnhanceCache.implementationVersion();
+      var content = new String(Files.readAllBytes(cacheFile), StandardCharsets.ISO_8859_1);
+      assertTrue(content.contains(implementationVersion));
+      Files.write(cacheFile, content.replace(implementationVersion, "0".repeat(implementationVersion.length())).getBytes(StandardCharsets.ISO_8859_1));
+      var cache2 = EnhanceCache.load(cacheFile);
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, issueReporter, FacadeListener.NONE, cache2);
+      assertAll(
+          () -> assertEquals(64, implementationVersion.length()),
+          () -> assertEquals(0, cache2.hitCount()),
+          () -> assertEquals(2, cache2.missCount())
+      );
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceSeveralVersions(@TempDir Path directory) throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    var cacheFile = directory.resolve("enhance.cache");
+    ValueTypeChecker.IssueReporter issueReporter = (issue, className, message) -> {
+      throw new AssertionError(issue + " " + className + " " + message);
+    };
+    var pathname = fromClass(GoodClassAnnotated.class).pathname;
+    try {
+      for (var round = 0; round < 2; round++) {
+        var cache = EnhanceCache.load(cacheFile);
+        Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, Set.of(24, 23), issueReporter, FacadeListener.NONE, cache);
+        cache.save(cacheFile);
+
+        var hitCount = round == 0 ? 0 : 2;
+        try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+          var valueClass23 = resultJarFile.getInputStream(resultJarFile.getJarEntry("META-INF/versions/23/" + pathname)).readAllBytes();
+          var valueClass24 = resultJarFile.getInputStream(resultJarFile.getJarEntry("META-INF/versions/24/" + pathname)).readAllBytes();
+          assertAll(
+              () -> assertEquals(hitCount, cache.hitCount()),
+              // the major version, ASM may not be able to read the classfile
+              () -> assertEquals(23 + 44, valueClass23[7]),
+              () -> assertEquals(24 + 44, valueClass24[7]),
+              () -> assertNull(resultJarFile.getJarEntry("META-INF/versions/23/" + fromClass(GoodClass.class).pathname))
+          );
+        }
+      }
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceNoVersion() {
+    assertThrows(IllegalArgumentException.class, () -> Facade.enhance(ValueType.class.getName(), Set.of(), Path.of("foo.jar"), Path.of("bar.jar"), Set.of(), (issue, className, message) -> {}, FacadeListener.NONE, null));
+  }
+
+  @Test
+  public void testEnhanceLayout(@TempDir Path directory) throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClass.class), new Resource("data.txt", new byte[1_000]), fromClass(GoodClassAnnotated.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    var classListFile = directory.resolve("app.classlist");
+    var goodClassAnnotated = GoodClassAnnotated.class.getName().replace('.', '/');
+    var layout = new EnhanceLayout(List.of("java/lang/Object", goodClassAnnotated), true, classListFile);
+    try {
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, Set.of(23), (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      }, FacadeListener.NONE, null, layout);
+
+      // the order of the local headers
+      var entries = new ArrayList<String>();
+      try(var input = new ZipInputStream(Files.newInputStream(enhancedJarFile))) {
+        ZipEntry entry;
+        while ((entry = input.getNextEntry()) != null) {
+          entries.add(entry.getName() + (entry.getMethod() == ZipEntry.STORED ? " stored" : ""));
+        }
+      }
+      assertAll(
+          () -> assertEquals(List.of(
+              "META-INF/MANIFEST.MF",
+              goodClassAnnotated + ".class stored",
+              "META-INF/versions/23/" + goodClassAnnotated + ".class stored",
+              fromClass(GoodClass.class).pathname,
+              "data.txt"), entries),
+          () -> assertEquals(List.of("java/lang/Object", goodClassAnnotated), Files.readAllLines(classListFile))
+      );
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  private static int debugAttributeCount(byte[] classFile) {
+    var count = new int[1];
+    new ClassReader(classFile).accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        return new MethodVisitor(ASM9) {
+          @Override
+          public void visitLineNumber(int line, Label start) {
+            count[0]++;
+          }
+
+          @Override
+          public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+            count[0]++;
+          }
+        };
+      }
+    }, 0);
+    return count[0];
+  }
+
+  @Test
+  public void testEnhanceStripAttributesAndCompression(@TempDir Path directory) throws IOException {
+    var resource = fromClass(GoodClassAnnotated.class);
+    var jarFile = createTestJar(resource, fromClass(GoodClass.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    var layout = EnhanceLayout.DEFAULT
+        .withStrippedAttributes(EnumSet.of(EnhanceLayout.StrippedAttribute.LOCAL_VARIABLE_TABLE, EnhanceLayout.StrippedAttribute.LINE_NUMBER_TABLE))
+        .withCompressionPolicy(EnhanceLayout.CompressionPolicy.parse("META-INF/versions/*=0,9"));
+    var stats = new FacadeStats();
+    try {
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, Set.of(23), (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      }, stats, null, layout);
+
+      try(var resultJarFile = new ZipFile(enhancedJarFile.toFile())) {
+        var entry = resultJarFile.getEntry(resource.pathname);
+        var versionedEntry = resultJarFile.getEntry("META-INF/versions/23/" + resource.pathname);
+        var content = resultJarFile.getInputStream(entry).readAllBytes();
+        var valueClass = resultJarFile.getInputStream(versionedEntry).readAllBytes();
+        assertAll(
+            () -> assertTrue(debugAttributeCount(content) > 0),
+            () -> assertEquals(0, debugAttributeCount(valueClass)),
+            () -> assertTrue(entry.getCompressedSize() < entry.getSize()),
+            () -> assertTrue(versionedEntry.getCompressedSize() > versionedEntry.getSize()),
+            () -> assertEquals(Files.size(jarFile), stats.jarBytes()),
+            () -> assertEquals(Files.size(enhancedJarFile), stats.enhancedJarBytes()),
+            () -> assertEquals(resource.content.length, stats.classBytes()),
+            () -> assertEquals(valueClass.length, stats.valueClassBytes()),
+            () -> assertTrue(stats.valueClassBytes() < stats.classBytes()),
+            () -> assertTrue(stats.toString().contains("value classes: " + valueClass.length + " bytes (-"), stats.toString())
+        );
+      }
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  private static boolean isValueClass(JarFile jarFile, String entryName) throws IOException {
+    var entry = jarFile.getJarEntry(entryName);
+    if (entry == null) {
+      return false;
+    }
+    try(var input = jarFile.getInputStream(entry)) {
+      return (new ClassReader(input).getAccess() & ACC_SUPER) == 0;
+    }
+  }
+
+  @Test
+  public void testEnhanceAbstractSuperClass(@TempDir Path directory) throws IOException {
+    var jarFile = createTestJar(fromClass(AbstractShape.class), fromClass(CircleAnnotated.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    try {
+      var issues = new ArrayList<String>();
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> issues.add(issue + " " + message));
+      assertEquals(List.of("UNKNOWN_SUPER super class " + AbstractShape.class.getName().replace('.', '/') + " is unknown"), issues);
+
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, List.of(), Set.of(23), (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      }, FacadeListener.NONE, null, null);
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        assertAll(
+            () -> assertTrue(isValueClass(resultJarFile, "META-INF/versions/23/" + fromClass(CircleAnnotated.class).pathname)),
+            () -> assertTrue(isValueClass(resultJarFile, "META-INF/versions/23/" + fromClass(AbstractShape.class).pathname)),
+            () -> assertFalse(isValueClass(resultJarFile, fromClass(AbstractShape.class).pathname))
+        );
+      }
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceAbstractSuperClassInClasspath(@TempDir Path directory) throws IOException {
+    var libraryJarFile = createTestJar(fromClass(AbstractShape.class));
+    var enhancedLibraryJarFile = directory.resolve("library-enhanced.jar");
+    var jarFile = createTestJar(fromClass(CircleAnnotated.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    try {
+      // the super class of the classpath is not a value class
+      var issues = new ArrayList<String>();
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, List.of(libraryJarFile), Set.of(23), (issue, className, message) -> issues.add(message), FacadeListener.NONE, null, null);
+      assertEquals(List.of("super class " + AbstractShape.class.getName().replace('.', '/') + " is not in the jar and is not a value class"), issues);
+
+      Facade.enhance(ValueType.class.getName(), Set.of(AbstractShape.class.getName()), libraryJarFile, enhancedLibraryJarFile, 23, (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      });
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, List.of(enhancedLibraryJarFile), Set.of(23), (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      }, FacadeListener.NONE, null, null);
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        assertAll(
+            () -> assertTrue(isValueClass(resultJarFile, "META-INF/versions/23/" + fromClass(CircleAnnotated.class).pathname)),
+            () -> assertNull(resultJarFile.getJarEntry("META-INF/versions/23/" + fromClass(AbstractShape.class).pathname))
+        );
+      }
+    } finally {
+      Files.delete(libraryJarFile);
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testCheckAbstractSuperClass() throws IOException {
+    var jarFile = createTestJar(
+        fromClass(AbstractShape.class),
+        fromClass(CircleAnnotated.class),
+        fromClass(AbstractCounter.class),
+        fromClass(CounterAnnotated.class));
+    try {
+      var issues = new ArrayList<String>();
+      Facade.check(ValueType.class.getName(), Set.of(), jarFile, List.of(), (issue, className, message) -> issues.add(issue + " " + className + " " + message), FacadeListener.NONE);
+      var counter = AbstractCounter.class.getName().replace('.', '/');
+      assertEquals(List.of("UNKNOWN_SUPER " + CounterAnnotated.class.getName().replace('.', '/') + " super class " + counter + " has a non final field"), issues);
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testFindIdentityUsages() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClass.class), fromClass(IdentityUser.class));
+    try {
+      var found = new ArrayList<String>();
+      Facade.find(jarFile, found::add, FacadeListener.NONE, false);
+      var foundWithoutIdentity = new ArrayList<String>();
+      Facade.find(jarFile, foundWithoutIdentity::add, FacadeListener.NONE, true);
+      var goodClass = GoodClass.class.getName().replace('.', '/');
+      var identityUser = IdentityUser.class.getName().replace('.', '/');
+      assertAll(
+          () -> assertEquals(List.of(goodClass, identityUser), found),
+          () -> assertEquals(List.of(identityUser), foundWithoutIdentity)
+      );
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testCheckAndEnhanceIdentityUsages(@TempDir Path directory) throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(IdentityUser.class));
+    var enhancedJarFile = directory.resolve("test-enhanced.jar");
+    try {
+      var issues = new ArrayList<String>();
+      Facade.check(ValueType.class.getName(), Set.of(), jarFile, null, true, (issue, className, message) -> issues.add(issue + " " + message), FacadeListener.NONE);
+      var identityUser = IdentityUser.class.getName().replace('.', '/');
+      var goodClassAnnotated = GoodClassAnnotated.class.getName().replace('.', '/');
+      assertEquals(1, issues.size());
+      assertTrue(issues.get(0).startsWith("IDENTITY_USAGE synchronized in " + identityUser + ".lock(L" + goodClassAnnotated + ";)V at FacadeTest.java:"), issues.get(0));
+
+      var enhanceIssues = new ArrayList<String>();
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, null, true, Set.of(23), (issue, className, message) -> enhanceIssues.add(issue + " " + message), FacadeListener.NONE, null, null);
+      assertAll(
+          () -> assertEquals(issues, enhanceIssues),
+          () -> assertFalse(Files.exists(enhancedJarFile))
+      );
+
+      // without the scan, the Einherjar is generated
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      });
+      assertTrue(Files.exists(enhancedJarFile));
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testFindModules() throws IOException {
+    var runtimeImage = Path.of(URI.create("jrt:/"));
+    var found = new ArrayList<String>();
+    var stats = new FacadeStats();
+    Facade.findModules(runtimeImage, "java.base"::equals, found::add, stats);
+    assertAll(
+        () -> assertTrue(stats.classCount() > 1_000),
+        () -> assertTrue(found.contains("java/util/Optional")),
+        () -> assertFalse(found.contains("java/util/ArrayList"))
+    );
+
+    // the jmod files of the JDK contain the same classes as its runtime image,
+    // apart the classes generated by jlink
+    var jmods = Path.of(System.getProperty("java.home"), "jmods");
+    assumeTrue(Files.isDirectory(jmods));
+    var foundInJmods = new ArrayList<String>();
+    Facade.findModules(jmods, "java.base"::equals, foundInJmods::add, FacadeListener.NONE);
+    var generated = new ArrayList<>(found);
+    generated.removeAll(foundInJmods);
+    assertAll(
+        () -> assertTrue(found.containsAll(foundInJmods)),
+        () -> assertTrue(generated.stream().allMatch(className -> className.startsWith("jdk/internal/module/SystemModules")), generated::toString)
+    );
+  }
+
+  private static byte[] jarContent(Resource... resources) throws IOException {
+    var output = new ByteArrayOutputStream();
+    try(var jarOutput = new JarOutputStream(output)) {
+      for(var resource: resources) {
+        jarOutput.putNextEntry(new JarEntry(resource.pathname));
+        jarOutput.write(resource.content);
+        jarOutput.closeEntry();
+      }
+    }
+    return output.toByteArray();
+  }
+
+  // Spring Boot requires the nested jars to be stored
+  private static Path createFatJar(Resource... nestedJars) throws IOException {
+    var directory = Files.createTempDirectory("--einherjar--facade--");
+    var fatJar = directory.resolve("fat.jar");
+    try(var jarOutput = new JarOutputStream(Files.newOutputStream(fatJar))) {
+      for(var nestedJar: nestedJars) {
+        var entry = new JarEntry(nestedJar.pathname);
+        var crc = new CRC32();
+        crc.update(nestedJar.content);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(nestedJar.content.length);
+        entry.setCrc(crc.getValue());
+        jarOutput.putNextEntry(entry);
+        jarOutput.write(nestedJar.content);
+        jarOutput.closeEntry();
+      }
+    }
+    return fatJar;
+  }
+
+  @Test
+  public void testEnhanceWithIssueKeepsOutput() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(BadFieldNotFinalAnnotated.class));
+    var enhancedJarFile = jarFile.resolveSibling("test-enhanced.jar");
+    try {
+      Files.writeString(enhancedJarFile, "previous");
+      var issues = new ArrayList<String>();
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> issues.add(className));
+
+      try(var files = Files.list(jarFile.getParent())) {
+        assertAll(
+            () -> assertEquals(List.of("com/github/forax/einherjar/core/FacadeTest$BadFieldNotFinalAnnotated"), issues),
+            () -> assertEquals("previous", Files.readString(enhancedJarFile)),
+            () -> assertEquals(Set.of(jarFile, enhancedJarFile), files.collect(toSet()))
+        );
+      }
+    } finally {
+      Files.deleteIfExists(enhancedJarFile);
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceIssuesInJarOrder(@TempDir Path directory) throws IOException {
+    // several batches of classes analyzed in parallel
+    var jarFile = SyntheticJar.generate(directory.resolve("synthetic.jar"), 3_000, 0, 0, 42);
+    var enhancedJarFile = directory.resolve("synthetic-enhanced.jar");
+    var issueClassNames = new ArrayList<String>();
+    var stats = new FacadeStats();
+    Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> {
+      if (issueClassNames.isEmpty() || !issueClassNames.get(issueClassNames.size() - 1).equals(className)) {
+        issueClassNames.add(className);
+      }
+    }, stats);
+
+    var classIndexes = issueClassNames.stream()
+        .map(className -> Integer.parseInt(className.replaceAll("^.*\\D", "")))
+        .toList();
+    assertAll(
+        () -> assertFalse(issueClassNames.isEmpty()),
+        () -> assertTrue(issueClassNames.stream().noneMatch(className -> SyntheticJar.Kind.of(className).isPotentialValueType())),
+        () -> assertEquals(classIndexes.stream().sorted().toList(), classIndexes),
+        () -> assertEquals(3_000, stats.classCount()),
+        () -> assertFalse(Files.exists(enhancedJarFile))
+    );
+  }
+
+  @Test
+  public void testEnhanceNestedJar() throws IOException {
+    var manifest = new Resource("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nImplementation-Title: value\n\n".getBytes(StandardCharsets.UTF_8));
+    var valueJar = jarContent(manifest, fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var plainJar = jarContent(fromClass(GoodClass.class));
+    var jarFile = createFatJar(new Resource("BOOT-INF/lib/value.jar", valueJar), new Resource("BOOT-INF/lib/plain.jar", plainJar));
+    var enhancedJarFile = jarFile.resolveSibling("fat-enhanced.jar");
+    try {
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      });
+
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        var valueEntry = resultJarFile.getJarEntry("BOOT-INF/lib/value.jar");
+        var plainEntry = resultJarFile.getJarEntry("BOOT-INF/lib/plain.jar");
+        var enhancedValueJar = resultJarFile.getInputStream(valueEntry).readAllBytes();
+        // a JarInputStream only sees a manifest at the start of the jar
+        var nestedManifest = new JarInputStream(new ByteArrayInputStream(enhancedValueJar)).getManifest();
+        var nestedJarFile = enhancedJarFile.resolveSibling("value.jar");
+        Files.write(nestedJarFile, enhancedValueJar);
+        try(var nestedJar = new JarFile(nestedJarFile.toFile(), true, ZipFile.OPEN_READ, Runtime.Version.parse("23"))) {
+          assertAll(
+              () -> assertEquals(ZipEntry.STORED, valueEntry.getMethod()),
+              () -> assertEquals(ZipEntry.STORED, plainEntry.getMethod()),
+              () -> assertArrayEquals(plainJar, resultJarFile.getInputStream(plainEntry).readAllBytes()),
+              () -> assertTrue(nestedJar.isMultiRelease()),
+              () -> assertEquals("true", nestedManifest.getMainAttributes().getValue("Multi-Release")),
+              () -> assertEquals("value", nestedManifest.getMainAttributes().getValue("Implementation-Title")),
+              () -> assertNotNull(nestedJar.getJarEntry("META-INF/versions/23/" + fromClass(GoodClassAnnotated.class).pathname)),
+              () -> assertNotNull(nestedJar.getJarEntry(fromClass(GoodClass.class).pathname)),
+              () -> assertNull(nestedJar.getJarEntry("META-INF/versions/23/" + fromClass(GoodClass.class).pathname))
+          );
+        } finally {
+          Files.delete(nestedJarFile);
+        }
+      }
+    } finally {
+      Files.deleteIfExists(enhancedJarFile);
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceSignedNestedJar() throws IOException {
+    var goodClassName = fromClass(GoodClass.class).pathname;
+    var manifest = new Resource("META-INF/MANIFEST.MF", (
+        "Manifest-Version: 1.0\n\n" +
+        "Name: " + goodClassName + "\n" +
+        "SHA-256-Digest: 47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=\n\n" +
+        "Name: com/github/forax/einherjar/core/\n" +
+        "Sealed: true\n" +
+        "SHA-256-Digest: 47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=\n\n").getBytes(StandardCharsets.UTF_8));
+    var valueJar = jarContent(manifest,
+        new Resource("META-INF/VALUE.SF", new byte[] { 1 }),
+        new Resource("META-INF/VALUE.RSA", new byte[] { 2 }),
+        fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class));
+    var jarFile = createFatJar(new Resource("BOOT-INF/lib/value.jar", valueJar));
+    var enhancedJarFile = jarFile.resolveSibling("fat-enhanced.jar");
+    try {
+      Facade.enhance(ValueType.class.getName(), Set.of(), jarFile, enhancedJarFile, 23, (issue, className, message) -> {
+        throw new AssertionError(issue + " " + className + " " + message);
+      });
+
+      try(var resultJarFile = new JarFile(enhancedJarFile.toFile())) {
+        var enhancedValueJar = resultJarFile.getInputStream(resultJarFile.getJarEntry("BOOT-INF/lib/value.jar")).readAllBytes();
+        var entryNames = new ArrayList<String>();
+        try(var jarInput = new JarInputStream(new ByteArrayInputStream(enhancedValueJar))) {
+          for (JarEntry entry; (entry = jarInput.getNextJarEntry()) != null;) {
+            entryNames.add(entry.getName());
+          }
+          var nestedManifest = jarInput.getManifest();
+          assertAll(
+              () -> assertEquals("true", nestedManifest.getMainAttributes().getValue("Multi-Release")),
+              () -> assertEquals(Set.of("com/github/forax/einherjar/core/"), nestedManifest.getEntries().keySet()),
+              () -> assertEquals("true", nestedManifest.getAttributes("com/github/forax/einherjar/core/").getValue("Sealed")),
+              () -> assertNull(nestedManifest.getAttributes("com/github/forax/einherjar/core/").getValue("SHA-256-Digest")),
+              () -> assertFalse(entryNames.contains("META-INF/VALUE.SF")),
+              () -> assertFalse(entryNames.contains("META-INF/VALUE.RSA")),
+              () -> assertTrue(entryNames.contains(goodClassName)),
+              () -> assertTrue(entryNames.contains("META-INF/versions/23/" + fromClass(GoodClassAnnotated.class).pathname))
+          );
+        }
+      }
+    } finally {
+      Files.deleteIfExists(enhancedJarFile);
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testCheckNestedJar() throws IOException {
+    var jarFile = createFatJar(new Resource("WEB-INF/lib/lib.jar", jarContent(fromClass(BadFieldNotFinalAnnotated.class))));
+    try {
+      var issues = new ArrayList<String>();
+      Facade.check(ValueType.class.getName(), Set.of(), jarFile, (issue, className, message) -> issues.add(issue + " " + className));
+      assertEquals(List.of("NON_FINAL_FIELD com/github/forax/einherjar/core/FacadeTest$BadFieldNotFinalAnnotated"), issues);
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceStream() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(GoodClass.class), new Resource("data.txt", new byte[100_000]));
+    try {
+      var output = new ByteArrayOutputStream();
+      try(var input = Files.newInputStream(jarFile)) {
+        Facade.enhance(ValueType.class.getName(), Set.of(), input, output, 23, (issue, className, message) -> {
+          throw new AssertionError(issue + " " + className + " " + message);
+        }, FacadeListener.NONE);
+      }
+
+      // the manifest is the first entry, so it is visible from a JarInputStream and not listed
+      try(var jarInput = new JarInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+        var entryNames = new ArrayList<String>();
+        JarEntry entry;
+        while ((entry = jarInput.getNextJarEntry()) != null) {
+          entryNames.add(entry.getName());
+        }
+        assertAll(
+            () -> assertEquals("true", jarInput.getManifest().getMainAttributes().getValue("Multi-Release")),
+            () -> assertEquals(List.of(
+                fromClass(GoodClassAnnotated.class).pathname,
+                fromClass(GoodClass.class).pathname,
+                "data.txt",
+                "META-INF/versions/23/" + fromClass(GoodClassAnnotated.class).pathname), entryNames)
+        );
+      }
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+
+  @Test
+  public void testEnhanceStreamWithIssue() throws IOException {
+    var jarFile = createTestJar(fromClass(GoodClassAnnotated.class), fromClass(BadFieldNotFinalAnnotated.class));
+    try {
+      var output = new ByteArrayOutputStream();
+      var issues = new ArrayList<String>();
+      try(var input = Files.newInputStream(jarFile)) {
+        Facade.enhance(ValueType.class.getName(), Set.of(), input, output, 23, (issue, className, message) -> issues.add(className), FacadeListener.NONE);
+      }
+
+      // no value class is written
+      try(var jarInput = new JarInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+        JarEntry entry;
+        while ((entry = jarInput.getNextJarEntry()) != null) {
+          assertFalse(entry.getName().startsWith("META-INF/versions/"), entry.getName());
+        }
+      }
+      assertEquals(List.of("com/github/forax/einherjar/core/FacadeTest$BadFieldNotFinalAnnotated"), issues);
+    } finally {
+      Files.delete(jarFile);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.github.forax.einherjar.core;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.MONITORENTER;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+public class IdentityUsageIndexTest {
+  static final class Point {
+    private final int x;
+
+    Point(int x) {
+      this.x = x;
+    }
+  }
+
+  @SuppressWarnings("unused")
+  static final class Users {
+    void lock(Point point) {
+      synchronized (point) {
+        System.out.println(point);
+      }
+    }
+    boolean same(Point point1, Point point2) {
+      return point1 == point2;
+    }
+    boolean notSame(Point point1, Point point2) {
+      return point1 != point2;
+    }
+    int hash(Point point) {
+      return System.identityHashCode(point);
+    }
+    Object weak(Point point) {
+      return new WeakReference<>(point);
+    }
+    Object soft(Point point, ReferenceQueue<Point> queue) {
+      return new SoftReference<>(point, queue);
+    }
+
+    // not attributed to Point, the static type is Object
+    boolean mixed(Object object, Point point) {
+      return object == point;
+    }
+    void lockObject(Object object) {
+      synchronized (object) {
+        System.out.println(object);
+      }
+    }
+    int hashObject(Object object) {
+      return System.identityHashCode(object);
+    }
+  }
+
+  static final class Locked {
+    synchronized void lock() {}
+    static synchronized void staticLock() {}
+  }
+
+  private static byte[] classContent(Class<?> clazz) throws IOException {
+    try(var input = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+      return input.readAllBytes();
+    }
+  }
+
+  // a method synchronizing on a Point and a method that the Analyzer rejects
+  private static byte[] classWithInvalidMethod() {
+    var writer = new ClassWriter(0);
+    writer.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "com/acme/Invalid", null, "java/lang/Object", null);
+    var valid = writer.visitMethod(ACC_STATIC, "valid", "(Lcom/acme/Point;)V", null, null);
+    valid.visitCode();
+    valid.visitVarInsn(ALOAD, 0);
+    valid.visitInsn(MONITORENTER);
+    valid.visitInsn(RETURN);
+    valid.visitMaxs(1, 1);
+    valid.visitEnd();
+    var invalid = writer.visitMethod(ACC_STATIC, "invalid", "(Lcom/acme/Point;)V", null, null);
+    invalid.visitCode();
+    invalid.visitVarInsn(ALOAD, 5);  // no such local variable
+    invalid.visitInsn(MONITORENTER);
+    invalid.visitInsn(RETURN);
+    invalid.visitMaxs(1, 1);
+    invalid.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static List<String> operations(List<String> messages) {
+    return messages.stream().map(message -> message.substring(0, message.indexOf(" in "))).toList();
+  }
+
+  @Test
+  public void scan() throws IOException {
+    var index = new IdentityUsageIndex();
+    index.addAll(IdentityUsageIndex.scan(classContent(Users.class)));
+    var point = Point.class.getName().replace('.', '/');
+    var users = Users.class.getName().replace('.', '/');
+    var messages = index.usages(point);
+    assertAll(
+        () -> assertEquals(List.of("synchronized", "==", "==", "System.identityHashCode", "new WeakReference", "new SoftReference"), operations(messages)),
+        () -> assertTrue(messages.get(0).startsWith("synchronized in " + users + ".lock(L" + point + ";)V at IdentityUsageIndexTest.java:"), messages.get(0)),
+        () -> assertEquals(List.of(), index.usages("java/lang/Object")),
+        () -> assertEquals(List.of(), index.usages(users))
+    );
+  }
+
+  @Test
+  public void invalidMethod() {
+    var index = new IdentityUsageIndex();
+    index.addAll(IdentityUsageIndex.scan(classWithInvalidMethod()));
+    var messages = index.usages("com/acme/Point");
+    assertAll(
+        () -> assertEquals(1, messages.size()),
+        () -> assertTrue(messages.get(0).startsWith("synchronized in com/acme/Invalid.valid(Lcom/acme/Point;)V"), messages.get(0))
+    );
+  }
+
+  @Test
+  public void synchronizedMethod() throws IOException {
+    var index = new IdentityUsageIndex();
+    index.addAll(IdentityUsageIndex.scan(classContent(Locked.class)));
+    var locked = Locked.class.getName().replace('.', '/');
+    assertEquals(List.of("synchronized method " + locked + ".lock()V"), index.usages(locked));
+  }
+
+  @Test
+  public void report() throws IOException {
+    var index = new IdentityUsageIndex();
+    index.addAll(IdentityUsageIndex.scan(classContent(Users.class)));
+    var point = Point.class.getName().replace('.', '/');
+    var issues = new ArrayList<String>();
+    index.report(List.of(point, "com/acme/Unused"), (issue, className, message) -> issues.add(issue + " " + className));
+    assertEquals(6, issues.size());
+    assertTrue(issues.stream().allMatch(issue -> issue.equals("IDENTITY_USAGE " + point)));
+  }
+}
@@ -0,0 +1,175 @@
+package com.github.forax.einherjar.core;
+
+import com.github.forax.einherjar.api.ValueType;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+public class ValueClassEnhancerTest {
+  private static byte[] load(Class<?> clazz) throws IOException {
+    try(var input = clazz.getResourceAsStream('/' + internalName(clazz) + ".class")) {
+      if (input == null) {
+        throw new AssertionError();
+      }
+      return input.readAllBytes();
+    }
+  }
+
+  private static String internalName(Class<?> clazz) {
+    return clazz.getName().replace('.', '/');
+  }
+
+  private static boolean isValueClass(byte[] content) {
+    return (new ClassReader(content).getAccess() & ACC_SUPER) == 0;
+  }
+
+  private static boolean hasLineNumbers(byte[] content) {
+    var lineNumbers = new Object() { boolean found; };
+    new ClassReader(content).accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        return new MethodVisitor(ASM9) {
+          @Override
+          public void visitLineNumber(int line, Label start) {
+            lineNumbers.found = true;
+          }
+        };
+      }
+    }, 0);
+    return lineNumbers.found;
+  }
+
+  @ValueType
+  static class Point {
+    private final int x, y;
+
+    Point(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  @ValueType
+  static class MutablePoint {
+    private int x;
+  }
+
+  static class NotAnnotated {
+    private int x;
+  }
+
+  private static final String ANNOTATION_NAME = ValueType.class.getName();
+
+  @Test
+  public void testEnhance() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(24, 23));
+    var content = load(Point.class);
+    var copy = content.clone();
+    var result = enhancer.enhance(content);
+    assertAll(
+        () -> assertEquals(internalName(Point.class), result.className()),
+        () -> assertTrue(result.isValueClass()),
+        () -> assertEquals(List.of(), result.issues()),
+        () -> assertEquals(List.of(23, 24), List.copyOf(result.valueClasses().keySet())),
+        () -> assertTrue(isValueClass(result.valueClasses().get(23))),
+        () -> assertEquals(23 + 44, result.valueClasses().get(23)[7]),  // ASM can not read the version 24
+        () -> assertEquals(24 + 44, result.valueClasses().get(24)[7]),
+        () -> assertEquals(List.of(
+            "META-INF/versions/23/" + internalName(Point.class) + ".class",
+            "META-INF/versions/24/" + internalName(Point.class) + ".class"),
+            List.copyOf(result.versionedEntries().keySet())),
+        () -> assertArrayEquals(copy, content)
+    );
+  }
+
+  @Test
+  public void testEnhanceIssue() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(23));
+    var result = enhancer.enhance(load(MutablePoint.class));
+    var reported = new ArrayList<ValueTypeChecker.Issue>();
+    result.report((issue, className, message) -> reported.add(issue));
+    assertAll(
+        () -> assertFalse(result.isValueClass()),
+        () -> assertEquals(List.of(), List.copyOf(result.valueClasses().keySet())),
+        () -> assertEquals(1, result.issues().size()),
+        () -> assertEquals(ValueTypeChecker.Issue.NON_FINAL_FIELD, result.issues().get(0).issue()),
+        () -> assertEquals(internalName(MutablePoint.class), result.issues().get(0).className()),
+        () -> assertEquals(List.of(ValueTypeChecker.Issue.NON_FINAL_FIELD), reported)
+    );
+  }
+
+  @Test
+  public void testEnhanceNotMatching() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(23));
+    var result = enhancer.enhance(load(NotAnnotated.class));
+    assertAll(
+        () -> assertFalse(result.isValueClass()),
+        () -> assertEquals(List.of(), result.issues())
+    );
+  }
+
+  @Test
+  public void testEnhanceClassSet() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(FacadeTest.GoodClass.class.getName()), Set.of(23));
+    assertTrue(enhancer.enhance(load(FacadeTest.GoodClass.class)).isValueClass());
+  }
+
+  @Test
+  public void testEnhanceStrippedAttributes() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(23));
+    var strippedEnhancer = enhancer.withStrippedAttributes(EnumSet.of(EnhanceLayout.StrippedAttribute.LINE_NUMBER_TABLE));
+    var content = load(Point.class);
+    assertAll(
+        () -> assertTrue(hasLineNumbers(enhancer.enhance(content).valueClasses().get(23))),
+        () -> assertFalse(hasLineNumbers(strippedEnhancer.enhance(content).valueClasses().get(23)))
+    );
+  }
+
+  @Test
+  public void testEnhanceBatch() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(23));
+    var classes = new LinkedHashMap<String, byte[]>();
+    classes.put("a", load(NotAnnotated.class));
+    classes.put("b", load(Point.class));
+    classes.put("c", load(MutablePoint.class));
+    var results = enhancer.enhance(classes);
+    assertAll(
+        () -> assertEquals(List.of("a", "b", "c"), List.copyOf(results.keySet())),
+        () -> assertFalse(results.get("a").isValueClass()),
+        () -> assertTrue(results.get("b").isValueClass()),
+        () -> assertFalse(results.get("c").isValueClass()),
+        () -> assertEquals(1, results.get("c").issues().size())
+    );
+  }
+
+  @Test
+  public void testEnhanceConcurrently() throws IOException {
+    var enhancer = new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(23));
+    var content = load(Point.class);
+    var expected = enhancer.enhance(content).valueClasses().get(23);
+    IntStream.range(0, 1_000).parallel().forEach(i ->
+        assertArrayEquals(expected, enhancer.enhance(content).valueClasses().get(23)));
+  }
+
+  @Test
+  public void testInvalidVersion() {
+    assertAll(
+        () -> assertThrows(IllegalArgumentException.class, () -> new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of())),
+        () -> assertThrows(IllegalArgumentException.class, () -> new ValueClassEnhancer(ANNOTATION_NAME, Set.of(), Set.of(22)))
+    );
+  }
+}
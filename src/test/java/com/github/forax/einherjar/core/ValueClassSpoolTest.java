@@ -0,0 +1,59 @@
+package com.github.forax.einherjar.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ValueClassSpoolTest {
+  private static List<String> replay(ValueClassSpool spool) throws IOException {
+    var list = new ArrayList<String>();
+    spool.forEach((entryName, content) -> list.add(entryName + ":" + content.length));
+    return list;
+  }
+
+  @Test
+  public void inMemory() throws IOException {
+    try(var spool = new ValueClassSpool(1_024)) {
+      spool.add("A.class", new byte[100]);
+      spool.add("B.class", new byte[200]);
+      assertAll(
+          () -> assertFalse(spool.isSpilled()),
+          () -> assertEquals(2, spool.size()),
+          () -> assertEquals(List.of("A.class:100", "B.class:200"), replay(spool))
+      );
+    }
+  }
+
+  @Test
+  public void spilled() throws IOException {
+    try(var spool = new ValueClassSpool(250)) {
+      spool.add("A.class", new byte[100]);
+      spool.add("B.class", new byte[100]);
+      assertFalse(spool.isSpilled());
+      spool.add("C.class", new byte[100]);
+      spool.add("D.class", new byte[1_000]);
+      assertAll(
+          () -> assertTrue(spool.isSpilled()),
+          () -> assertEquals(4, spool.size()),
+          () -> assertEquals(List.of("A.class:100", "B.class:100", "C.class:100", "D.class:1000"), replay(spool))
+      );
+    }
+  }
+
+  @Test
+  public void empty() throws IOException {
+    try(var spool = new ValueClassSpool(0)) {
+      assertAll(
+          () -> assertTrue(spool.isEmpty()),
+          () -> assertEquals(List.of(), replay(spool))
+      );
+    }
+  }
+}